@@ -1,16 +1,19 @@
 package org.karatachi.daemon;
 
-import org.karatachi.thread.AcceptInterruptable;
-import org.karatachi.thread.InterruptableOperation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public abstract class Daemon {
+    private static volatile DaemonExecutor defaultExecutor =
+            ThreadDaemonExecutor.INSTANCE;
+
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private volatile Worker executor;
+    private volatile DaemonExecutor executor;
+    private volatile DaemonWorker worker;
 
     private final String name;
+    private final DaemonMetrics metrics;
 
     private volatile long lastStarted;
     private volatile long lastExecution;
@@ -19,13 +22,29 @@ public abstract class Daemon {
     private volatile String detailText;
 
     public Daemon(String name) {
+        this(name, new DaemonMetrics());
+    }
+
+    protected Daemon(String name, DaemonMetrics metrics) {
         this.name = name;
+        this.metrics = metrics;
         this.lastStarted = 0L;
         this.nextRun = -1L;
 
         this.detailText = "Initialized.";
     }
 
+    public static DaemonExecutor getDefaultExecutor() {
+        return defaultExecutor;
+    }
+
+    public static void setDefaultExecutor(DaemonExecutor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        defaultExecutor = executor;
+    }
+
     public final String getName() {
         return name;
     }
@@ -42,6 +61,10 @@ public abstract class Daemon {
         return lastExecution;
     }
 
+    public final DaemonMetrics getMetrics() {
+        return metrics;
+    }
+
     public String getDetailText() {
         return detailText;
     }
@@ -50,42 +73,51 @@ public abstract class Daemon {
         this.detailText = String.format(format, args);
     }
 
+    public final DaemonExecutor getExecutor() {
+        return executor != null ? executor : defaultExecutor;
+    }
+
+    /**
+     * 次回のstartup()から使用する実行バックエンドを設定する。nullの場合はデフォルト
+     */
+    public final void setExecutor(DaemonExecutor executor) {
+        this.executor = executor;
+    }
+
     public final synchronized void startup() {
-        if (executor == null) {
-            executor = new Worker(name);
-            executor.setDaemon(true);
-            executor.start();
+        if (worker == null) {
+            metrics.register("Daemon", name);
+            worker = getExecutor().start(this);
             detailText = "Started.";
         }
     }
 
     public final synchronized void wakeup() {
-        if (executor != null) {
-            synchronized (executor) {
-                nextRun = -1L;
-                executor.notify();
-            }
+        if (worker != null) {
+            nextRun = -1L;
+            worker.wakeup();
         }
     }
 
     public final synchronized void shutdown() {
-        if (executor != null) {
+        if (worker != null) {
             detailText = "Terminating.";
-            executor.shutdownRequest();
+            worker.shutdownRequest();
         }
     }
 
     public final synchronized void join() throws InterruptedException {
-        if (executor != null) {
-            executor.join();
-            executor = null;
+        if (worker != null) {
+            worker.join();
+            worker = null;
+            metrics.unregister();
             detailText = "Terminated.";
         }
     }
 
     public final synchronized Thread.State getStatus() {
-        if (executor != null) {
-            return executor.getState();
+        if (worker != null) {
+            return worker.getState();
         } else {
             return Thread.State.TERMINATED;
         }
@@ -100,70 +132,52 @@ public abstract class Daemon {
 
     protected abstract void work() throws Exception;
 
-    private class Worker extends Thread implements AcceptInterruptable {
-        private volatile boolean shutdownRequested = false;
-        private volatile InterruptableOperation interruptable = InterruptableOperation.NULL_OPERATION;
+    /**
+     * 停止した後に実行スレッドから1度呼び出される
+     */
+    protected void cleanup() {
+    }
 
-        public Worker(String name) {
-            super(name);
-        }
+    final boolean isDue() {
+        long nextRun = this.nextRun;
+        return nextRun < 0L || nextRun < System.currentTimeMillis();
+    }
 
-        @Override
-        public void setInterruptable(InterruptableOperation interruptable)
-                throws InterruptedException {
-            this.interruptable = interruptable;
-            if (Thread.interrupted())
-                throw new InterruptedException();
+    final void execute() throws Exception {
+        long scheduled = nextRun;
+        lastStarted = System.currentTimeMillis();
+        if (scheduled > 0L) {
+            metrics.recordDrift(Math.max(0L, lastStarted - scheduled));
         }
 
-        @Override
-        public void clearInterruptable() {
-            interruptable = InterruptableOperation.NULL_OPERATION;
+        long begin = System.nanoTime();
+        try {
+            work();
+            metrics.recordSuccess();
+        } catch (Exception e) {
+            metrics.recordFailure(e);
+            throw e;
+        } finally {
+            metrics.recordExecution((System.nanoTime() - begin) / 1000L);
+            lastExecution = System.currentTimeMillis() - lastStarted;
+            updateNextRun();
         }
+    }
 
-        public void shutdownRequest() {
-            shutdownRequested = true;
-            interrupt();
-            interruptable.interrupt();
+    final void stopped() {
+        try {
+            cleanup();
+        } catch (RuntimeException e) {
+            logger.error("Cleanup error.", e);
         }
+        logger.info("Daemon stopped.");
+    }
 
-        @Override
-        public void run() {
-            logger.info("Daemon started.");
-            while (!shutdownRequested) {
-                try {
-                    if (nextRun < 0L || nextRun < System.currentTimeMillis()) {
-                        lastStarted = System.currentTimeMillis();
-                        try {
-                            work();
-                        } finally {
-                            lastExecution = System.currentTimeMillis()
-                                    - lastStarted;
-                            updateNextRun();
-                        }
-                    }
-
-                    if (nextRun < 0L) {
-                        synchronized (this) {
-                            wait();
-                        }
-                    } else {
-                        long sleep = nextRun - System.currentTimeMillis();
-                        if (sleep > 0L) {
-                            synchronized (this) {
-                                wait(sleep);
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    if (e instanceof InterruptedException) {
-                        logger.info("Interrupted.");
-                    } else {
-                        logger.error("Execution error.", e);
-                    }
-                }
-            }
-            logger.info("Daemon stopped.");
+    final void handleError(Exception e) {
+        if (e instanceof InterruptedException) {
+            logger.info("Interrupted.");
+        } else {
+            logger.error("Execution error.", e);
         }
     }
 }
@@ -0,0 +1,11 @@
+package org.karatachi.daemon;
+
+/**
+ * Daemonを実行する。サブクラスはstart()でDaemonWorkerを返す
+ */
+public abstract class DaemonExecutor {
+    protected DaemonExecutor() {
+    }
+
+    protected abstract DaemonWorker start(Daemon daemon);
+}
@@ -16,8 +16,21 @@ public abstract class DaemonGroup {
 
     protected final String groupName;
 
+    private volatile DaemonExecutor executor;
+
+    private final DaemonMetrics metrics;
+
     public DaemonGroup(String name) {
+        this(name, new DaemonMetrics());
+    }
+
+    /**
+     * @param metrics
+     *            setCount()で起動したDaemonの値を合算する
+     */
+    protected DaemonGroup(String name, DaemonMetrics metrics) {
         this.running = false;
+        this.metrics = metrics;
 
         this.daemons = new LinkedList<Daemon>();
         this.removedDaemons = new LinkedList<Daemon>();
@@ -37,6 +50,21 @@ public abstract class DaemonGroup {
         return running;
     }
 
+    public final DaemonMetrics getMetrics() {
+        return metrics;
+    }
+
+    public final DaemonExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 以降に起動されるDaemonの実行バックエンドを設定する。nullの場合はDaemonのデフォルト
+     */
+    public final void setExecutor(DaemonExecutor executor) {
+        this.executor = executor;
+    }
+
     public final synchronized boolean upCount() {
         if (!running)
             return false;
@@ -63,6 +91,10 @@ public abstract class DaemonGroup {
 
         while (daemons.size() < count) {
             Daemon daemon = newInstance(groupName + "-" + (daemons.size() + 1));
+            if (executor != null) {
+                daemon.setExecutor(executor);
+            }
+            daemon.getMetrics().setParent(metrics);
             daemon.startup();
             daemons.addLast(daemon);
         }
@@ -94,6 +126,7 @@ public abstract class DaemonGroup {
     public final synchronized void startup() {
         if (!running) {
             logger.info("Daemon group starting.");
+            metrics.register("DaemonGroup", groupName);
             initialize();
             logger.info("Daemon group started.");
             running = true;
@@ -107,6 +140,7 @@ public abstract class DaemonGroup {
             while (removedDaemons.size() > 0)
                 removedDaemons.removeFirst().join();
             cleanup();
+            metrics.unregister();
             logger.info("Daemon group stopped.");
             running = false;
         }
@@ -0,0 +1,198 @@
+package org.karatachi.daemon;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.karatachi.concurrent.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Daemon.work()の実行回数、処理時間、実行予定時刻からの遅れを記録する。
+ *
+ * DaemonGroupに属するDaemonは同じ値をDaemonGroupのメトリクスにも記録する。
+ */
+public class DaemonMetrics implements DaemonMetricsMBean {
+    public static final String DOMAIN = "org.karatachi.daemon";
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(DaemonMetrics.class);
+
+    private volatile DaemonMetrics parent;
+
+    private final LatencyHistogram executionTime = new LatencyHistogram();
+    private final AtomicLong successCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong interruptCount = new AtomicLong();
+
+    private final AtomicLong driftCount = new AtomicLong();
+    private final AtomicLong totalDrift = new AtomicLong();
+    private final AtomicLong maxDrift = new AtomicLong();
+    private volatile long lastDrift;
+
+    private ObjectName objectName;
+
+    final void setParent(DaemonMetrics parent) {
+        this.parent = parent;
+    }
+
+    protected final DaemonMetrics getParent() {
+        return parent;
+    }
+
+    final void recordExecution(long micros) {
+        executionTime.record(micros);
+        DaemonMetrics parent = this.parent;
+        if (parent != null) {
+            parent.recordExecution(micros);
+        }
+    }
+
+    final void recordSuccess() {
+        successCount.incrementAndGet();
+        DaemonMetrics parent = this.parent;
+        if (parent != null) {
+            parent.recordSuccess();
+        }
+    }
+
+    final void recordFailure(Exception e) {
+        if (e instanceof InterruptedException) {
+            interruptCount.incrementAndGet();
+        } else {
+            failureCount.incrementAndGet();
+        }
+        DaemonMetrics parent = this.parent;
+        if (parent != null) {
+            parent.recordFailure(e);
+        }
+    }
+
+    final void recordDrift(long drift) {
+        lastDrift = drift;
+        driftCount.incrementAndGet();
+        totalDrift.addAndGet(drift);
+        long max;
+        while (drift > (max = maxDrift.get())) {
+            if (maxDrift.compareAndSet(max, drift)) {
+                break;
+            }
+        }
+        DaemonMetrics parent = this.parent;
+        if (parent != null) {
+            parent.recordDrift(drift);
+        }
+    }
+
+    public final LatencyHistogram getExecutionTimeHistogram() {
+        return executionTime;
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return executionTime.getCount();
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return successCount.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public long getInterruptCount() {
+        return interruptCount.get();
+    }
+
+    @Override
+    public double getMeanExecutionTime() {
+        return executionTime.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getMaxExecutionTime() {
+        return executionTime.getMax() / 1000.0;
+    }
+
+    @Override
+    public double getExecutionTime50thPercentile() {
+        return executionTime.getValueAtPercentile(50.0) / 1000.0;
+    }
+
+    @Override
+    public double getExecutionTime90thPercentile() {
+        return executionTime.getValueAtPercentile(90.0) / 1000.0;
+    }
+
+    @Override
+    public double getExecutionTime99thPercentile() {
+        return executionTime.getValueAtPercentile(99.0) / 1000.0;
+    }
+
+    @Override
+    public long getLastDrift() {
+        return lastDrift;
+    }
+
+    @Override
+    public long getMaxDrift() {
+        return maxDrift.get();
+    }
+
+    @Override
+    public double getMeanDrift() {
+        long count = driftCount.get();
+        return count == 0 ? 0.0 : (double) totalDrift.get() / count;
+    }
+
+    @Override
+    public void reset() {
+        executionTime.reset();
+        successCount.set(0L);
+        failureCount.set(0L);
+        interruptCount.set(0L);
+        driftCount.set(0L);
+        totalDrift.set(0L);
+        maxDrift.set(0L);
+        lastDrift = 0L;
+    }
+
+    final synchronized void register(String type, String name) {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            ObjectName objectName =
+                    new ObjectName(DOMAIN + ":type=" + type + ",name="
+                            + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                this.objectName = objectName;
+            }
+        } catch (JMException e) {
+            logger.warn("Failed to register metrics of " + name, e);
+        }
+    }
+
+    final synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+        } catch (JMException e) {
+            logger.warn("Failed to unregister " + objectName, e);
+        }
+        objectName = null;
+    }
+}
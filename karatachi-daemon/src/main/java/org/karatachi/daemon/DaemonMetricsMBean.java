@@ -0,0 +1,32 @@
+package org.karatachi.daemon;
+
+/**
+ * 時間の単位はすべてms
+ */
+public interface DaemonMetricsMBean {
+    long getExecutionCount();
+
+    long getSuccessCount();
+
+    long getFailureCount();
+
+    long getInterruptCount();
+
+    double getMeanExecutionTime();
+
+    double getMaxExecutionTime();
+
+    double getExecutionTime50thPercentile();
+
+    double getExecutionTime90thPercentile();
+
+    double getExecutionTime99thPercentile();
+
+    long getLastDrift();
+
+    long getMaxDrift();
+
+    double getMeanDrift();
+
+    void reset();
+}
@@ -0,0 +1,14 @@
+package org.karatachi.daemon;
+
+/**
+ * DaemonExecutorがDaemonごとに作成する、実行の制御
+ */
+public interface DaemonWorker {
+    public void wakeup();
+
+    public void shutdownRequest();
+
+    public void join() throws InterruptedException;
+
+    public Thread.State getState();
+}
@@ -0,0 +1,231 @@
+package org.karatachi.daemon;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.karatachi.thread.AcceptInterruptable;
+import org.karatachi.thread.InterruptableOperation;
+
+/**
+ * 複数のDaemonを共有スレッドプール上で実行する。各Daemonは待機中にスレッドを占有せず、
+ * updateNextRun()で決まった時刻にワンショットで再スケジュールされる。
+ */
+public class ScheduledDaemonExecutor extends DaemonExecutor {
+    private final String name;
+    private final ScheduledThreadPoolExecutor executor;
+
+    public ScheduledDaemonExecutor(String name, int poolSize) {
+        this.name = name;
+        this.executor =
+                new ScheduledThreadPoolExecutor(poolSize,
+                        new PoolThreadFactory(name));
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    public final int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    public final int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public final int getScheduledCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * プールを停止する。実行中のDaemonは事前にshutdown()しておくこと
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected DaemonWorker start(Daemon daemon) {
+        Worker worker = new Worker(daemon);
+        // schedule()が更新するsequenceとfutureはWorkerで同期する
+        synchronized (worker) {
+            worker.schedule(0L);
+        }
+        return worker;
+    }
+
+    private class Worker implements DaemonWorker {
+        private final Daemon daemon;
+
+        private boolean started = false;
+        private boolean running = false;
+        private boolean terminated = false;
+        private volatile boolean shutdownRequested = false;
+
+        private long sequence = 0L;
+        private ScheduledFuture<?> future;
+        private PoolThread thread;
+
+        public Worker(Daemon daemon) {
+            this.daemon = daemon;
+        }
+
+        private void schedule(long delay) {
+            final long current = ++sequence;
+            future = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Worker.this.run(current);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void terminate() {
+            terminated = true;
+            notifyAll();
+            daemon.stopped();
+        }
+
+        @Override
+        public synchronized void wakeup() {
+            if (running || terminated || shutdownRequested) {
+                return;
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+            schedule(0L);
+        }
+
+        @Override
+        public synchronized void shutdownRequest() {
+            if (terminated) {
+                return;
+            }
+            shutdownRequested = true;
+            if (running) {
+                thread.interrupt();
+                thread.interruptable.interrupt();
+            } else {
+                if (future != null) {
+                    future.cancel(false);
+                    future = null;
+                }
+                terminate();
+            }
+        }
+
+        @Override
+        public synchronized void join() throws InterruptedException {
+            while (!terminated) {
+                wait();
+            }
+        }
+
+        @Override
+        public synchronized Thread.State getState() {
+            if (terminated) {
+                return Thread.State.TERMINATED;
+            } else if (running) {
+                return thread.getState();
+            } else if (future != null) {
+                return Thread.State.TIMED_WAITING;
+            } else {
+                return Thread.State.WAITING;
+            }
+        }
+
+        private void run(long scheduled) {
+            PoolThread current = (PoolThread) Thread.currentThread();
+            synchronized (this) {
+                if (scheduled != sequence || running || terminated) {
+                    return;
+                }
+                future = null;
+                running = true;
+                thread = current;
+                if (!started) {
+                    started = true;
+                    daemon.logger.info("Daemon started.");
+                }
+            }
+
+            String poolName = current.getName();
+            current.setName(daemon.getName());
+            try {
+                if (!shutdownRequested && daemon.isDue()) {
+                    daemon.execute();
+                }
+            } catch (Exception e) {
+                daemon.handleError(e);
+            } finally {
+                current.setName(poolName);
+                synchronized (this) {
+                    current.interruptable =
+                            InterruptableOperation.NULL_OPERATION;
+                    Thread.interrupted();
+                    thread = null;
+                    running = false;
+
+                    if (shutdownRequested) {
+                        terminate();
+                    } else {
+                        long nextRun = daemon.getNextRun();
+                        if (nextRun >= 0L) {
+                            schedule(Math.max(0L, nextRun + 1L
+                                    - System.currentTimeMillis()));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class PoolThread extends Thread implements
+            AcceptInterruptable {
+        private volatile InterruptableOperation interruptable =
+                InterruptableOperation.NULL_OPERATION;
+
+        public PoolThread(Runnable r, String name) {
+            super(r, name);
+        }
+
+        @Override
+        public void setInterruptable(InterruptableOperation interruptable)
+                throws InterruptedException {
+            this.interruptable = interruptable;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+
+        @Override
+        public void clearInterruptable() {
+            interruptable = InterruptableOperation.NULL_OPERATION;
+        }
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger counter = new AtomicInteger(1);
+
+        public PoolThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread =
+                    new PoolThread(r, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
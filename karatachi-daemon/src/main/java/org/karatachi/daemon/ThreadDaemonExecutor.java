@@ -0,0 +1,150 @@
+package org.karatachi.daemon;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.karatachi.thread.AcceptInterruptable;
+import org.karatachi.thread.InterruptableOperation;
+import org.karatachi.thread.InterruptableSupport;
+import org.karatachi.thread.VirtualThreads;
+
+public class ThreadDaemonExecutor extends DaemonExecutor {
+    public static final ThreadDaemonExecutor INSTANCE =
+            new ThreadDaemonExecutor(false);
+
+    /**
+     * 仮想スレッド上でDaemonを実行する。JVMが対応していない場合は通常のスレッドを使用する
+     */
+    public static final ThreadDaemonExecutor VIRTUAL =
+            new ThreadDaemonExecutor(true);
+
+    private final boolean virtual;
+
+    private ThreadDaemonExecutor(boolean virtual) {
+        this.virtual = virtual;
+    }
+
+    public final boolean isVirtual() {
+        return virtual && VirtualThreads.isSupported();
+    }
+
+    @Override
+    protected DaemonWorker start(Daemon daemon) {
+        Worker worker = new Worker(daemon);
+        Thread thread;
+        if (VirtualThreads.isEnabled(virtual, daemon.getName())) {
+            thread = VirtualThreads.newThread(daemon.getName(), worker);
+        } else {
+            thread = new Thread(worker, daemon.getName());
+            thread.setDaemon(true);
+        }
+        worker.thread = thread;
+        thread.start();
+        return worker;
+    }
+
+    private static class Worker implements DaemonWorker, AcceptInterruptable,
+            Runnable {
+        private final Daemon daemon;
+
+        // 仮想スレッドをキャリアスレッドに固定しないようmonitorではなくLockで待機する
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition wakeupCondition = lock.newCondition();
+        private boolean wakeupRequested = false;
+
+        private volatile Thread thread;
+        private volatile boolean shutdownRequested = false;
+        private volatile InterruptableOperation interruptable =
+                InterruptableOperation.NULL_OPERATION;
+
+        public Worker(Daemon daemon) {
+            this.daemon = daemon;
+        }
+
+        @Override
+        public void setInterruptable(InterruptableOperation interruptable)
+                throws InterruptedException {
+            this.interruptable = interruptable;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+
+        @Override
+        public void clearInterruptable() {
+            interruptable = InterruptableOperation.NULL_OPERATION;
+        }
+
+        @Override
+        public void wakeup() {
+            lock.lock();
+            try {
+                wakeupRequested = true;
+                wakeupCondition.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void shutdownRequest() {
+            shutdownRequested = true;
+            thread.interrupt();
+            interruptable.interrupt();
+        }
+
+        @Override
+        public void join() throws InterruptedException {
+            thread.join();
+        }
+
+        @Override
+        public Thread.State getState() {
+            return thread.getState();
+        }
+
+        @Override
+        public void run() {
+            InterruptableSupport.bind(this);
+            daemon.logger.info("Daemon started.");
+            try {
+                while (!shutdownRequested) {
+                    try {
+                        if (daemon.isDue()) {
+                            daemon.execute();
+                        }
+                        await();
+                    } catch (Exception e) {
+                        daemon.handleError(e);
+                    }
+                }
+            } finally {
+                InterruptableSupport.unbind();
+            }
+            daemon.stopped();
+        }
+
+        private void await() throws InterruptedException {
+            lock.lock();
+            try {
+                if (wakeupRequested) {
+                    wakeupRequested = false;
+                    return;
+                }
+
+                long nextRun = daemon.getNextRun();
+                if (nextRun < 0L) {
+                    wakeupCondition.await();
+                } else {
+                    long sleep = nextRun - System.currentTimeMillis();
+                    if (sleep > 0L) {
+                        wakeupCondition.await(sleep, TimeUnit.MILLISECONDS);
+                    }
+                }
+                wakeupRequested = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
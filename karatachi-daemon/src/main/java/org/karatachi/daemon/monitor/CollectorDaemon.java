@@ -1,21 +1,33 @@
 package org.karatachi.daemon.monitor;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.karatachi.daemon.Daemon;
 
+/**
+ * collectData()の値をbacklog(ms)の間保持する。
+ *
+ * 値は列ごとの固定長リングバッファに保持し、読み出しはロックを取らずにシーケンス番号で整合性を確認する。
+ * 値を返すメソッドは、該当するデータがない場合にnullを返すものと指定したデフォルト値を返すものがある。
+ * 頻繁に参照する集計はaddWindow()で登録しておくと、データ追加時に更新され定数時間で参照できる。
+ */
 public abstract class CollectorDaemon extends Daemon {
-    private static class Data {
-        public long time;
-        public double[] values;
-    }
-
     private final long interval;
     private final long backlog;
-    private final List<Data> datalog;
+    private final int capacity;
+
+    private final AtomicLongArray times;
+    private volatile AtomicLongArray[] columns;
+
+    private volatile WindowAggregate[] windows = new WindowAggregate[0];
+
+    /** 書き込み中は奇数 */
+    private volatile long sequence;
+    /** 書き込まれたデータの総数 */
+    private volatile long count;
 
     public CollectorDaemon(String name) {
         this(name, 5, 2000);
@@ -25,96 +37,233 @@ public abstract class CollectorDaemon extends Daemon {
         super(name);
         this.interval = interval;
         this.backlog = backlog;
-        this.datalog = new ArrayList<Data>();
+        this.capacity = (int) (backlog / Math.max(1L, interval)) + 2;
+        this.times = new AtomicLongArray(capacity);
     }
 
     protected abstract double[] collectData();
 
-    public final Double getValueLatest(int index) {
-        synchronized (datalog) {
-            if (datalog.size() == 0) {
-                return null;
-            }
-            return datalog.get(datalog.size() - 1).values[index];
+    /**
+     * index列の直近window(ms)の集計を登録する。最初のデータを収集する前に呼び出す
+     */
+    protected final synchronized WindowAggregate addWindow(int index,
+            long window) {
+        if (count > 0) {
+            throw new IllegalStateException("Data collection already started.");
         }
+        WindowAggregate aggregate = new WindowAggregate(index, window, interval);
+        WindowAggregate[] windows =
+                Arrays.copyOf(this.windows, this.windows.length + 1);
+        windows[windows.length - 1] = aggregate;
+        this.windows = windows;
+        return aggregate;
     }
 
-    public final Double getValueDiff(int index, long time) {
-        synchronized (datalog) {
-            if (datalog.size() == 0) {
-                return null;
+    public final List<WindowAggregate> getWindows() {
+        return Collections.unmodifiableList(Arrays.asList(windows));
+    }
+
+    /**
+     * addWindow()で登録した集計。登録されていない場合はnull
+     */
+    public final WindowAggregate getWindow(int index, long window) {
+        for (WindowAggregate aggregate : windows) {
+            if (aggregate.getIndex() == index && aggregate.getWindow() == window) {
+                return aggregate;
             }
+        }
+        return null;
+    }
+
+    /**
+     * データがない場合はnullを返す。NaNのデータはNaNを返す
+     */
+    public final Double getValueLatest(int index) {
+        boolean[] found = new boolean[1];
+        double value = latest(index, Double.NaN, found);
+        return found[0] ? Double.valueOf(value) : null;
+    }
 
-            Data cur = datalog.get(datalog.size() - 1);
+    public final double getValueLatest(int index, double defaultValue) {
+        return latest(index, defaultValue, null);
+    }
 
-            ListIterator<Data> itr = datalog.listIterator(datalog.size());
-            while (itr.hasPrevious()) {
-                Data prev = itr.previous();
-                if (prev.time < cur.time - time) {
-                    long diff = cur.time - prev.time;
-                    return (cur.values[index] - prev.values[index]) * time
-                            / diff;
-                }
+    /**
+     * @param found
+     *            nullでなければ、データがあった場合にfound[0]をtrueにする
+     */
+    private double latest(int index, double defaultValue, boolean[] found) {
+        while (true) {
+            long seq = beginRead();
+            long last = count - 1;
+            if (last < 0) {
+                return defaultValue;
+            }
+            double value = value(index, last);
+            if (validate(seq)) {
+                found(found);
+                return value;
             }
-            return null;
         }
     }
 
+    /**
+     * time(ms)前のデータがない場合はnullを返す
+     */
+    public final Double getValueDiff(int index, long time) {
+        boolean[] found = new boolean[1];
+        double value = diff(index, time, false, Double.NaN, found);
+        return found[0] ? Double.valueOf(value) : null;
+    }
+
+    public final double getValueDiff(int index, long time, double defaultValue) {
+        return diff(index, time, false, defaultValue, null);
+    }
+
     public final Double getValueDiff32Bit(int index, long time) {
-        synchronized (datalog) {
-            if (datalog.size() == 0) {
-                return null;
+        boolean[] found = new boolean[1];
+        double value = diff(index, time, true, Double.NaN, found);
+        return found[0] ? Double.valueOf(value) : null;
+    }
+
+    public final double getValueDiff32Bit(int index, long time,
+            double defaultValue) {
+        return diff(index, time, true, defaultValue, null);
+    }
+
+    /**
+     * データがない場合はnullを返す
+     */
+    public final Double getValueAverage(int index, long time) {
+        boolean[] found = new boolean[1];
+        double value = average(index, time, Double.NaN, found);
+        return found[0] ? Double.valueOf(value) : null;
+    }
+
+    public final double getValueAverage(int index, long time,
+            double defaultValue) {
+        return average(index, time, defaultValue, null);
+    }
+
+    private double average(int index, long time, double defaultValue,
+            boolean[] found) {
+        while (true) {
+            long seq = beginRead();
+            long last = count - 1;
+            if (last < 0) {
+                return defaultValue;
             }
 
-            Data cur = datalog.get(datalog.size() - 1);
-
-            ListIterator<Data> itr = datalog.listIterator(datalog.size());
-            while (itr.hasPrevious()) {
-                Data prev = itr.previous();
-                if (prev.time < cur.time - time) {
-                    long diff = cur.time - prev.time;
-                    double curvalue = cur.values[index];
-                    double prevvalue = prev.values[index];
-
-                    if (curvalue < prevvalue) {
-                        return ((curvalue + (1L << 32)) - prevvalue) * time
-                                / diff;
-                    } else {
-                        return (curvalue - prevvalue) * time / diff;
-                    }
+            long curTime = times.get(slot(last));
+            long first = firstInBacklog(last, curTime);
+            long prev = findBefore(first, last, curTime - time);
+            if (prev < 0) {
+                prev = first;
+            }
+
+            AtomicLongArray column = columns[index];
+            double value = 0;
+            int slot = slot(prev);
+            for (long i = prev; i <= last; ++i) {
+                value += Double.longBitsToDouble(column.get(slot));
+                if (++slot == capacity) {
+                    slot = 0;
                 }
             }
-            return null;
+            value /= last - prev + 1;
+
+            if (validate(seq)) {
+                found(found);
+                return value;
+            }
         }
     }
 
-    public final Double getValueAverage(int index, long time) {
-        synchronized (datalog) {
-            if (datalog.size() == 0) {
-                return null;
+    private double diff(int index, long time, boolean wrap32Bit,
+            double defaultValue, boolean[] found) {
+        while (true) {
+            long seq = beginRead();
+            long last = count - 1;
+            if (last < 0) {
+                return defaultValue;
             }
 
-            double value = 0;
-            int count = 0;
+            long curTime = times.get(slot(last));
+            long first = firstInBacklog(last, curTime);
+            long prev = findBefore(first, last, curTime - time);
 
-            Data cur = datalog.get(datalog.size() - 1);
+            double value = defaultValue;
+            if (prev >= 0) {
+                long diff = curTime - times.get(slot(prev));
+                double curvalue = value(index, last);
+                double prevvalue = value(index, prev);
+                if (wrap32Bit && curvalue < prevvalue) {
+                    curvalue += 1L << 32;
+                }
+                value = (curvalue - prevvalue) * time / diff;
+            }
 
-            ListIterator<Data> itr = datalog.listIterator(datalog.size());
-            while (itr.hasPrevious()) {
-                Data prev = itr.previous();
-                value += prev.values[index];
-                ++count;
-                if (prev.time < cur.time - time) {
-                    break;
+            if (validate(seq)) {
+                if (prev >= 0) {
+                    found(found);
                 }
+                return value;
             }
+        }
+    }
 
-            if (count == 0) {
-                return null;
+    /**
+     * [first, last]のうち時刻がtimeより前の最も新しいデータの番号。ない場合は-1
+     */
+    private long findBefore(long first, long last, long time) {
+        long lo = first;
+        long hi = last;
+        long found = -1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            if (times.get(slot(mid)) < time) {
+                found = mid;
+                lo = mid + 1;
             } else {
-                return value / count;
+                hi = mid - 1;
             }
         }
+        return found;
+    }
+
+    /**
+     * 保持しているデータのうち時刻がcurTime - backlog以降の最も古いデータの番号
+     */
+    private long firstInBacklog(long last, long curTime) {
+        long first = Math.max(0L, last - capacity + 1);
+        long expired = findBefore(first, last, curTime - backlog);
+        return expired < 0 ? first : expired + 1;
+    }
+
+    private int slot(long i) {
+        return (int) (i % capacity);
+    }
+
+    private double value(int index, long i) {
+        return Double.longBitsToDouble(columns[index].get(slot(i)));
+    }
+
+    private long beginRead() {
+        long seq;
+        while (((seq = sequence) & 1L) != 0L) {
+            Thread.yield();
+        }
+        return seq;
+    }
+
+    private boolean validate(long seq) {
+        return sequence == seq;
+    }
+
+    private static void found(boolean[] found) {
+        if (found != null) {
+            found[0] = true;
+        }
     }
 
     @Override
@@ -124,21 +273,38 @@ public abstract class CollectorDaemon extends Daemon {
 
     @Override
     protected void work() throws Exception {
-        Data data = new Data();
-        data.time = System.currentTimeMillis();
-        data.values = collectData();
-
-        synchronized (datalog) {
-            datalog.add(data);
-
-            Iterator<Data> itr = datalog.iterator();
-            while (itr.hasNext()) {
-                if (itr.next().time < data.time - backlog) {
-                    itr.remove();
-                } else {
-                    break;
-                }
+        long time = System.currentTimeMillis();
+        double[] values = collectData();
+
+        AtomicLongArray[] columns = this.columns;
+        if (columns == null) {
+            columns = new AtomicLongArray[values.length];
+            for (int i = 0; i < columns.length; ++i) {
+                columns[i] = new AtomicLongArray(capacity);
+            }
+            this.columns = columns;
+        } else if (columns.length != values.length) {
+            throw new IllegalStateException(String.format(
+                    "collectData() returned %d values, expected %d.",
+                    values.length, columns.length));
+        }
+
+        long next = count;
+        int slot = slot(next);
+
+        sequence++;
+        try {
+            times.set(slot, time);
+            for (int i = 0; i < columns.length; ++i) {
+                columns[i].set(slot, Double.doubleToRawLongBits(values[i]));
             }
+            count = next + 1;
+        } finally {
+            sequence++;
+        }
+
+        for (WindowAggregate aggregate : windows) {
+            aggregate.add(time, values[aggregate.getIndex()]);
         }
     }
 }
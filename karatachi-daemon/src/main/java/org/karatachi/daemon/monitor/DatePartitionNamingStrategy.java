@@ -0,0 +1,46 @@
+package org.karatachi.daemon.monitor;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * table_level_yyyyMMddHHmm(UTC)の名前を付ける
+ */
+public class DatePartitionNamingStrategy implements PartitionNamingStrategy {
+    private static final String FORMAT = "yyyyMMddHHmm";
+
+    @Override
+    public String getPartitionName(String table, int level, long starttime) {
+        return getPrefix(table, level)
+                + createFormat().format(new Date(starttime));
+    }
+
+    @Override
+    public long getStartTime(String table, int level, String partitionName) {
+        String prefix = getPrefix(table, level);
+        if (partitionName.length() != prefix.length() + FORMAT.length()
+                || !partitionName.regionMatches(true, 0, prefix, 0,
+                        prefix.length())) {
+            return -1;
+        }
+        try {
+            return createFormat().parse(
+                    partitionName.substring(prefix.length())).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private String getPrefix(String table, int level) {
+        return table + "_" + level + "_";
+    }
+
+    private SimpleDateFormat createFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+}
@@ -0,0 +1,269 @@
+package org.karatachi.daemon.monitor;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RDBMSを使わずにローカルのファイルに値を保存する。
+ *
+ * タイトル・レベルごとのディレクトリに、一定期間ごとのセグメントファイル(TimeSeriesSegment)を作成して追記する。
+ * 期限切れの値はセグメントファイル単位で削除するため、期限をsegmentLength[level]だけ過ぎた値まで残る場合がある。
+ * 書き込みは他のプロセスと共有できない。
+ */
+public class FileMonitorStore implements MonitorStore {
+    private static final Logger logger =
+            LoggerFactory.getLogger(FileMonitorStore.class);
+
+    private static final String SUFFIX = ".seg";
+    private static final String ENCODING = "UTF-8";
+
+    private static final FileFilter SEGMENT_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(SUFFIX);
+        }
+    };
+
+    private static final FileFilter DIRECTORY_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isDirectory();
+        }
+    };
+
+    private final File directory;
+    private final long[] segmentLength;
+    private final int capacity;
+
+    /**
+     * 追記中のセグメント。タイトル・レベルのディレクトリをキーとし、読み書きはこのMapで同期する。
+     *
+     * 追記中でないセグメントはマップせずに読み込むため、削除するまでマッピングが残らない
+     */
+    private final Map<File, TimeSeriesSegment> current =
+            new HashMap<File, TimeSeriesSegment>();
+
+    /**
+     * レベルごとにMonitorDaemon.EXPIREの1/4の期間でセグメントを分割する
+     */
+    public FileMonitorStore(File directory) {
+        this(directory, defaultSegmentLength(), 4096);
+    }
+
+    /**
+     * @param segmentLength
+     *            レベルごとのセグメントファイルの期間(ms)
+     * @param capacity
+     *            セグメントファイルの列ごとの容量(byte)。容量を超えた場合は新しいセグメントを作成する
+     */
+    public FileMonitorStore(File directory, long[] segmentLength, int capacity) {
+        this.directory = directory;
+        this.segmentLength = segmentLength.clone();
+        this.capacity = capacity;
+    }
+
+    private static long[] defaultSegmentLength() {
+        long[] ret = new long[MonitorDaemon.EXPIRE.length];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = MonitorDaemon.EXPIRE[i] / 4;
+        }
+        return ret;
+    }
+
+    public final File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void begin() throws IOException {
+    }
+
+    @Override
+    public void end() throws IOException {
+    }
+
+    @Override
+    public void write(List<MonitorRecord> records) throws IOException {
+        synchronized (current) {
+            for (MonitorRecord record : records) {
+                File series = getSeriesDirectory(record.getTitle(),
+                        record.getLevel());
+                TimeSeriesSegment segment =
+                        getWritableSegment(series, record.getLevel(),
+                                record.getTime());
+                segment.append(record.getTime(), record.getValue());
+            }
+        }
+    }
+
+    private TimeSeriesSegment getWritableSegment(File series, int level,
+            long time) throws IOException {
+        TimeSeriesSegment segment = current.get(series);
+        if (segment == null) {
+            File[] files = listSegments(series);
+            if (files.length > 0) {
+                segment = TimeSeriesSegment.open(files[files.length - 1], true);
+            }
+        }
+
+        if (segment == null || segment.isFull()
+                || (segment.getCount() > 0 && time >= segment.getFirstTime()
+                        + getSegmentLength(level))) {
+            if (segment != null) {
+                segment.force();
+            }
+            if (!series.isDirectory() && !series.mkdirs()) {
+                throw new IOException("Failed to create " + series);
+            }
+            File file = new File(series, time + SUFFIX);
+            if (file.exists()) {
+                throw new IOException("Segment already exists: " + file);
+            }
+            segment = TimeSeriesSegment.create(file, capacity);
+        }
+        current.put(series, segment);
+        return segment;
+    }
+
+    private long getSegmentLength(int level) {
+        return segmentLength[Math.min(level, segmentLength.length - 1)];
+    }
+
+    @Override
+    public List<MonitorRecord> read(String title, int level, long from,
+            long to) throws IOException {
+        List<MonitorRecord> ret = new ArrayList<MonitorRecord>();
+        File series = getSeriesDirectory(title, level);
+        synchronized (current) {
+            File[] files = listSegments(series);
+            for (int i = 0; i < files.length; ++i) {
+                if (getStartTime(files[i]) >= to) {
+                    break;
+                }
+                if (i + 1 < files.length && getStartTime(files[i + 1]) <= from) {
+                    continue;
+                }
+
+                TimeSeriesSegment segment = current.get(series);
+                if (segment == null || !segment.getFile().equals(files[i])) {
+                    segment = TimeSeriesSegment.open(files[i], false);
+                }
+                segment.read(title, level, from, to, ret);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, MonitorSummary> summarize(int level, long from, long to)
+            throws IOException {
+        Map<String, MonitorSummary> ret = new HashMap<String, MonitorSummary>();
+        for (String title : getTitles(level)) {
+            List<MonitorRecord> records = read(title, level, from, to);
+            if (!records.isEmpty()) {
+                MonitorSummary summary = new MonitorSummary();
+                for (MonitorRecord record : records) {
+                    summary.add(record.getValue());
+                }
+                ret.put(title, summary);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 後続のセグメントの開始時刻がbefore[level]以前のセグメントを削除する
+     */
+    @Override
+    public void expire(long[] before) throws IOException {
+        synchronized (current) {
+            for (int level = 0; level < before.length; ++level) {
+                File[] dirs = getLevelDirectory(level).listFiles(DIRECTORY_FILTER);
+                if (dirs == null) {
+                    continue;
+                }
+                for (File series : dirs) {
+                    File[] files = listSegments(series);
+                    for (int i = 0; i + 1 < files.length; ++i) {
+                        if (getStartTime(files[i + 1]) > before[level]) {
+                            break;
+                        }
+                        // 削除できなかったセグメントは次回に再度削除する
+                        if (!files[i].delete()) {
+                            logger.warn("Failed to delete {}", files[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public List<String> getTitles(int level) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        File[] dirs = getLevelDirectory(level).listFiles(DIRECTORY_FILTER);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                ret.add(URLDecoder.decode(dir.getName(), ENCODING));
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (current) {
+            for (TimeSeriesSegment segment : current.values()) {
+                segment.force();
+            }
+            current.clear();
+        }
+    }
+
+    private File getLevelDirectory(int level) {
+        return new File(directory, "level" + level);
+    }
+
+    private File getSeriesDirectory(String title, int level) {
+        try {
+            return new File(getLevelDirectory(level), URLEncoder.encode(title,
+                    ENCODING));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static File[] listSegments(File series) {
+        File[] files = series.listFiles(SEGMENT_FILTER);
+        if (files == null) {
+            return new File[0];
+        }
+        TreeMap<Long, File> sorted = new TreeMap<Long, File>();
+        for (File file : files) {
+            sorted.put(getStartTime(file), file);
+        }
+        return sorted.values().toArray(new File[sorted.size()]);
+    }
+
+    private static long getStartTime(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + Arrays.asList(directory);
+    }
+}
@@ -0,0 +1,234 @@
+package org.karatachi.daemon.monitor;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * (time, host, title, level, value)の列を持つテーブルに値を保存する
+ */
+public abstract class JdbcMonitorStore implements MonitorStore {
+    private static final Logger logger =
+            LoggerFactory.getLogger(JdbcMonitorStore.class);
+
+    private final String insert;
+    private final String select;
+    private final String selectSummary;
+    private final String delete;
+
+    /** begin()で取得した接続 */
+    private final ThreadLocal<Connection> cycle = new ThreadLocal<Connection>();
+
+    public JdbcMonitorStore(String table, String host) {
+        this.insert =
+                String.format(
+                        "INSERT INTO %1$s(time, host, title, level, value) VALUES(?, '%2$s', ?, ?, ?)",
+                        table, host);
+        this.select =
+                String.format(
+                        "SELECT time, value FROM %1$s WHERE time >= ? AND time < ? AND host='%2$s' AND title=? AND level=? ORDER BY time",
+                        table, host);
+        this.selectSummary =
+                String.format(
+                        "SELECT title, sum(value), count(value), max(value), min(value) FROM %1$s WHERE time >= ? AND time < ? AND host='%2$s' AND level=? GROUP BY title",
+                        table, host);
+        this.delete =
+                String.format(
+                        "DELETE FROM %1$s WHERE time < ? AND host='%2$s' AND level=?",
+                        table, host);
+    }
+
+    protected abstract Connection getConnection() throws SQLException;
+
+    /**
+     * begin()からend()までは同じ接続を使う
+     */
+    @Override
+    public void begin() throws IOException {
+        if (cycle.get() == null) {
+            try {
+                cycle.set(getConnection());
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        Connection conn = cycle.get();
+        if (conn != null) {
+            cycle.remove();
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private Connection acquire() throws SQLException {
+        Connection conn = cycle.get();
+        return conn != null ? conn : getConnection();
+    }
+
+    private void release(Connection conn) throws SQLException {
+        if (conn != cycle.get()) {
+            conn.close();
+        }
+    }
+
+    /**
+     * 1つのトランザクションでバッチ実行する
+     */
+    @Override
+    public void write(List<MonitorRecord> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        try {
+            Connection conn = acquire();
+            try {
+                boolean autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+                try {
+                    PreparedStatement stmt = conn.prepareStatement(insert);
+                    try {
+                        for (MonitorRecord record : records) {
+                            stmt.setLong(1, record.getTime());
+                            stmt.setString(2, record.getTitle());
+                            stmt.setInt(3, record.getLevel());
+                            stmt.setDouble(4, record.getValue());
+                            stmt.addBatch();
+                        }
+                        stmt.executeBatch();
+                    } finally {
+                        stmt.close();
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(autoCommit);
+                }
+            } finally {
+                release(conn);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public List<MonitorRecord> read(String title, int level, long from,
+            long to) throws IOException {
+        List<MonitorRecord> ret = new ArrayList<MonitorRecord>();
+        try {
+            Connection conn = acquire();
+            try {
+                PreparedStatement stmt = conn.prepareStatement(select);
+                try {
+                    stmt.setLong(1, from);
+                    stmt.setLong(2, to);
+                    stmt.setString(3, title);
+                    stmt.setInt(4, level);
+                    ResultSet rs = stmt.executeQuery();
+                    try {
+                        while (rs.next()) {
+                            ret.add(new MonitorRecord(rs.getLong(1), title,
+                                    level, rs.getDouble(2)));
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                release(conn);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, MonitorSummary> summarize(int level, long from, long to)
+            throws IOException {
+        Map<String, MonitorSummary> ret = new HashMap<String, MonitorSummary>();
+        try {
+            Connection conn = acquire();
+            try {
+                PreparedStatement stmt = conn.prepareStatement(selectSummary);
+                try {
+                    stmt.setLong(1, from);
+                    stmt.setLong(2, to);
+                    stmt.setInt(3, level);
+                    ResultSet rs = stmt.executeQuery();
+                    try {
+                        while (rs.next()) {
+                            if (rs.getLong(3) > 0) {
+                                ret.put(rs.getString(1), new MonitorSummary(
+                                        rs.getLong(3), rs.getDouble(2),
+                                        rs.getDouble(4), rs.getDouble(5)));
+                            }
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                release(conn);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return ret;
+    }
+
+    @Override
+    public void expire(long[] before) throws IOException {
+        try {
+            Connection conn = acquire();
+            try {
+                PreparedStatement stmt = conn.prepareStatement(delete);
+                try {
+                    for (int i = 0; i < before.length; ++i) {
+                        stmt.setLong(1, before[i]);
+                        stmt.setInt(2, i);
+                        try {
+                            stmt.executeUpdate();
+                        } catch (SQLException e) {
+                            logger.info("Error on DELETE execution was ignored.",
+                                    e);
+                        }
+                    }
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                release(conn);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
@@ -1,84 +1,288 @@
 package org.karatachi.daemon.monitor;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import javax.management.InvalidAttributeValueException;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.JMException;
-import javax.management.MBeanAttributeInfo;
-import javax.management.ObjectName;
-import javax.management.openmbean.CompositeData;
 
 import org.karatachi.jmx.MBeanAccessor;
+import org.karatachi.jmx.MBeanAccessorRegistry;
 import org.karatachi.jmx.MBeanServerWrapper;
 import org.karatachi.jmx.MBeanWrapper;
 import org.karatachi.system.SystemInfo;
-import org.karatachi.translator.PrimitiveTranslator;
 
 public abstract class MBeanMonitorDaemon extends MonitorDaemon {
     private final MBeanServerWrapper server;
-    private final Map<String, MBeanAccessor> accessors;
+    private final Map<String, List<MBeanAccessor>> accessors;
+    private final Map<MBeanServerWrapper, MBeanAccessorRegistry> registries =
+            new HashMap<MBeanServerWrapper, MBeanAccessorRegistry>();
 
+    /** Daemon.join()は停止を待つ間thisをロックするため、別のオブジェクトで同期する */
+    private final Object executorLock = new Object();
+    private ExecutorService executor;
+    private int parallelism;
+    private long timeout;
+
+    public MBeanMonitorDaemon(String name, MonitorStore store) {
+        this(name, store, new MBeanServerWrapper());
+    }
+
+    public MBeanMonitorDaemon(String name, MonitorStore store,
+            MBeanServerWrapper server) {
+        super(name, store);
+        this.server = server;
+        this.accessors =
+                new ConcurrentSkipListMap<String, List<MBeanAccessor>>();
+    }
+
+    /**
+     * @deprecated JdbcMonitorStoreを作成してMBeanMonitorDaemon(String, MonitorStore)に渡す
+     */
+    @Deprecated
     public MBeanMonitorDaemon(String name, String table) {
         this(name, table, new MBeanServerWrapper());
     }
 
+    /**
+     * @deprecated JdbcMonitorStoreを作成してMBeanMonitorDaemon(String, MonitorStore,
+     *             MBeanServerWrapper)に渡す
+     */
+    @Deprecated
     public MBeanMonitorDaemon(String name, String table,
             MBeanServerWrapper server) {
         super(name, table, SystemInfo.HOST_NAME);
         this.server = server;
-        this.accessors = new ConcurrentSkipListMap<String, MBeanAccessor>();
+        this.accessors =
+                new ConcurrentSkipListMap<String, List<MBeanAccessor>>();
     }
 
+    /**
+     * MBeanごとに1回のgetAttributes()で属性を取得する。自JVMのプラットフォームMXBeanの値は直接取得する
+     */
     @Override
     protected void collectData() throws SQLException {
-        for (MBeanAccessor accessor : accessors.values()) {
-            storeValue(accessor.getTitle(), accessor.getValue());
+        Map<List<Object>, BeanReader> readers =
+                new LinkedHashMap<List<Object>, BeanReader>();
+        for (List<MBeanAccessor> compiled : accessors.values()) {
+            for (MBeanAccessor accessor : compiled) {
+                if (accessor.isDirect()) {
+                    storeValue(accessor.getTitle(), accessor.getValue());
+                    continue;
+                }
+                MBeanWrapper bean = accessor.getBean();
+                List<Object> key =
+                        Arrays.<Object> asList(bean.getServer(),
+                                bean.getObjectName());
+                BeanReader reader = readers.get(key);
+                if (reader == null) {
+                    reader = new BeanReader(bean);
+                    readers.put(key, reader);
+                }
+                reader.accessors.add(accessor);
+            }
+        }
+
+        ExecutorService executor;
+        long timeout;
+        synchronized (executorLock) {
+            if (this.executor == null && parallelism > 1) {
+                this.executor = createExecutor(parallelism);
+            }
+            executor = this.executor;
+            timeout = this.timeout;
+        }
+
+        List<BeanReader> list = new ArrayList<BeanReader>(readers.values());
+        List<double[]> values = new ArrayList<double[]>();
+        if (executor == null || list.size() <= 1) {
+            for (BeanReader reader : list) {
+                values.add(reader.call());
+            }
+        } else {
+            try {
+                List<Future<double[]>> futures =
+                        executor.invokeAll(list, timeout,
+                                TimeUnit.MILLISECONDS);
+                for (int i = 0; i < futures.size(); ++i) {
+                    values.add(getResult(futures.get(i), list.get(i)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        for (int i = 0; i < list.size(); ++i) {
+            List<MBeanAccessor> beanAccessors = list.get(i).accessors;
+            for (int j = 0; j < beanAccessors.size(); ++j) {
+                storeValue(beanAccessors.get(j).getTitle(), values.get(i)[j]);
+            }
+        }
+    }
+
+    private double[] getResult(Future<double[]> future, BeanReader reader)
+            throws InterruptedException {
+        if (!future.isCancelled()) {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                logger.warn("Failed to read " + reader.bean, e.getCause());
+            }
+        } else {
+            logger.warn("Timed out reading {}", reader.bean);
+        }
+        return reader.failed();
+    }
+
+    /**
+     * MBeanの読み込みを最大parallelismスレッドで並列に実行する。timeout(ms)以内に読み込めなかったMBeanの値はNaNとする。
+     * parallelismが1以下の場合は順に実行する。読み込みのスレッドはデーモンの停止時に終了する
+     */
+    public void setParallelism(int parallelism, long timeout) {
+        synchronized (executorLock) {
+            shutdownExecutor();
+            this.parallelism = parallelism;
+            this.timeout = timeout;
+        }
+    }
+
+    private ExecutorService createExecutor(int parallelism) {
+        ThreadPoolExecutor pool =
+                new ThreadPoolExecutor(parallelism, parallelism, 60,
+                        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread =
+                                        new Thread(r, getName() + "-reader");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private void shutdownExecutor() {
+        synchronized (executorLock) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+
+    @Override
+    protected void cleanup() {
+        shutdownExecutor();
+    }
+
+    /**
+     * 1つのMBeanの属性をまとめて取得し、accessorsの順に値を返す
+     */
+    private static class BeanReader implements Callable<double[]> {
+        private final MBeanWrapper bean;
+        private final List<MBeanAccessor> accessors =
+                new ArrayList<MBeanAccessor>();
+
+        public BeanReader(MBeanWrapper bean) {
+            this.bean = bean;
+        }
+
+        @Override
+        public double[] call() {
+            Set<String> names = new LinkedHashSet<String>();
+            for (MBeanAccessor accessor : accessors) {
+                names.add(accessor.getAttributeName());
+            }
+
+            AttributeList attributes;
+            try {
+                attributes =
+                        bean.get(names.toArray(new String[names.size()]));
+            } catch (JMException e) {
+                return failed();
+            }
+            Map<String, Object> values = new HashMap<String, Object>();
+            for (Object attribute : attributes) {
+                values.put(((Attribute) attribute).getName(),
+                        ((Attribute) attribute).getValue());
+            }
+
+            double[] ret = new double[accessors.size()];
+            for (int i = 0; i < ret.length; ++i) {
+                MBeanAccessor accessor = accessors.get(i);
+                ret[i] =
+                        accessor.getValue(values.get(accessor.getAttributeName()));
+            }
+            return ret;
+        }
+
+        public double[] failed() {
+            double[] ret = new double[accessors.size()];
+            for (int i = 0; i < ret.length; ++i) {
+                ret[i] = Double.NaN;
+            }
+            return ret;
         }
     }
 
     public void addAccessor(String title, String accessor) throws JMException {
-        int idx1 = accessor.lastIndexOf(":");
-        String name = accessor.substring(0, idx1);
-        String attribute = accessor.substring(idx1 + 1);
-        String key = null;
-
-        if (attribute.contains(".")) {
-            int idx2 = attribute.lastIndexOf(".");
-            key = attribute.substring(idx2 + 1);
-            attribute = attribute.substring(0, idx2);
+        addAccessor(title, server, accessor);
+    }
+
+    /**
+     * serverのMBeanの値を収集する。複数のRemoteMBeanServerWrapperを指定した場合、setParallelism()で並列に収集できる。
+     *
+     * accessorのObjectNameがパターンの場合は、この時点で一致するすべてのMBeanの値を収集する(MBeanAccessorRegistry.compile()を参照)
+     */
+    public void addAccessor(String title, MBeanServerWrapper server,
+            String accessor) throws JMException {
+        List<MBeanAccessor> compiled =
+                getRegistry(server).compile(title, accessor);
+        if (!compiled.isEmpty()) {
+            accessors.put(getKey(server, accessor), compiled);
         }
+    }
 
-        MBeanWrapper bean =
-                new MBeanWrapper(server, new ObjectName(name), name);
-        for (MBeanAttributeInfo info : bean.getAttributes()) {
-            if (info.getName().equals(attribute)) {
-                try {
-                    Class<?> clazz =
-                            Class.forName(PrimitiveTranslator.toWrapperClassName(info.getType()));
-                    if (Number.class.isAssignableFrom(clazz) && key == null) {
-                        accessors.put(accessor, new MBeanAccessor(title, bean,
-                                info));
-                    } else if (CompositeData.class.isAssignableFrom(clazz)
-                            && key != null) {
-                        accessors.put(accessor, new MBeanAccessor(title, bean,
-                                info, key));
-                    } else {
-                        logger.error("Accessor '{}' does not return number",
-                                accessor);
-                        throw new InvalidAttributeValueException(
-                                "Accessor does not return number.");
-                    }
-                } catch (ClassNotFoundException e) {
-                    logger.error("Accessor '{}' is unknown type: {}", accessor,
-                            info.getType());
-                }
+    private MBeanAccessorRegistry getRegistry(MBeanServerWrapper server) {
+        synchronized (registries) {
+            MBeanAccessorRegistry registry = registries.get(server);
+            if (registry == null) {
+                registry = new MBeanAccessorRegistry(server);
+                registries.put(server, registry);
             }
+            return registry;
         }
     }
 
     public void removeAccessor(String accessor) {
-        accessors.remove(accessor);
+        removeAccessor(server, accessor);
+    }
+
+    public void removeAccessor(MBeanServerWrapper server, String accessor) {
+        accessors.remove(getKey(server, accessor));
+    }
+
+    private String getKey(MBeanServerWrapper server, String accessor) {
+        return server == this.server ? accessor : server + " " + accessor;
     }
 }
@@ -1,9 +1,15 @@
 package org.karatachi.daemon.monitor;
 
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.karatachi.daemon.Daemon;
 import org.karatachi.translator.IntervalTranslator;
@@ -18,41 +24,70 @@ public abstract class MonitorDaemon extends Daemon {
             IntervalTranslator.day(3), IntervalTranslator.day(30),
             IntervalTranslator.day(365 * 3) };
 
-    private final String insert;
-    private final String count;
-    private final String selectAverage;
-    private final String selectMaximum;
-    private final String selectMinimum;
-    private final String delete;
+    private static class Sample {
+        public final long time;
+        public final String title;
+        public final double value;
 
-    private Connection conn;
+        public Sample(long time, String title, double value) {
+            this.time = time;
+            this.title = title;
+            this.value = value;
+        }
+    }
+
+    /**
+     * 1つのタイトル・レベルの集計中の区間
+     */
+    private static class Rollup {
+        public long starttime;
+        public long count;
+        public double sum;
+        public double maximum;
+        public double minimum;
+
+        public void add(double average, double maximum, double minimum) {
+            if (count == 0) {
+                this.sum = 0;
+                this.maximum = maximum;
+                this.minimum = minimum;
+            } else {
+                this.maximum = Math.max(this.maximum, maximum);
+                this.minimum = Math.min(this.minimum, minimum);
+            }
+            this.sum += average;
+            ++count;
+        }
+    }
+
+    private final MonitorStore store;
+    private final List<Sample> samples = new ArrayList<Sample>();
+    private final Map<String, Rollup[]> rollups = new HashMap<String, Rollup[]>();
+    private boolean recovered = false;
+    private volatile boolean expireOnWork = true;
 
+    /**
+     * データベースに保存する場合はJdbcMonitorStoreを渡す
+     */
+    public MonitorDaemon(String name, MonitorStore store) {
+        super(name);
+        this.store = store;
+    }
+
+    /**
+     * getConnection()で取得したデータベースのtableに値を保存する
+     *
+     * @deprecated JdbcMonitorStoreを作成してMonitorDaemon(String, MonitorStore)に渡す
+     */
+    @Deprecated
     public MonitorDaemon(String name, String table, String host) {
         super(name);
-        this.insert =
-                String.format(
-                        "INSERT INTO %1$s(time, host, title, level, value) VALUES(?, '%2$s', ?, ?, ?)",
-                        table, host);
-        this.count =
-                String.format(
-                        "SELECT count(value) FROM %1$s WHERE time = ? AND host='%2$s' AND title=? AND level=?",
-                        table, host);
-        this.selectAverage =
-                String.format(
-                        "SELECT sum(value) / count(value) FROM %1$s WHERE time >= ? AND time < ? AND host='%2$s' AND title=? AND level=?",
-                        table, host);
-        this.selectMaximum =
-                String.format(
-                        "SELECT max(value) FROM %1$s WHERE time >= ? AND time < ? AND host='%2$s' AND title=? AND level=?",
-                        table, host);
-        this.selectMinimum =
-                String.format(
-                        "SELECT min(value) FROM %1$s WHERE time >= ? AND time < ? AND host='%2$s' AND title=? AND level=?",
-                        table, host);
-        this.delete =
-                String.format(
-                        "DELETE FROM %1$s WHERE time < ? AND host='%2$s' AND level=?",
-                        table, host);
+        this.store = new JdbcMonitorStore(table, host) {
+            @Override
+            protected Connection getConnection() throws SQLException {
+                return MonitorDaemon.this.getConnection();
+            }
+        };
     }
 
     protected long[] getInterval() {
@@ -63,7 +98,27 @@ public abstract class MonitorDaemon extends Daemon {
         return EXPIRE;
     }
 
-    protected abstract Connection getConnection() throws SQLException;
+    public final MonitorStore getStore() {
+        return store;
+    }
+
+    public final boolean isExpireOnWork() {
+        return expireOnWork;
+    }
+
+    /**
+     * falseの場合はwork()で期限切れの値を削除しない。MonitorExpireDaemonで別に削除する
+     */
+    public final void setExpireOnWork(boolean expireOnWork) {
+        this.expireOnWork = expireOnWork;
+    }
+
+    /**
+     * MonitorDaemon(String, String, String)で作成した場合に、値を保存するデータベースへの接続を返す
+     */
+    protected Connection getConnection() throws SQLException {
+        throw new SQLException("no JDBC store configured");
+    }
 
     protected abstract void collectData() throws SQLException;
 
@@ -74,127 +129,245 @@ public abstract class MonitorDaemon extends Daemon {
 
     @Override
     protected final void work() throws Exception {
-        conn = null;
+        samples.clear();
         try {
-            conn = getConnection();
             collectData();
-            deleteExpired();
-        } finally {
-            if (conn != null) {
-                conn.close();
+            store.begin();
+            try {
+                flush();
+                if (expireOnWork) {
+                    store.expire(getExpireTime(System.currentTimeMillis(),
+                            getInterval(), getExpire()));
+                }
+            } finally {
+                store.end();
             }
+        } finally {
+            samples.clear();
         }
     }
 
+    /**
+     * 値はwork()の終了時にまとめて書き込む
+     */
     protected final void storeValue(String title, double value)
             throws SQLException {
         storeValue(System.currentTimeMillis(), title, value);
     }
 
+    /**
+     * 値はwork()の終了時にまとめて書き込む
+     */
     protected final void storeValue(long time, String title, double value)
             throws SQLException {
-        PreparedStatement stmt1 = conn.prepareStatement(insert);
-        PreparedStatement stmt2 = conn.prepareStatement(count);
-        PreparedStatement stmt3 = conn.prepareStatement(selectAverage);
-        PreparedStatement stmt4 = conn.prepareStatement(selectMaximum);
-        PreparedStatement stmt5 = conn.prepareStatement(selectMinimum);
+        samples.add(new Sample(time, title, value));
+    }
 
-        try {
-            insert(stmt1, time, title, value);
-            insert(stmt1, time, title + ".max", value);
-            insert(stmt1, time, title + ".min", value);
+    /**
+     * 収集した値と集計値をまとめてMonitorStoreに書き込む。
+     *
+     * 集計値はメモリ上で累積し、区間が終わった時点で1度だけ書き込む。
+     * 起動後最初の書き込みでは、停止中に書き込まれなかった集計値を補い、集計中の区間の値をMonitorStoreから読み込む。
+     */
+    private void flush() throws IOException {
+        if (samples.isEmpty()) {
+            return;
+        }
 
-            for (int i = 1; i < getInterval().length; ++i) {
-                long interval = getInterval()[i];
-                long starttime = (time / interval - 1) * interval;
-                long endtime = starttime + interval;
+        try {
+            if (!recovered) {
+                recover();
+                recovered = true;
+            }
 
-                if (count(stmt2, starttime, title, i) != 0) {
-                    continue;
-                }
+            List<MonitorRecord> records = new ArrayList<MonitorRecord>();
+            for (Sample sample : samples) {
+                records.add(new MonitorRecord(sample.time, sample.title, 0,
+                        sample.value));
+                records.add(new MonitorRecord(sample.time, sample.title
+                        + ".max", 0, sample.value));
+                records.add(new MonitorRecord(sample.time, sample.title
+                        + ".min", 0, sample.value));
+                accumulate(records, sample);
+            }
+            store.write(records);
+        } catch (IOException e) {
+            // 書き込めなかった集計値はMonitorStoreから復元する
+            rollups.clear();
+            recovered = false;
+            throw e;
+        }
+    }
 
-                rotate(stmt3, stmt1, starttime, endtime, title, i);
-                rotate(stmt4, stmt1, starttime, endtime, title + ".max", i);
-                rotate(stmt5, stmt1, starttime, endtime, title + ".min", i);
+    private void accumulate(List<MonitorRecord> records, Sample sample) {
+        long[] intervals = getInterval();
+        Rollup[] rollup = getRollup(sample.title);
+        for (int i = 1; i < intervals.length; ++i) {
+            Rollup bucket = rollup[i];
+            if (bucket.count > 0 && bucket.starttime + intervals[i] <= sample.time) {
+                complete(records, sample.title, rollup, i);
             }
-        } finally {
-            stmt1.close();
-            stmt2.close();
-            stmt3.close();
-            stmt4.close();
-            stmt5.close();
         }
+        add(records, sample.title, rollup, 1, sample.time, sample.value,
+                sample.value, sample.value);
     }
 
-    private void insert(PreparedStatement insertStatement, long time,
-            String title, double value) throws SQLException {
-        insertStatement.setLong(1, time);
-        insertStatement.setString(2, title);
-        insertStatement.setInt(3, 0);
-        insertStatement.setDouble(4, value);
-        insertStatement.executeUpdate();
+    private void add(List<MonitorRecord> records, String title,
+            Rollup[] rollup, int level, long time, double average,
+            double maximum, double minimum) {
+        long interval = getInterval()[level];
+        long starttime = time / interval * interval;
+
+        Rollup bucket = rollup[level];
+        if (bucket.count > 0 && bucket.starttime != starttime) {
+            complete(records, title, rollup, level);
+        }
+        if (bucket.count == 0) {
+            bucket.starttime = starttime;
+        }
+        bucket.add(average, maximum, minimum);
     }
 
-    private int count(PreparedStatement selectStatement, long starttime,
-            String title, int level) throws SQLException {
-        selectStatement.setLong(1, starttime);
-        selectStatement.setString(2, title);
-        selectStatement.setInt(3, level);
+    private void complete(List<MonitorRecord> records, String title,
+            Rollup[] rollup, int level) {
+        Rollup bucket = rollup[level];
+        long starttime = bucket.starttime;
+        double average = bucket.sum / bucket.count;
+        double maximum = bucket.maximum;
+        double minimum = bucket.minimum;
+        bucket.count = 0;
 
-        ResultSet rs1 = selectStatement.executeQuery();
-        try {
-            if (rs1.next()) {
-                return rs1.getInt(1);
-            } else {
-                return 0;
+        records.add(new MonitorRecord(starttime, title, level, average));
+        records.add(new MonitorRecord(starttime, title + ".max", level,
+                maximum));
+        records.add(new MonitorRecord(starttime, title + ".min", level,
+                minimum));
+
+        if (level + 1 < rollup.length) {
+            add(records, title, rollup, level + 1, starttime, average,
+                    maximum, minimum);
+        }
+    }
+
+    private Rollup[] getRollup(String title) {
+        Rollup[] rollup = rollups.get(title);
+        if (rollup == null) {
+            rollup = new Rollup[getInterval().length];
+            for (int i = 1; i < rollup.length; ++i) {
+                rollup[i] = new Rollup();
             }
-        } finally {
-            rs1.close();
+            rollups.put(title, rollup);
         }
+        return rollup;
     }
 
-    private void rotate(PreparedStatement selectStatement,
-            PreparedStatement insertStatement, long starttime, long endtime,
-            String title, int level) throws SQLException {
-        selectStatement.setLong(1, starttime);
-        selectStatement.setLong(2, endtime);
-        selectStatement.setString(3, title);
-        selectStatement.setInt(4, level - 1);
+    /**
+     * 直前の区間の集計値がなければ1つ下のレベルの値を集計して書き込み、集計中の区間の値をMonitorStoreから読み込む
+     */
+    private void recover() throws IOException {
+        // 上位のレベルは直前のレベルの集計値を使うため、レベルごとに順に書き込む
+        for (int i = 1; i < getInterval().length; ++i) {
+            List<MonitorRecord> records = new ArrayList<MonitorRecord>();
+            rotate(records, i);
+            store.write(records);
+            restore(i);
+        }
+    }
 
-        double value;
-        ResultSet rs2 = selectStatement.executeQuery();
-        try {
-            if (rs2.next() && rs2.getObject(1) != null) {
-                value = rs2.getDouble(1);
-            } else {
-                return;
+    private void rotate(List<MonitorRecord> records, int level)
+            throws IOException {
+        long interval = getInterval()[level];
+
+        Map<Long, Set<String>> targets = new TreeMap<Long, Set<String>>();
+        for (Sample sample : samples) {
+            long starttime = (sample.time / interval - 1) * interval;
+            Set<String> titles = targets.get(starttime);
+            if (titles == null) {
+                titles = new LinkedHashSet<String>();
+                targets.put(starttime, titles);
             }
-        } finally {
-            rs2.close();
+            titles.add(sample.title);
         }
 
-        insertStatement.setLong(1, starttime);
-        insertStatement.setString(2, title);
-        insertStatement.setInt(3, level);
-        insertStatement.setDouble(4, value);
-        insertStatement.executeUpdate();
+        for (Map.Entry<Long, Set<String>> entry : targets.entrySet()) {
+            long starttime = entry.getKey();
+            Set<String> titles = entry.getValue();
+
+            // 書き込み済みの集計値
+            titles.removeAll(store.summarize(level, starttime, starttime + 1)
+                    .keySet());
+            if (titles.isEmpty()) {
+                continue;
+            }
+
+            Map<String, MonitorSummary> summary =
+                    store.summarize(level - 1, starttime, starttime + interval);
+            for (String title : titles) {
+                MonitorSummary average = summary.get(title);
+                MonitorSummary maximum = summary.get(title + ".max");
+                MonitorSummary minimum = summary.get(title + ".min");
+                if (average != null) {
+                    records.add(new MonitorRecord(starttime, title, level,
+                            average.getAverage()));
+                }
+                if (maximum != null) {
+                    records.add(new MonitorRecord(starttime, title + ".max",
+                            level, maximum.getMaximum()));
+                }
+                if (minimum != null) {
+                    records.add(new MonitorRecord(starttime, title + ".min",
+                            level, minimum.getMinimum()));
+                }
+            }
+        }
     }
 
-    private void deleteExpired() throws SQLException {
-        PreparedStatement stmt = conn.prepareStatement(delete);
-        long time = System.currentTimeMillis();
-        for (int i = 0; i < getInterval().length; ++i) {
-            long interval = getInterval()[i];
-            long starttime = (time / interval - 1) * interval;
-            long expiretime = starttime - getExpire()[i] * 2;
+    private void restore(int level) throws IOException {
+        long interval = getInterval()[level];
 
-            stmt.setLong(1, expiretime);
-            stmt.setInt(2, i);
-            try {
-                stmt.executeUpdate();
-            } catch (SQLException e) {
-                logger.info("Error on DELETE execution was ignored.", e);
+        Map<Long, Set<String>> targets = new TreeMap<Long, Set<String>>();
+        for (Sample sample : samples) {
+            long starttime = sample.time / interval * interval;
+            Set<String> titles = targets.get(starttime);
+            if (titles == null) {
+                titles = new LinkedHashSet<String>();
+                targets.put(starttime, titles);
             }
+            titles.add(sample.title);
+        }
+
+        for (Map.Entry<Long, Set<String>> entry : targets.entrySet()) {
+            long starttime = entry.getKey();
+            Map<String, MonitorSummary> summary =
+                    store.summarize(level - 1, starttime, starttime + interval);
+            for (String title : entry.getValue()) {
+                MonitorSummary average = summary.get(title);
+                MonitorSummary maximum = summary.get(title + ".max");
+                MonitorSummary minimum = summary.get(title + ".min");
+                if (average == null || maximum == null || minimum == null) {
+                    continue;
+                }
+
+                Rollup bucket = getRollup(title)[level];
+                bucket.starttime = starttime;
+                bucket.count = average.getCount();
+                bucket.sum = average.getSum();
+                bucket.maximum = maximum.getMaximum();
+                bucket.minimum = minimum.getMinimum();
+            }
+        }
+    }
+
+    /**
+     * レベルごとの削除する値の時刻の上限を返す
+     */
+    static long[] getExpireTime(long time, long[] intervals, long[] expire) {
+        long[] before = new long[intervals.length];
+        for (int i = 0; i < before.length; ++i) {
+            long interval = intervals[i];
+            long starttime = (time / interval - 1) * interval;
+            before[i] = starttime - expire[i] * 2;
         }
+        return before;
     }
 }
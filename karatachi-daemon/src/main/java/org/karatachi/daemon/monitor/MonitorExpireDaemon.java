@@ -0,0 +1,46 @@
+package org.karatachi.daemon.monitor;
+
+import org.karatachi.daemon.Daemon;
+
+/**
+ * MonitorStoreの期限切れの値をMonitorDaemonとは別の間隔で削除する。
+ *
+ * MonitorDaemon.setExpireOnWork(false)と組み合わせて使う。
+ */
+public class MonitorExpireDaemon extends Daemon {
+    private final MonitorStore store;
+    private final long interval;
+
+    /**
+     * @param interval
+     *            削除を実行する間隔(ms)
+     */
+    public MonitorExpireDaemon(String name, MonitorStore store, long interval) {
+        super(name);
+        this.store = store;
+        this.interval = interval;
+    }
+
+    protected long[] getInterval() {
+        return MonitorDaemon.INTERVAL;
+    }
+
+    protected long[] getExpire() {
+        return MonitorDaemon.EXPIRE;
+    }
+
+    public final MonitorStore getStore() {
+        return store;
+    }
+
+    @Override
+    protected void updateNextRun() {
+        setNextRun(getLastStarted() + interval);
+    }
+
+    @Override
+    protected void work() throws Exception {
+        store.expire(MonitorDaemon.getExpireTime(System.currentTimeMillis(),
+                getInterval(), getExpire()));
+    }
+}
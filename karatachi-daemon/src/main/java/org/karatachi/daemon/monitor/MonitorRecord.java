@@ -0,0 +1,34 @@
+package org.karatachi.daemon.monitor;
+
+/**
+ * MonitorStoreに保存する1件の値
+ */
+public final class MonitorRecord {
+    private final long time;
+    private final String title;
+    private final int level;
+    private final double value;
+
+    public MonitorRecord(long time, String title, int level, double value) {
+        this.time = time;
+        this.title = title;
+        this.level = level;
+        this.value = value;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public double getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,45 @@
+package org.karatachi.daemon.monitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MonitorDaemonが収集した値の保存先。
+ *
+ * 値はホストごとに(time, title, level, value)の組で保存する。
+ */
+public interface MonitorStore extends Closeable {
+    /**
+     * 同じスレッドでend()までに行う読み書きをまとめる。JDBCの場合は同じ接続を使う
+     */
+    void begin() throws IOException;
+
+    /**
+     * begin()でまとめた読み書きを終了する
+     */
+    void end() throws IOException;
+
+    /**
+     * 値をまとめて書き込む。同じタイトル・レベルの値は時刻順に渡す
+     */
+    void write(List<MonitorRecord> records) throws IOException;
+
+    /**
+     * 時刻が[from, to)のtitleの値を時刻順に返す
+     */
+    List<MonitorRecord> read(String title, int level, long from, long to)
+            throws IOException;
+
+    /**
+     * 時刻が[from, to)の値をタイトルごとに集計する
+     */
+    Map<String, MonitorSummary> summarize(int level, long from, long to)
+            throws IOException;
+
+    /**
+     * レベルiについて時刻がbefore[i]より前の値を削除する。保存形式によっては一部の値が残る場合がある
+     */
+    void expire(long[] before) throws IOException;
+}
@@ -0,0 +1,69 @@
+package org.karatachi.daemon.monitor;
+
+/**
+ * MonitorStoreの1つのタイトル・期間の値の件数、合計、最大値、最小値
+ */
+public final class MonitorSummary {
+    private long count;
+    private double sum;
+    private double maximum;
+    private double minimum;
+
+    public MonitorSummary() {
+    }
+
+    public MonitorSummary(long count, double sum, double maximum,
+            double minimum) {
+        this.count = count;
+        this.sum = sum;
+        this.maximum = maximum;
+        this.minimum = minimum;
+    }
+
+    public void add(double value) {
+        if (count == 0) {
+            maximum = value;
+            minimum = value;
+        } else {
+            maximum = Math.max(maximum, value);
+            minimum = Math.min(minimum, value);
+        }
+        sum += value;
+        ++count;
+    }
+
+    public void add(MonitorSummary other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (count == 0) {
+            maximum = other.maximum;
+            minimum = other.minimum;
+        } else {
+            maximum = Math.max(maximum, other.maximum);
+            minimum = Math.min(minimum, other.minimum);
+        }
+        sum += other.sum;
+        count += other.count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getAverage() {
+        return sum / count;
+    }
+
+    public double getMaximum() {
+        return maximum;
+    }
+
+    public double getMinimum() {
+        return minimum;
+    }
+}
@@ -0,0 +1,16 @@
+package org.karatachi.daemon.monitor;
+
+/**
+ * PartitionedJdbcMonitorStoreのパーティション(テーブル)の名前の付け方
+ */
+public interface PartitionNamingStrategy {
+    /**
+     * levelのstarttimeから始まるパーティションの名前を返す
+     */
+    String getPartitionName(String table, int level, long starttime);
+
+    /**
+     * パーティションの名前から開始時刻を返す。levelのパーティションでなければ-1を返す
+     */
+    long getStartTime(String table, int level, String partitionName);
+}
@@ -0,0 +1,457 @@
+package org.karatachi.daemon.monitor;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * レベル・期間ごとのテーブル(パーティション)に値を保存する。
+ *
+ * パーティションは書き込み時に作成し、期限切れのパーティションはexpire()でDROP TABLEする。
+ * 読み込みは期間が重なるパーティションにだけ問い合わせる。
+ * パーティションは全ホストで共有するため、期限切れの判定も全ホスト共通になる。
+ * パーティションは接続の現在のカタログ・スキーマのtable_で始まるテーブルから探すため、
+ * PartitionNamingStrategyはtable_で始まる名前を付ける必要がある。
+ */
+public abstract class PartitionedJdbcMonitorStore implements MonitorStore {
+    private static final Logger logger =
+            LoggerFactory.getLogger(PartitionedJdbcMonitorStore.class);
+
+    private final String table;
+    private final String host;
+    private final PartitionNamingStrategy naming;
+    private final long[] partitionLength;
+
+    /** レベルごとの既存のパーティションのスキーマで修飾した名前。開始時刻をキーとする */
+    private final List<TreeMap<Long, String>> partitions;
+    private long lastLoaded = 0;
+
+    /** begin()で取得した接続 */
+    private final ThreadLocal<Connection> cycle = new ThreadLocal<Connection>();
+
+    /**
+     * パーティションの期間はMonitorDaemon.EXPIREの1/3とする
+     */
+    public PartitionedJdbcMonitorStore(String table, String host) {
+        this(table, host, new DatePartitionNamingStrategy(),
+                defaultPartitionLength());
+    }
+
+    /**
+     * @param partitionLength
+     *            レベルごとのパーティションの期間(ms)
+     */
+    public PartitionedJdbcMonitorStore(String table, String host,
+            PartitionNamingStrategy naming, long[] partitionLength) {
+        this.table = table;
+        this.host = host;
+        this.naming = naming;
+        this.partitionLength = partitionLength.clone();
+        this.partitions = new ArrayList<TreeMap<Long, String>>();
+        for (int i = 0; i < partitionLength.length; ++i) {
+            partitions.add(new TreeMap<Long, String>());
+        }
+    }
+
+    private static long[] defaultPartitionLength() {
+        long[] ret = new long[MonitorDaemon.EXPIRE.length];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = MonitorDaemon.EXPIRE[i] / 3;
+        }
+        return ret;
+    }
+
+    protected abstract Connection getConnection() throws SQLException;
+
+    /**
+     * begin()からend()までは同じ接続を使う
+     */
+    @Override
+    public void begin() throws IOException {
+        if (cycle.get() == null) {
+            try {
+                cycle.set(getConnection());
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        Connection conn = cycle.get();
+        if (conn != null) {
+            cycle.remove();
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private Connection acquire() throws SQLException {
+        Connection conn = cycle.get();
+        return conn != null ? conn : getConnection();
+    }
+
+    private void release(Connection conn) throws SQLException {
+        if (conn != cycle.get()) {
+            conn.close();
+        }
+    }
+
+    /**
+     * パーティションを作成するSQLを返す
+     */
+    protected String getCreateTableSql(String partition) {
+        return String.format(
+                "CREATE TABLE %1$s(time BIGINT NOT NULL, host VARCHAR(255) NOT NULL, title VARCHAR(255) NOT NULL, level INT NOT NULL, value DOUBLE NOT NULL)",
+                partition);
+    }
+
+    /**
+     * 他のプロセスが作成したパーティションを読み込む間隔(ms)
+     */
+    protected long getRefreshInterval() {
+        return MonitorDaemon.INTERVAL[0];
+    }
+
+    public final String getPartitionName(int level, long time) {
+        return naming.getPartitionName(table, level, getStartTime(level, time));
+    }
+
+    private long getStartTime(int level, long time) {
+        return time / partitionLength[level] * partitionLength[level];
+    }
+
+    /**
+     * 1つのトランザクションでパーティションごとにバッチ実行する
+     */
+    @Override
+    public synchronized void write(List<MonitorRecord> records)
+            throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        Map<String, List<MonitorRecord>> grouped =
+                new LinkedHashMap<String, List<MonitorRecord>>();
+        for (MonitorRecord record : records) {
+            String partition =
+                    getPartitionName(record.getLevel(), record.getTime());
+            List<MonitorRecord> list = grouped.get(partition);
+            if (list == null) {
+                list = new ArrayList<MonitorRecord>();
+                grouped.put(partition, list);
+            }
+            list.add(record);
+        }
+
+        try {
+            Connection conn = acquire();
+            try {
+                // DDLはトランザクションの外で実行する
+                for (List<MonitorRecord> list : grouped.values()) {
+                    MonitorRecord first = list.get(0);
+                    createPartition(conn, first.getLevel(), first.getTime());
+                }
+
+                boolean autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+                try {
+                    for (Map.Entry<String, List<MonitorRecord>> entry : grouped.entrySet()) {
+                        insert(conn, entry.getKey(), entry.getValue());
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    // 他のプロセスが削除したパーティションは次回作成し直す
+                    lastLoaded = 0;
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(autoCommit);
+                }
+            } finally {
+                release(conn);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void insert(Connection conn, String partition,
+            List<MonitorRecord> records) throws SQLException {
+        PreparedStatement stmt =
+                conn.prepareStatement(String.format(
+                        "INSERT INTO %1$s(time, host, title, level, value) VALUES(?, ?, ?, ?, ?)",
+                        partition));
+        try {
+            for (MonitorRecord record : records) {
+                stmt.setLong(1, record.getTime());
+                stmt.setString(2, host);
+                stmt.setString(3, record.getTitle());
+                stmt.setInt(4, record.getLevel());
+                stmt.setDouble(5, record.getValue());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private void createPartition(Connection conn, int level, long time)
+            throws SQLException {
+        long starttime = getStartTime(level, time);
+        TreeMap<Long, String> existing = getPartitions(conn, level);
+        if (existing.containsKey(starttime)) {
+            return;
+        }
+
+        String partition = naming.getPartitionName(table, level, starttime);
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.executeUpdate(getCreateTableSql(partition));
+            logger.info("Created partition {}", partition);
+        } catch (SQLException e) {
+            // 他のプロセスが作成した場合
+            loadPartitions(conn);
+            if (!partitions.get(level).containsKey(starttime)) {
+                throw e;
+            }
+            return;
+        } finally {
+            stmt.close();
+        }
+        partitions.get(level).put(starttime,
+                qualify(conn.getSchema(), partition));
+    }
+
+    private TreeMap<Long, String> getPartitions(Connection conn, int level)
+            throws SQLException {
+        if (System.currentTimeMillis() - lastLoaded >= getRefreshInterval()) {
+            loadPartitions(conn);
+        }
+        return partitions.get(level);
+    }
+
+    private void loadPartitions(Connection conn) throws SQLException {
+        for (TreeMap<Long, String> map : partitions) {
+            map.clear();
+        }
+        DatabaseMetaData metaData = conn.getMetaData();
+        String prefix = table + "_";
+        if (metaData.storesUpperCaseIdentifiers()) {
+            prefix = prefix.toUpperCase();
+        } else if (metaData.storesLowerCaseIdentifiers()) {
+            prefix = prefix.toLowerCase();
+        }
+        String escape = metaData.getSearchStringEscape();
+        String schema = conn.getSchema();
+        ResultSet rs =
+                metaData.getTables(conn.getCatalog(),
+                        schema != null ? escapePattern(schema, escape) : null,
+                        escapePattern(prefix, escape) + "%",
+                        new String[] { "TABLE" });
+        try {
+            while (rs.next()) {
+                String name = rs.getString("TABLE_NAME");
+                for (int i = 0; i < partitions.size(); ++i) {
+                    long starttime = naming.getStartTime(table, i, name);
+                    if (starttime >= 0) {
+                        partitions.get(i).put(starttime,
+                                qualify(rs.getString("TABLE_SCHEM"), name));
+                    }
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        lastLoaded = System.currentTimeMillis();
+    }
+
+    /**
+     * getTables()のパターンで_と%が1文字としてマッチするようにエスケープする
+     */
+    private static String escapePattern(String name, String escape) {
+        if (escape == null || escape.isEmpty()) {
+            return name;
+        }
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if (c == '_' || c == '%' || escape.indexOf(c) >= 0) {
+                ret.append(escape);
+            }
+            ret.append(c);
+        }
+        return ret.toString();
+    }
+
+    private static String qualify(String schema, String name) {
+        return schema != null ? schema + "." + name : name;
+    }
+
+    /**
+     * [from, to)と期間が重なるパーティション
+     */
+    private List<String> getPartitions(Connection conn, int level, long from,
+            long to) throws SQLException {
+        TreeMap<Long, String> existing = getPartitions(conn, level);
+        Long first = existing.floorKey(from);
+        if (first == null) {
+            first = Long.MIN_VALUE;
+        }
+        return new ArrayList<String>(existing.subMap(first, true, to, false)
+                .values());
+    }
+
+    @Override
+    public synchronized List<MonitorRecord> read(String title, int level,
+            long from, long to) throws IOException {
+        List<MonitorRecord> ret = new ArrayList<MonitorRecord>();
+        try {
+            Connection conn = acquire();
+            try {
+                for (String partition : getPartitions(conn, level, from, to)) {
+                    PreparedStatement stmt =
+                            conn.prepareStatement(String.format(
+                                    "SELECT time, value FROM %1$s WHERE time >= ? AND time < ? AND host=? AND title=? AND level=? ORDER BY time",
+                                    partition));
+                    try {
+                        stmt.setLong(1, from);
+                        stmt.setLong(2, to);
+                        stmt.setString(3, host);
+                        stmt.setString(4, title);
+                        stmt.setInt(5, level);
+                        ResultSet rs = stmt.executeQuery();
+                        try {
+                            while (rs.next()) {
+                                ret.add(new MonitorRecord(rs.getLong(1),
+                                        title, level, rs.getDouble(2)));
+                            }
+                        } finally {
+                            rs.close();
+                        }
+                    } finally {
+                        stmt.close();
+                    }
+                }
+            } finally {
+                release(conn);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized Map<String, MonitorSummary> summarize(int level,
+            long from, long to) throws IOException {
+        Map<String, MonitorSummary> ret = new HashMap<String, MonitorSummary>();
+        try {
+            Connection conn = acquire();
+            try {
+                for (String partition : getPartitions(conn, level, from, to)) {
+                    PreparedStatement stmt =
+                            conn.prepareStatement(String.format(
+                                    "SELECT title, sum(value), count(value), max(value), min(value) FROM %1$s WHERE time >= ? AND time < ? AND host=? AND level=? GROUP BY title",
+                                    partition));
+                    try {
+                        stmt.setLong(1, from);
+                        stmt.setLong(2, to);
+                        stmt.setString(3, host);
+                        stmt.setInt(4, level);
+                        ResultSet rs = stmt.executeQuery();
+                        try {
+                            while (rs.next()) {
+                                if (rs.getLong(3) == 0) {
+                                    continue;
+                                }
+                                MonitorSummary summary =
+                                        ret.get(rs.getString(1));
+                                if (summary == null) {
+                                    summary = new MonitorSummary();
+                                    ret.put(rs.getString(1), summary);
+                                }
+                                summary.add(new MonitorSummary(rs.getLong(3),
+                                        rs.getDouble(2), rs.getDouble(4),
+                                        rs.getDouble(5)));
+                            }
+                        } finally {
+                            rs.close();
+                        }
+                    } finally {
+                        stmt.close();
+                    }
+                }
+            } finally {
+                release(conn);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return ret;
+    }
+
+    /**
+     * 期間の終わりがbefore[level]以前のパーティションを削除する。削除に失敗したパーティションは次回に再度削除する
+     */
+    @Override
+    public synchronized void expire(long[] before) throws IOException {
+        try {
+            Connection conn = acquire();
+            try {
+                loadPartitions(conn);
+                for (int i = 0; i < before.length && i < partitions.size(); ++i) {
+                    TreeMap<Long, String> existing = partitions.get(i);
+                    for (Map.Entry<Long, String> entry : new ArrayList<Map.Entry<Long, String>>(
+                            existing.entrySet())) {
+                        if (entry.getKey() + partitionLength[i] > before[i]) {
+                            break;
+                        }
+                        drop(conn, entry.getValue());
+                        existing.remove(entry.getKey());
+                    }
+                }
+            } finally {
+                release(conn);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void drop(Connection conn, String partition) {
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.executeUpdate("DROP TABLE " + partition);
+                logger.info("Dropped partition {}", partition);
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            logger.warn("Failed to drop partition " + partition, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
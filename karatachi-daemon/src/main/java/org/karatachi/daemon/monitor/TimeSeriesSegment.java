@@ -0,0 +1,304 @@
+package org.karatachi.daemon.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * FileMonitorStoreの1つのタイトル・レベルの値を保持するファイル。
+ *
+ * 追記するセグメントはメモリマップし、読み込むだけのセグメントはヒープに読み込む。
+ * マッピングはGCされるまで解放されず、Windowsではその間ファイルを削除できないため。
+ *
+ * 時刻列はdelta-of-delta、値の列は直前の値とのXORで符号化したビット列として、ヘッダの後ろに列ごとに追記する。
+ * 符号化の状態はヘッダに保持するため、再起動後も同じファイルに追記できる。
+ */
+class TimeSeriesSegment {
+    private static final int MAGIC = 0x4b4d5453;
+    private static final int VERSION = 1;
+
+    private static final int COUNT = 8;
+    private static final int TIME_BITS = 12;
+    private static final int VALUE_BITS = 16;
+    private static final int LEADING = 20;
+    private static final int TRAILING = 24;
+    private static final int CAPACITY = 28;
+    private static final int FIRST_TIME = 32;
+    private static final int LAST_TIME = 40;
+    private static final int LAST_DELTA = 48;
+    private static final int LAST_VALUE = 56;
+    private static final int HEADER_SIZE = 64;
+
+    /** 1件あたりの最大ビット数 */
+    private static final int MAX_TIME_BITS = 4 + 64;
+    private static final int MAX_VALUE_BITS = 2 + 5 + 6 + 64;
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int timeOffset;
+    private final int valueOffset;
+
+    private TimeSeriesSegment(File file, ByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = buffer.getInt(CAPACITY);
+        this.timeOffset = HEADER_SIZE;
+        this.valueOffset = HEADER_SIZE + capacity;
+    }
+
+    static TimeSeriesSegment create(File file, int capacity)
+            throws IOException {
+        MappedByteBuffer buffer =
+                map(file, FileChannel.MapMode.READ_WRITE, HEADER_SIZE
+                        + capacity * 2);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(CAPACITY, capacity);
+        return new TimeSeriesSegment(file, buffer);
+    }
+
+    /**
+     * @param writable
+     *            falseの場合はマップせず、ファイルの内容をヒープに読み込む
+     */
+    static TimeSeriesSegment open(File file, boolean writable)
+            throws IOException {
+        ByteBuffer buffer =
+                writable ? map(file, FileChannel.MapMode.READ_WRITE,
+                        file.length()) : load(file);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a time series segment: " + file);
+        }
+        return new TimeSeriesSegment(file, buffer);
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode,
+            long size) throws IOException {
+        RandomAccessFile raf =
+                new RandomAccessFile(file,
+                        mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            return raf.getChannel().map(mode, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getCount() {
+        return buffer.getInt(COUNT);
+    }
+
+    long getFirstTime() {
+        return buffer.getLong(FIRST_TIME);
+    }
+
+    long getLastTime() {
+        return buffer.getLong(LAST_TIME);
+    }
+
+    boolean isFull() {
+        return buffer.getInt(TIME_BITS) + MAX_TIME_BITS > capacity * 8
+                || buffer.getInt(VALUE_BITS) + MAX_VALUE_BITS > capacity * 8;
+    }
+
+    void append(long time, double value) {
+        int count = buffer.getInt(COUNT);
+        int timeBits = buffer.getInt(TIME_BITS);
+        int valueBits = buffer.getInt(VALUE_BITS);
+        long bits = Double.doubleToRawLongBits(value);
+
+        if (count == 0) {
+            timeBits = writeBits(timeOffset, timeBits, time, 64);
+            valueBits = writeBits(valueOffset, valueBits, bits, 64);
+            buffer.putLong(FIRST_TIME, time);
+            buffer.putLong(LAST_DELTA, 0L);
+            buffer.putInt(LEADING, -1);
+            buffer.putInt(TRAILING, 0);
+        } else {
+            long delta = time - buffer.getLong(LAST_TIME);
+            long dod = delta - buffer.getLong(LAST_DELTA);
+            timeBits = writeTime(timeBits, dod);
+            valueBits =
+                    writeValue(valueBits, bits ^ buffer.getLong(LAST_VALUE));
+            buffer.putLong(LAST_DELTA, delta);
+        }
+
+        buffer.putLong(LAST_TIME, time);
+        buffer.putLong(LAST_VALUE, bits);
+        buffer.putInt(TIME_BITS, timeBits);
+        buffer.putInt(VALUE_BITS, valueBits);
+        // 件数は最後に更新する
+        buffer.putInt(COUNT, count + 1);
+    }
+
+    private int writeTime(int pos, long dod) {
+        if (dod == 0) {
+            return writeBits(timeOffset, pos, 0L, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            pos = writeBits(timeOffset, pos, 0x2L, 2);
+            return writeBits(timeOffset, pos, dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            pos = writeBits(timeOffset, pos, 0x6L, 3);
+            return writeBits(timeOffset, pos, dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            pos = writeBits(timeOffset, pos, 0xeL, 4);
+            return writeBits(timeOffset, pos, dod, 12);
+        } else {
+            pos = writeBits(timeOffset, pos, 0xfL, 4);
+            return writeBits(timeOffset, pos, dod, 64);
+        }
+    }
+
+    private int writeValue(int pos, long xor) {
+        if (xor == 0L) {
+            return writeBits(valueOffset, pos, 0L, 1);
+        }
+
+        int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+        int trailing = Long.numberOfTrailingZeros(xor);
+        int prevLeading = buffer.getInt(LEADING);
+        int prevTrailing = buffer.getInt(TRAILING);
+
+        if (prevLeading >= 0 && leading >= prevLeading
+                && trailing >= prevTrailing) {
+            pos = writeBits(valueOffset, pos, 0x2L, 2);
+            int length = 64 - prevLeading - prevTrailing;
+            return writeBits(valueOffset, pos, xor >>> prevTrailing, length);
+        }
+
+        int length = 64 - leading - trailing;
+        pos = writeBits(valueOffset, pos, 0x3L, 2);
+        pos = writeBits(valueOffset, pos, leading, 5);
+        pos = writeBits(valueOffset, pos, length & 0x3f, 6);
+        buffer.putInt(LEADING, leading);
+        buffer.putInt(TRAILING, trailing);
+        return writeBits(valueOffset, pos, xor >>> trailing, length);
+    }
+
+    /**
+     * [from, to)の値をresultに追加する
+     */
+    void read(String title, int level, long from, long to,
+            List<MonitorRecord> result) {
+        int count = buffer.getInt(COUNT);
+        if (count == 0) {
+            return;
+        }
+
+        long[] timePos = new long[] { 0 };
+        long[] valuePos = new long[] { 0 };
+
+        long time = readBits(timeOffset, timePos, 64);
+        long bits = readBits(valueOffset, valuePos, 64);
+        long delta = 0L;
+        int leading = 0;
+        int trailing = 0;
+
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) {
+                delta += readTime(timePos);
+
+                time += delta;
+                if (readBits(valueOffset, valuePos, 1) != 0L) {
+                    if (readBits(valueOffset, valuePos, 1) != 0L) {
+                        leading = (int) readBits(valueOffset, valuePos, 5);
+                        int length = (int) readBits(valueOffset, valuePos, 6);
+                        if (length == 0) {
+                            length = 64;
+                        }
+                        trailing = 64 - leading - length;
+                    }
+                    int length = 64 - leading - trailing;
+                    bits ^= readBits(valueOffset, valuePos, length) << trailing;
+                }
+            }
+            if (time >= to) {
+                break;
+            }
+            if (time >= from) {
+                result.add(new MonitorRecord(time, title, level,
+                        Double.longBitsToDouble(bits)));
+            }
+        }
+    }
+
+    private long readTime(long[] pos) {
+        if (readBits(timeOffset, pos, 1) == 0L) {
+            return 0L;
+        } else if (readBits(timeOffset, pos, 1) == 0L) {
+            return signExtend(readBits(timeOffset, pos, 7), 7);
+        } else if (readBits(timeOffset, pos, 1) == 0L) {
+            return signExtend(readBits(timeOffset, pos, 9), 9);
+        } else if (readBits(timeOffset, pos, 1) == 0L) {
+            return signExtend(readBits(timeOffset, pos, 12), 12);
+        } else {
+            return readBits(timeOffset, pos, 64);
+        }
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    /**
+     * 上位ビットから順にnbitsビットを書き込み、次の位置を返す。
+     *
+     * 異常終了時に件数を更新する前の追記が残っている場合があるため、0のビットも書き込む
+     */
+    private int writeBits(int offset, int pos, long value, int nbits) {
+        for (int i = nbits - 1; i >= 0; --i) {
+            int index = offset + (pos >>> 3);
+            int mask = 0x80 >>> (pos & 7);
+            if (((value >>> i) & 1L) != 0L) {
+                buffer.put(index, (byte) (buffer.get(index) | mask));
+            } else {
+                buffer.put(index, (byte) (buffer.get(index) & ~mask));
+            }
+            ++pos;
+        }
+        return pos;
+    }
+
+    private long readBits(int offset, long[] pos, int nbits) {
+        long value = 0L;
+        int p = (int) pos[0];
+        for (int i = 0; i < nbits; ++i) {
+            int b = buffer.get(offset + (p >>> 3)) & (0x80 >>> (p & 7));
+            value = (value << 1) | (b != 0 ? 1L : 0L);
+            ++p;
+        }
+        pos[0] = p;
+        return value;
+    }
+
+    void force() {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.karatachi.daemon.monitor;
+
+import java.util.Arrays;
+
+/**
+ * CollectorDaemonの1列について直近window(ms)の集計値を保持する。
+ *
+ * 集計値はデータ追加時に更新されるため、参照はウィンドウの長さによらず定数時間。
+ * 最小値・最大値は単調キュー、パーセンタイルはウィンドウ内の値をソート済み配列で保持して求める。
+ * NaNの値は集計に含めない。
+ */
+public final class WindowAggregate {
+    private final int index;
+    private final long window;
+    private final int capacity;
+
+    // 以下はCollectorDaemonのスレッドからのみ更新する
+    private final long[] times;
+    private final double[] values;
+    private long head;
+    private long tail;
+
+    private final long[] minDeque;
+    private final long[] maxDeque;
+    private long minHead, minTail;
+    private long maxHead, maxTail;
+
+    private final double[] sorted;
+
+    private double sum;
+    private double sumOfSquares;
+    private int removedSinceRecalc;
+
+    private double ewmaValue;
+
+    // 参照用
+    private volatile int count;
+    private volatile double min = Double.NaN;
+    private volatile double max = Double.NaN;
+    private volatile double mean = Double.NaN;
+    private volatile double stdDev = Double.NaN;
+    private volatile double percentile50 = Double.NaN;
+    private volatile double percentile95 = Double.NaN;
+    private volatile double percentile99 = Double.NaN;
+    private volatile double ewma = Double.NaN;
+    private volatile double rate = Double.NaN;
+
+    WindowAggregate(int index, long window, long interval) {
+        if (window <= 0L) {
+            throw new IllegalArgumentException("window: " + window);
+        }
+        this.index = index;
+        this.window = window;
+        this.capacity = (int) (window / Math.max(1L, interval)) + 2;
+
+        this.times = new long[capacity];
+        this.values = new double[capacity];
+        this.minDeque = new long[capacity];
+        this.maxDeque = new long[capacity];
+        this.sorted = new double[capacity];
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * ウィンドウ内のデータ数
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getStdDev() {
+        return stdDev;
+    }
+
+    public double getPercentile50() {
+        return percentile50;
+    }
+
+    public double getPercentile95() {
+        return percentile95;
+    }
+
+    public double getPercentile99() {
+        return percentile99;
+    }
+
+    /**
+     * 時定数をwindowとした指数移動平均
+     */
+    public double getEwma() {
+        return ewma;
+    }
+
+    /**
+     * ウィンドウ内の最古のデータから最新のデータまでの1秒あたりの変化量
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    void add(long time, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        while (head < tail && times[slot(head)] <= time - window) {
+            remove();
+        }
+        if (tail - head == capacity) {
+            remove();
+        }
+
+        if (head < tail) {
+            long last = times[slot(tail - 1)];
+            double alpha = 1.0 - Math.exp(-(double) (time - last) / window);
+            ewmaValue += alpha * (value - ewmaValue);
+        } else {
+            ewmaValue = value;
+        }
+
+        long i = tail++;
+        times[slot(i)] = time;
+        values[slot(i)] = value;
+
+        while (minTail > minHead
+                && values[slot(minDeque[slot(minTail - 1)])] >= value) {
+            --minTail;
+        }
+        minDeque[slot(minTail++)] = i;
+        while (maxTail > maxHead
+                && values[slot(maxDeque[slot(maxTail - 1)])] <= value) {
+            --maxTail;
+        }
+        maxDeque[slot(maxTail++)] = i;
+
+        int n = (int) (tail - head) - 1;
+        int pos = Arrays.binarySearch(sorted, 0, n, value);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        System.arraycopy(sorted, pos, sorted, pos + 1, n - pos);
+        sorted[pos] = value;
+
+        sum += value;
+        sumOfSquares += value * value;
+
+        publish();
+    }
+
+    private void remove() {
+        long i = head++;
+        double value = values[slot(i)];
+
+        if (minHead < minTail && minDeque[slot(minHead)] == i) {
+            ++minHead;
+        }
+        if (maxHead < maxTail && maxDeque[slot(maxHead)] == i) {
+            ++maxHead;
+        }
+
+        int n = (int) (tail - head) + 1;
+        int pos = Arrays.binarySearch(sorted, 0, n, value);
+        System.arraycopy(sorted, pos + 1, sorted, pos, n - pos - 1);
+
+        // 加減算の誤差が蓄積しないよう定期的に計算し直す
+        if (++removedSinceRecalc >= capacity) {
+            removedSinceRecalc = 0;
+            sum = 0;
+            sumOfSquares = 0;
+            for (long j = head; j < tail; ++j) {
+                double v = values[slot(j)];
+                sum += v;
+                sumOfSquares += v * v;
+            }
+        } else {
+            sum -= value;
+            sumOfSquares -= value * value;
+        }
+    }
+
+    private void publish() {
+        int n = (int) (tail - head);
+        double mean = sum / n;
+        double variance = Math.max(0.0, sumOfSquares / n - mean * mean);
+
+        this.min = values[slot(minDeque[slot(minHead)])];
+        this.max = values[slot(maxDeque[slot(maxHead)])];
+        this.mean = mean;
+        this.stdDev = Math.sqrt(variance);
+        this.percentile50 = percentile(n, 50);
+        this.percentile95 = percentile(n, 95);
+        this.percentile99 = percentile(n, 99);
+        this.ewma = ewmaValue;
+
+        long elapsed = times[slot(tail - 1)] - times[slot(head)];
+        this.rate =
+                elapsed > 0L ? (values[slot(tail - 1)] - values[slot(head)])
+                        * 1000.0 / elapsed : Double.NaN;
+        this.count = n;
+    }
+
+    private double percentile(int n, int percent) {
+        int rank = (n * percent + 99) / 100;
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private int slot(long i) {
+        return (int) (i % capacity);
+    }
+}
@@ -0,0 +1,11 @@
+package org.karatachi.daemon.producer;
+
+/**
+ * AutoScalerが使用するWorker数の決定方法
+ */
+public interface AutoScalePolicy {
+    /**
+     * 望ましいWorker数を返す。最小値・最大値への丸め、ヒステリシス、クールダウンはAutoScalerが行う
+     */
+    int getDesiredCount(AutoScaleStatus status);
+}
@@ -0,0 +1,54 @@
+package org.karatachi.daemon.producer;
+
+/**
+ * AutoScalerが1回の判定で採取した値
+ */
+public final class AutoScaleStatus {
+    private final long sampled;
+    private final int count;
+    private final int queueSize;
+    private final double utilization;
+    private final double throughput;
+
+    public AutoScaleStatus(long sampled, int count, int queueSize,
+            double utilization, double throughput) {
+        this.sampled = sampled;
+        this.count = count;
+        this.queueSize = queueSize;
+        this.utilization = utilization;
+        this.throughput = throughput;
+    }
+
+    public long getSampled() {
+        return sampled;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Workerの稼働率の平均(0.0～1.0)
+     */
+    public double getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * 前回の判定からのcommit数(件/秒)
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "count=%d, queue=%d, utilization=%.2f, throughput=%.1f/s",
+                count, queueSize, utilization, throughput);
+    }
+}
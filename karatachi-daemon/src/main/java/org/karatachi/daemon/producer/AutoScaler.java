@@ -0,0 +1,179 @@
+package org.karatachi.daemon.producer;
+
+import java.util.List;
+
+import org.karatachi.daemon.Daemon;
+
+/**
+ * ProducerWorkerDaemonGroupのWorker数を待ち行列の長さ、稼働率、スループットに応じて増減する。
+ *
+ * 増減の方向が同じ判定が指定回数続き、前回の変更からクールダウン時間が経過した場合のみWorker数を変更する。
+ */
+public class AutoScaler extends Daemon {
+    private final ProducerWorkerDaemonGroup group;
+    private final AutoScalePolicy policy;
+    private final int minCount;
+    private final int maxCount;
+    private final long interval;
+
+    private volatile long scaleUpCooldown;
+    private volatile long scaleDownCooldown;
+    private volatile int scaleUpSamples;
+    private volatile int scaleDownSamples;
+
+    private int pendingDirection;
+    private int pendingSamples;
+    private long lastScaled;
+    private long lastSampled;
+    private long lastCompleted;
+
+    private volatile AutoScaleStatus lastStatus;
+
+    public AutoScaler(ProducerWorkerDaemonGroup group, AutoScalePolicy policy,
+            int minCount, int maxCount, long interval) {
+        super(group.getGroupName() + "-AutoScaler");
+        if (minCount < 0 || maxCount < minCount) {
+            throw new IllegalArgumentException(String.format(
+                    "minCount=%d, maxCount=%d", minCount, maxCount));
+        }
+
+        this.group = group;
+        this.policy = policy;
+        this.minCount = minCount;
+        this.maxCount = maxCount;
+        this.interval = interval;
+
+        this.scaleUpCooldown = interval;
+        this.scaleDownCooldown = interval * 10;
+        this.scaleUpSamples = 2;
+        this.scaleDownSamples = 3;
+    }
+
+    public final ProducerWorkerDaemonGroup getGroup() {
+        return group;
+    }
+
+    public final int getMinCount() {
+        return minCount;
+    }
+
+    public final int getMaxCount() {
+        return maxCount;
+    }
+
+    public final AutoScaleStatus getLastStatus() {
+        return lastStatus;
+    }
+
+    /**
+     * 前回のWorker数変更から次の変更までの最短時間(ms)
+     */
+    public final void setCooldown(long scaleUpCooldown, long scaleDownCooldown) {
+        this.scaleUpCooldown = scaleUpCooldown;
+        this.scaleDownCooldown = scaleDownCooldown;
+    }
+
+    /**
+     * Worker数を変更するまでに同じ方向の判定が連続して必要な回数
+     */
+    public final void setStableSamples(int scaleUpSamples, int scaleDownSamples) {
+        this.scaleUpSamples = Math.max(1, scaleUpSamples);
+        this.scaleDownSamples = Math.max(1, scaleDownSamples);
+    }
+
+    @Override
+    protected void updateNextRun() {
+        setNextRun(getLastStarted() + interval);
+    }
+
+    @Override
+    protected void work() throws Exception {
+        if (!group.isRunning()) {
+            return;
+        }
+
+        AutoScaleStatus status = sample();
+        lastStatus = status;
+
+        int current = status.getCount();
+        int desired =
+                Math.max(minCount,
+                        Math.min(maxCount, policy.getDesiredCount(status)));
+        int direction = Integer.signum(desired - current);
+        if (direction != pendingDirection) {
+            pendingDirection = direction;
+            pendingSamples = 0;
+        }
+        if (direction == 0) {
+            setDetailText("%s", status);
+            return;
+        }
+        ++pendingSamples;
+
+        long now = status.getSampled();
+        boolean outOfBounds = current < minCount || current > maxCount;
+        boolean stable, cooled;
+        if (direction > 0) {
+            stable = pendingSamples >= scaleUpSamples;
+            cooled = now - lastScaled >= scaleUpCooldown;
+        } else {
+            stable = pendingSamples >= scaleDownSamples;
+            cooled = now - lastScaled >= scaleDownCooldown;
+        }
+
+        if (outOfBounds || (stable && cooled)) {
+            if (group.setCount(this, desired)) {
+                logger.info("Scaled {} from {} to {}: {}", new Object[] {
+                        group.getGroupName(), current, desired, status });
+                lastScaled = now;
+                pendingDirection = 0;
+                pendingSamples = 0;
+            }
+        }
+        setDetailText("%s, desired=%d", status, desired);
+    }
+
+    private AutoScaleStatus sample() {
+        long now = System.currentTimeMillis();
+        long completed = group.getCompletedTaskCount();
+
+        List<WorkerDaemon> workers = group.getWorkers();
+        double utilization = 0.0;
+        for (WorkerDaemon worker : workers) {
+            utilization += getUtilization(worker);
+        }
+        if (!workers.isEmpty()) {
+            utilization /= workers.size();
+        }
+
+        double throughput = 0.0;
+        if (lastSampled > 0L && now > lastSampled) {
+            throughput = (completed - lastCompleted) * 1000.0 / (now - lastSampled);
+        }
+        lastSampled = now;
+        lastCompleted = completed;
+
+        return new AutoScaleStatus(now, workers.size(),
+                group.getTaskQueueSize(), utilization, throughput);
+    }
+
+    /**
+     * 直近の実行時間と実行間隔の比。実行中は1.0、次の実行が予定されずにwakeup()を待っている場合は0.0
+     */
+    private double getUtilization(WorkerDaemon worker) {
+        if (worker.getStatus() == Thread.State.RUNNABLE) {
+            return 1.0;
+        }
+        long lastStarted = worker.getLastStarted();
+        long nextRun = worker.getNextRun();
+        if (lastStarted == 0L || nextRun < 0L) {
+            return 0.0;
+        }
+        long execution = worker.getLastExecutionTime();
+        long period = nextRun - lastStarted;
+        if (period <= execution) {
+            return 1.0;
+        }
+        return (double) execution / period;
+    }
+}
@@ -3,31 +3,59 @@ package org.karatachi.daemon.producer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.karatachi.daemon.Daemon;
 
 public abstract class ProducerDaemon extends Daemon {
     protected final ProducerWorkerDaemonGroup owner;
 
-    protected volatile ConcurrentSkipListSet<WorkerTask> queue;
-    protected final ConcurrentLinkedQueue<WorkerTask> running;
+    protected volatile WorkerTaskQueue queue;
+    protected final Set<WorkerTask> running;
+    protected final Set<WorkerTask> cancelled;
     protected final ConcurrentLinkedQueue<WorkerTask> finished;
 
     public ProducerDaemon(ProducerWorkerDaemonGroup owner, String name) {
+        this(owner, name, 1);
+    }
+
+    /**
+     * @param shards
+     *            1より大きい場合、タスクのhashCodeでshards個に分割した待ち行列(WorkStealingTaskQueue)を使う
+     */
+    public ProducerDaemon(ProducerWorkerDaemonGroup owner, String name,
+            int shards) {
         super(name);
 
         this.owner = owner;
 
-        this.queue = new ConcurrentSkipListSet<WorkerTask>();
-        this.running = new ConcurrentLinkedQueue<WorkerTask>();
+        this.queue = WorkerTaskQueue.newInstance(shards);
+        this.running =
+                Collections.newSetFromMap(new ConcurrentHashMap<WorkerTask, Boolean>());
+        this.cancelled =
+                Collections.newSetFromMap(new ConcurrentHashMap<WorkerTask, Boolean>());
         this.finished = new ConcurrentLinkedQueue<WorkerTask>();
     }
 
     protected WorkerTask poll() {
-        WorkerTask task = queue.pollFirst();
+        WorkerTask task = queue.poll(0);
+        if (task != null) {
+            running.add(task);
+        }
+        return task;
+    }
+
+    /**
+     * 待ち行列を分割していない場合はpoll()を呼び出す
+     */
+    protected WorkerTask poll(int shard) {
+        if (queue.getShardCount() <= 1) {
+            return poll();
+        }
+        WorkerTask task = queue.poll(shard);
         if (task != null) {
             running.add(task);
         }
@@ -36,18 +64,27 @@ public abstract class ProducerDaemon extends Daemon {
 
     protected void commit(WorkerTask task) {
         if (running.remove(task)) {
+            cancelled.remove(task);
             finished.add(task);
         }
     }
 
     protected void rollback(WorkerTask task) {
-        if (running.remove(task)) {
+        if (running.remove(task) && !cancelled.remove(task)) {
             queue.add(task);
         }
     }
 
     public final SortedSet<WorkerTask> getTaskQueue() {
-        return Collections.unmodifiableSortedSet(queue);
+        return queue.toSortedSet();
+    }
+
+    public final int getTaskQueueSize() {
+        return queue.size();
+    }
+
+    public final int getShardCount() {
+        return queue.getShardCount();
     }
 
     protected void addTask(Collection<? extends WorkerTask> tasks) {
@@ -55,20 +92,62 @@ public abstract class ProducerDaemon extends Daemon {
         owner.wakeup();
     }
 
+    protected void removeTask(Collection<? extends WorkerTask> tasks) {
+        applyDelta(new WorkerTaskDelta().removeAll(tasks));
+    }
+
     protected void clearTask() {
         queue.clear();
     }
 
+    /**
+     * 待ち行列をその場で更新する。削除対象が実行中の場合はrollback時に再投入しない
+     */
+    protected final void applyDelta(WorkerTaskDelta delta) {
+        for (WorkerTask task : delta.getRemoved()) {
+            if (!queue.remove(task) && running.contains(task)) {
+                cancelled.add(task);
+                if (!running.contains(task)) {
+                    cancelled.remove(task);
+                }
+            }
+        }
+        for (WorkerTask task : delta.getAdded()) {
+            if (running.contains(task)) {
+                cancelled.remove(task);
+            } else {
+                queue.add(task);
+            }
+        }
+    }
+
     @Override
     protected void work() throws Exception {
         if (owner.getCount() == 0) {
             return;
         }
 
+        WorkerTaskDelta delta = diffTask();
+        if (delta != null) {
+            finished.clear();
+            if (!delta.isEmpty()) {
+                applyDelta(delta);
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                owner.wakeup();
+            }
+
+            setDetailText("Queue size: %s", queue.size());
+            return;
+        }
+
         List<? extends WorkerTask> replace = replaceTask();
         if (replace != null) {
-            ConcurrentSkipListSet<WorkerTask> newTaskQueue =
-                    new ConcurrentSkipListSet<WorkerTask>(replace);
+            WorkerTaskQueue newTaskQueue = queue.newInstance();
+            newTaskQueue.addAll(replace);
 
             newTaskQueue.removeAll(running);
 
@@ -90,5 +169,17 @@ public abstract class ProducerDaemon extends Daemon {
         setDetailText("Queue size: %s", queue.size());
     }
 
-    protected abstract List<? extends WorkerTask> replaceTask();
+    /**
+     * 待ち行列全体を置き換えるタスクの一覧を返す。diffTask()がnullを返した場合に呼ばれる
+     */
+    protected List<? extends WorkerTask> replaceTask() {
+        return null;
+    }
+
+    /**
+     * 前回からの差分を返すと待ち行列を再構築せずにその場で更新する。nullの場合はreplaceTask()を使用する
+     */
+    protected WorkerTaskDelta diffTask() {
+        return null;
+    }
 }
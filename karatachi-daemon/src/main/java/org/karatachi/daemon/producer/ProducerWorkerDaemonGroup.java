@@ -1,17 +1,26 @@
 package org.karatachi.daemon.producer;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.karatachi.daemon.Daemon;
 import org.karatachi.daemon.DaemonGroup;
 
 public abstract class ProducerWorkerDaemonGroup extends DaemonGroup {
     private final ProducerDaemon producer;
+    private final AtomicInteger shardCounter = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+
+    private AutoScaler autoScaler;
+    private boolean autoScalerActive;
 
     public ProducerWorkerDaemonGroup(String name) {
-        super(name);
+        super(name, new WorkerDaemonMetrics());
         producer = newProducerInstance(groupName + "-0");
     }
 
@@ -19,8 +28,18 @@ public abstract class ProducerWorkerDaemonGroup extends DaemonGroup {
         return producer.poll();
     }
 
+    protected final WorkerTask poll(int shard) {
+        return producer.poll(shard);
+    }
+
+    final int nextShard() {
+        return (shardCounter.getAndIncrement() & 0x7fffffff)
+                % producer.getShardCount();
+    }
+
     protected final void commit(WorkerTask task) {
         producer.commit(task);
+        completedCount.incrementAndGet();
     }
 
     protected final void rollback(WorkerTask task) {
@@ -31,10 +50,76 @@ public abstract class ProducerWorkerDaemonGroup extends DaemonGroup {
         return producer.getTaskQueue();
     }
 
+    public final int getTaskQueueSize() {
+        return producer.getTaskQueueSize();
+    }
+
+    public final long getCompletedTaskCount() {
+        return completedCount.get();
+    }
+
+    public final synchronized List<WorkerDaemon> getWorkers() {
+        List<WorkerDaemon> ret = new ArrayList<WorkerDaemon>(daemons.size());
+        for (Daemon daemon : daemons) {
+            ret.add((WorkerDaemon) daemon);
+        }
+        return ret;
+    }
+
+    public final synchronized AutoScaler getAutoScaler() {
+        return autoScaler;
+    }
+
+    /**
+     * Worker数の自動調整を設定する。nullの場合は停止する。起動中の場合は直ちに切り替える
+     */
+    public final synchronized void setAutoScaler(AutoScaler autoScaler)
+            throws InterruptedException {
+        if (autoScaler != null && autoScaler.getGroup() != this) {
+            throw new IllegalArgumentException("AutoScaler of another group.");
+        }
+        if (this.autoScaler != null) {
+            stopAutoScaler();
+        }
+        this.autoScaler = autoScaler;
+        if (autoScaler != null && isRunning()) {
+            startAutoScaler();
+        }
+    }
+
+    final synchronized boolean setCount(AutoScaler autoScaler, int count) {
+        if (this.autoScaler != autoScaler || !autoScalerActive) {
+            return false;
+        }
+        return setCount(count);
+    }
+
+    private void startAutoScaler() {
+        if (getExecutor() != null) {
+            autoScaler.setExecutor(getExecutor());
+        }
+        autoScalerActive = true;
+        autoScaler.startup();
+    }
+
+    private void stopAutoScaler() throws InterruptedException {
+        autoScalerActive = false;
+        autoScaler.shutdown();
+        // AutoScalerがsetCount()でロック待ちの場合があるため、ロックを解放して終了を待つ
+        while (autoScaler.getStatus() != Thread.State.TERMINATED) {
+            wait(10L);
+        }
+        autoScaler.join();
+    }
+
     protected void addTask(Collection<? extends WorkerTask> tasks) {
         producer.addTask(tasks);
     }
 
+    protected void removeTask(Collection<? extends WorkerTask> tasks) {
+        producer.removeTask(tasks);
+    }
+
     protected void clearTask() {
         producer.clearTask();
     }
@@ -42,17 +127,29 @@ public abstract class ProducerWorkerDaemonGroup extends DaemonGroup {
     @Override
     public synchronized LinkedList<Daemon> getDaemons() {
         LinkedList<Daemon> ret = super.getDaemons();
+        if (autoScaler != null) {
+            ret.addFirst(autoScaler);
+        }
         ret.addFirst(producer);
         return ret;
     }
 
     @Override
     protected synchronized void initialize() {
+        if (getExecutor() != null) {
+            producer.setExecutor(getExecutor());
+        }
         producer.startup();
+        if (autoScaler != null) {
+            startAutoScaler();
+        }
     }
 
     @Override
     protected synchronized void cleanup() throws InterruptedException {
+        if (autoScaler != null) {
+            stopAutoScaler();
+        }
         producer.shutdown();
         producer.join();
     }
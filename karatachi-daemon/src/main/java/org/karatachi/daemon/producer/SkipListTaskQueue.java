@@ -0,0 +1,69 @@
+package org.karatachi.daemon.producer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * 全WorkerDaemonで単一のConcurrentSkipListSetを共有する待ち行列
+ */
+public class SkipListTaskQueue extends WorkerTaskQueue {
+    private final ConcurrentSkipListSet<WorkerTask> queue =
+            new ConcurrentSkipListSet<WorkerTask>();
+
+    @Override
+    public int getShardCount() {
+        return 1;
+    }
+
+    @Override
+    public WorkerTask poll(int shard) {
+        return queue.pollFirst();
+    }
+
+    @Override
+    public boolean add(WorkerTask task) {
+        return queue.add(task);
+    }
+
+    @Override
+    public void addAll(Collection<? extends WorkerTask> tasks) {
+        queue.addAll(tasks);
+    }
+
+    @Override
+    public boolean remove(WorkerTask task) {
+        return queue.remove(task);
+    }
+
+    @Override
+    public boolean contains(WorkerTask task) {
+        return queue.contains(task);
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        queue.clear();
+    }
+
+    @Override
+    public SortedSet<WorkerTask> toSortedSet() {
+        return Collections.unmodifiableSortedSet(queue);
+    }
+
+    @Override
+    public WorkerTaskQueue newInstance() {
+        return new SkipListTaskQueue();
+    }
+}
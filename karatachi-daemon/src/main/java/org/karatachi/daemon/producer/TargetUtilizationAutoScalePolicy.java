@@ -0,0 +1,63 @@
+package org.karatachi.daemon.producer;
+
+/**
+ * Workerの稼働率が目標値に近づくようにWorker数を増減する。
+ *
+ * 稼働率が目標値を上回っており待ち行列にタスクが残っている場合は、現在のスループットで待ち行列をdrainTime以内に処理できるWorker数まで増やす。
+ */
+public class TargetUtilizationAutoScalePolicy implements AutoScalePolicy {
+    private final double targetUtilization;
+    private final double tolerance;
+    private final long drainTime;
+
+    public TargetUtilizationAutoScalePolicy() {
+        this(0.7, 0.1, 10000L);
+    }
+
+    /**
+     * @param targetUtilization
+     *            目標とする稼働率(0.0～1.0)
+     * @param tolerance
+     *            目標値との差がこの割合以下の場合はWorker数を変更しない
+     * @param drainTime
+     *            待ち行列を処理し終えるまでの目標時間(ms)。0以下の場合は待ち行列の長さを考慮しない
+     */
+    public TargetUtilizationAutoScalePolicy(double targetUtilization,
+            double tolerance, long drainTime) {
+        if (targetUtilization <= 0.0 || targetUtilization > 1.0) {
+            throw new IllegalArgumentException("targetUtilization: "
+                    + targetUtilization);
+        }
+        this.targetUtilization = targetUtilization;
+        this.tolerance = tolerance;
+        this.drainTime = drainTime;
+    }
+
+    @Override
+    public int getDesiredCount(AutoScaleStatus status) {
+        int count = status.getCount();
+        int queueSize = status.getQueueSize();
+        if (count == 0) {
+            return queueSize > 0 ? 1 : 0;
+        }
+
+        double ratio = status.getUtilization() / targetUtilization;
+        int desired = count;
+        if (Math.abs(ratio - 1.0) > tolerance) {
+            desired = (int) Math.ceil(count * ratio);
+        }
+
+        if (queueSize > 0 && drainTime > 0L && ratio >= 1.0 - tolerance) {
+            double perWorker = status.getThroughput() / count;
+            if (perWorker > 0.0) {
+                int backlog =
+                        (int) Math.ceil(queueSize
+                                / (perWorker * drainTime / 1000.0));
+                desired = Math.max(desired, backlog);
+            } else {
+                desired = Math.max(desired, count + 1);
+            }
+        }
+        return desired;
+    }
+}
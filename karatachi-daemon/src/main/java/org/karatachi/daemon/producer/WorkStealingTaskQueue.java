@@ -0,0 +1,117 @@
+package org.karatachi.daemon.producer;
+
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * タスクのhashCodeで待ち行列を分割する。WorkerDaemonは割り当てられた行列から取り出し、空になったら他の行列の先頭から盗む。
+ * WorkerTask.compareTo()の順序は各行列内でのみ保たれる。
+ */
+public class WorkStealingTaskQueue extends WorkerTaskQueue {
+    private final ConcurrentSkipListSet<WorkerTask>[] shards;
+    private final AtomicInteger[] sizes;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public WorkStealingTaskQueue(int shards) {
+        this.shards = new ConcurrentSkipListSet[shards];
+        this.sizes = new AtomicInteger[shards];
+        for (int i = 0; i < shards; ++i) {
+            this.shards[i] = new ConcurrentSkipListSet<WorkerTask>();
+            this.sizes[i] = new AtomicInteger();
+        }
+    }
+
+    private int shardOf(WorkerTask task) {
+        int h = task.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    @Override
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public WorkerTask poll(int shard) {
+        int own = shard % shards.length;
+        WorkerTask task = shards[own].pollFirst();
+        if (task != null) {
+            sizes[own].decrementAndGet();
+            return task;
+        }
+
+        for (int i = 1; i < shards.length; ++i) {
+            int victim = (own + i) % shards.length;
+            if (sizes[victim].get() == 0) {
+                continue;
+            }
+            task = shards[victim].pollFirst();
+            if (task != null) {
+                sizes[victim].decrementAndGet();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean add(WorkerTask task) {
+        int shard = shardOf(task);
+        if (shards[shard].add(task)) {
+            sizes[shard].incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove(WorkerTask task) {
+        int shard = shardOf(task);
+        if (shards[shard].remove(task)) {
+            sizes[shard].decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(WorkerTask task) {
+        return shards[shardOf(task)].contains(task);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (AtomicInteger shardSize : sizes) {
+            size += shardSize.get();
+        }
+        return Math.max(size, 0);
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < shards.length; ++i) {
+            while (shards[i].pollFirst() != null) {
+                sizes[i].decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public SortedSet<WorkerTask> toSortedSet() {
+        TreeSet<WorkerTask> ret = new TreeSet<WorkerTask>();
+        for (ConcurrentSkipListSet<WorkerTask> shard : shards) {
+            ret.addAll(shard);
+        }
+        return Collections.unmodifiableSortedSet(ret);
+    }
+
+    @Override
+    public WorkerTaskQueue newInstance() {
+        return new WorkStealingTaskQueue(shards.length);
+    }
+}
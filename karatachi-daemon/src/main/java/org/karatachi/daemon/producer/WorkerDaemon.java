@@ -5,25 +5,39 @@ import org.karatachi.daemon.Daemon;
 public abstract class WorkerDaemon extends Daemon {
     protected final ProducerWorkerDaemonGroup owner;
 
+    private final int shard;
+
     public WorkerDaemon(ProducerWorkerDaemonGroup owner, String name) {
-        super(name);
+        super(name, new WorkerDaemonMetrics());
 
         this.owner = owner;
+        this.shard = owner.nextShard();
+    }
+
+    public final int getShard() {
+        return shard;
     }
 
     @Override
     protected final void work() throws Exception {
+        WorkerDaemonMetrics metrics = (WorkerDaemonMetrics) getMetrics();
         WorkerTask task;
-        while ((task = owner.poll()) != null) {
+        while ((task = owner.poll(shard)) != null) {
+            long begin = System.nanoTime();
+            boolean committed = false;
             try {
                 if (work(task)) {
                     owner.commit(task);
+                    committed = true;
                 } else {
                     owner.rollback(task);
                 }
             } catch (Exception e) {
                 owner.rollback(task);
                 throw e;
+            } finally {
+                metrics.recordTask((System.nanoTime() - begin) / 1000L,
+                        committed);
             }
 
             if (Thread.interrupted()) {
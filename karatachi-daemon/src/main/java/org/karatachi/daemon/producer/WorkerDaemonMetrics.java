@@ -0,0 +1,81 @@
+package org.karatachi.daemon.producer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.karatachi.concurrent.LatencyHistogram;
+import org.karatachi.daemon.DaemonMetrics;
+
+/**
+ * DaemonMetricsに加えてWorkerTaskごとの処理時間とcommit/rollbackの回数を記録する
+ */
+public class WorkerDaemonMetrics extends DaemonMetrics implements
+        WorkerDaemonMetricsMBean {
+    private final LatencyHistogram taskTime = new LatencyHistogram();
+    private final AtomicLong commitCount = new AtomicLong();
+    private final AtomicLong rollbackCount = new AtomicLong();
+
+    final void recordTask(long micros, boolean committed) {
+        taskTime.record(micros);
+        if (committed) {
+            commitCount.incrementAndGet();
+        } else {
+            rollbackCount.incrementAndGet();
+        }
+        DaemonMetrics parent = getParent();
+        if (parent instanceof WorkerDaemonMetrics) {
+            ((WorkerDaemonMetrics) parent).recordTask(micros, committed);
+        }
+    }
+
+    public final LatencyHistogram getTaskTimeHistogram() {
+        return taskTime;
+    }
+
+    @Override
+    public long getTaskCount() {
+        return taskTime.getCount();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    @Override
+    public long getRollbackCount() {
+        return rollbackCount.get();
+    }
+
+    @Override
+    public double getMeanTaskTime() {
+        return taskTime.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getMaxTaskTime() {
+        return taskTime.getMax() / 1000.0;
+    }
+
+    @Override
+    public double getTaskTime50thPercentile() {
+        return taskTime.getValueAtPercentile(50.0) / 1000.0;
+    }
+
+    @Override
+    public double getTaskTime90thPercentile() {
+        return taskTime.getValueAtPercentile(90.0) / 1000.0;
+    }
+
+    @Override
+    public double getTaskTime99thPercentile() {
+        return taskTime.getValueAtPercentile(99.0) / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        taskTime.reset();
+        commitCount.set(0L);
+        rollbackCount.set(0L);
+    }
+}
@@ -0,0 +1,24 @@
+package org.karatachi.daemon.producer;
+
+import org.karatachi.daemon.DaemonMetricsMBean;
+
+/**
+ * 時間の単位はすべてms
+ */
+public interface WorkerDaemonMetricsMBean extends DaemonMetricsMBean {
+    long getTaskCount();
+
+    long getCommitCount();
+
+    long getRollbackCount();
+
+    double getMeanTaskTime();
+
+    double getMaxTaskTime();
+
+    double getTaskTime50thPercentile();
+
+    double getTaskTime90thPercentile();
+
+    double getTaskTime99thPercentile();
+}
@@ -0,0 +1,45 @@
+package org.karatachi.daemon.producer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 前回のサイクルからのWorkerTaskの追加と削除
+ */
+public class WorkerTaskDelta {
+    private final List<WorkerTask> added = new ArrayList<WorkerTask>();
+    private final List<WorkerTask> removed = new ArrayList<WorkerTask>();
+
+    public WorkerTaskDelta add(WorkerTask task) {
+        added.add(task);
+        return this;
+    }
+
+    public WorkerTaskDelta addAll(Collection<? extends WorkerTask> tasks) {
+        added.addAll(tasks);
+        return this;
+    }
+
+    public WorkerTaskDelta remove(WorkerTask task) {
+        removed.add(task);
+        return this;
+    }
+
+    public WorkerTaskDelta removeAll(Collection<? extends WorkerTask> tasks) {
+        removed.addAll(tasks);
+        return this;
+    }
+
+    public List<WorkerTask> getAdded() {
+        return added;
+    }
+
+    public List<WorkerTask> getRemoved() {
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+}
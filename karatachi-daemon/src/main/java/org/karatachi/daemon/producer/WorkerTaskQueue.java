@@ -0,0 +1,51 @@
+package org.karatachi.daemon.producer;
+
+import java.util.Collection;
+import java.util.SortedSet;
+
+/**
+ * WorkerDaemonが処理するWorkerTaskの待ち行列。shardは各WorkerDaemonに割り当てられた番号
+ */
+public abstract class WorkerTaskQueue {
+    public static WorkerTaskQueue newInstance(int shards) {
+        if (shards <= 1) {
+            return new SkipListTaskQueue();
+        } else {
+            return new WorkStealingTaskQueue(shards);
+        }
+    }
+
+    public abstract int getShardCount();
+
+    public abstract WorkerTask poll(int shard);
+
+    public abstract boolean add(WorkerTask task);
+
+    public abstract boolean remove(WorkerTask task);
+
+    public abstract boolean contains(WorkerTask task);
+
+    public abstract int size();
+
+    public abstract void clear();
+
+    public abstract SortedSet<WorkerTask> toSortedSet();
+
+    public abstract WorkerTaskQueue newInstance();
+
+    public void addAll(Collection<? extends WorkerTask> tasks) {
+        for (WorkerTask task : tasks) {
+            add(task);
+        }
+    }
+
+    public void removeAll(Collection<? extends WorkerTask> tasks) {
+        for (WorkerTask task : tasks) {
+            remove(task);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
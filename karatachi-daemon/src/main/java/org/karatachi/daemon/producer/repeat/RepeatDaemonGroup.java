@@ -1,18 +1,44 @@
 package org.karatachi.daemon.producer.repeat;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.karatachi.daemon.Daemon;
 import org.karatachi.daemon.producer.ProducerDaemon;
 import org.karatachi.daemon.producer.ProducerWorkerDaemonGroup;
 import org.karatachi.daemon.producer.WorkerDaemon;
 import org.karatachi.daemon.producer.WorkerTask;
+import org.karatachi.daemon.producer.WorkerTaskDelta;
 
+/**
+ * RepeatTaskを一定間隔で繰り返し実行する。
+ *
+ * 待ち行列は次回実行時刻順に並んでおり、1つのWorker(leader)だけが先頭タスクの実行時刻まで待機する。
+ * 他のWorkerはleaderがタスクを取り出した時点で起こされるか、workerIntervalごとに確認する。
+ */
 public abstract class RepeatDaemonGroup extends ProducerWorkerDaemonGroup {
     private final long producerInterval;
     private final long workerInterval;
     private final long taskInterval;
 
+    private final AtomicReference<RepeatWorker> leader =
+            new AtomicReference<RepeatWorker>();
+    private final ConcurrentLinkedQueue<RepeatWorker> idleWorkers =
+            new ConcurrentLinkedQueue<RepeatWorker>();
+
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong scheduleLagCount = new AtomicLong();
+    private final AtomicLong totalScheduleLag = new AtomicLong();
+    private final AtomicLong maxScheduleLag = new AtomicLong();
+    private volatile long lastScheduleLag;
+
+    private volatile RepeatTaskScheduler scheduler;
+
     public RepeatDaemonGroup(String name, long producerInterval,
             long workerInterval, long taskInterval) {
         super(name);
@@ -26,66 +52,217 @@ public abstract class RepeatDaemonGroup extends ProducerWorkerDaemonGroup {
     protected abstract void work(Daemon worker, RepeatTask task)
             throws Exception;
 
+    public final long getTaskInterval() {
+        return taskInterval;
+    }
+
+    public final long getExecutedTaskCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * 直近に取り出されたタスクの実行予定時刻からの遅れ(ms)
+     */
+    public final long getLastScheduleLag() {
+        return lastScheduleLag;
+    }
+
+    public final double getAverageScheduleLag() {
+        long count = scheduleLagCount.get();
+        return count == 0 ? 0.0 : (double) totalScheduleLag.get() / count;
+    }
+
+    public final long getMaxScheduleLag() {
+        return maxScheduleLag.get();
+    }
+
+    public final void resetScheduleLag() {
+        executedCount.set(0L);
+        scheduleLagCount.set(0L);
+        totalScheduleLag.set(0L);
+        maxScheduleLag.set(0L);
+        lastScheduleLag = 0L;
+    }
+
+    final long getDeadline(RepeatTask task) {
+        long interval = task.getInterval();
+        if (interval < 0L) {
+            interval = taskInterval;
+        }
+        return task.getLastRunTime() + interval;
+    }
+
+    final void onDeadlineAdvanced() {
+        RepeatWorker current = leader.get();
+        if (current != null) {
+            current.wakeup();
+        } else {
+            promote();
+        }
+    }
+
+    private void promote() {
+        RepeatWorker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            worker.idle.set(false);
+            if (worker.getStatus() != Thread.State.TERMINATED) {
+                worker.wakeup();
+                return;
+            }
+        }
+    }
+
+    private void recordScheduleLag(long lag) {
+        lastScheduleLag = lag;
+        totalScheduleLag.addAndGet(lag);
+        scheduleLagCount.incrementAndGet();
+        long max;
+        while (lag > (max = maxScheduleLag.get())) {
+            if (maxScheduleLag.compareAndSet(max, lag)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected synchronized void onChangeCount(int before, int after) {
+        super.onChangeCount(before, after);
+        if (after < before) {
+            // 停止したWorkerがleaderのままにならないよう選び直す
+            leader.set(null);
+            idleWorkers.clear();
+            wakeup();
+        }
+    }
+
     @Override
     protected final ProducerDaemon newProducerInstance(String name) {
         return new ProducerDaemon(this, name) {
+            /** 待ち行列に追加したタスク。RepeatTaskのobjectをキーとする */
+            private final Map<Object, RepeatTask> known =
+                    new HashMap<Object, RepeatTask>();
+
+            {
+                scheduler = new RepeatTaskScheduler(RepeatDaemonGroup.this);
+                queue = scheduler;
+            }
+
             @Override
             protected void updateNextRun() {
                 setNextRun(getLastStarted() + producerInterval);
             }
 
             @Override
-            protected List<? extends WorkerTask> replaceTask() {
-                return RepeatDaemonGroup.this.replaceTask();
+            protected WorkerTaskDelta diffTask() {
+                WorkerTaskDelta delta = new WorkerTaskDelta();
+                List<? extends RepeatTask> replace =
+                        RepeatDaemonGroup.this.replaceTask();
+                if (replace == null) {
+                    return delta;
+                }
+
+                // 同じobjectのタスクは前回のインスタンスを残し、前回の実行時刻を保つ。
+                // 実行間隔は新しいタスクのものに更新する
+                Map<Object, RepeatTask> current =
+                        new HashMap<Object, RepeatTask>();
+                for (RepeatTask task : replace) {
+                    Object key = task.getObject();
+                    if (current.containsKey(key)) {
+                        continue;
+                    }
+                    RepeatTask existing = known.get(key);
+                    if (existing != null) {
+                        if (existing.getInterval() != task.getInterval()) {
+                            existing.setInterval(task.getInterval());
+                            scheduler.reschedule(existing);
+                        }
+                        current.put(key, existing);
+                    } else {
+                        current.put(key, task);
+                        delta.add(task);
+                    }
+                }
+                for (Map.Entry<Object, RepeatTask> entry : known.entrySet()) {
+                    if (!current.containsKey(entry.getKey())) {
+                        delta.remove(entry.getValue());
+                    }
+                }
+                known.clear();
+                known.putAll(current);
+                return delta;
             }
 
             @Override
-            protected WorkerTask poll() {
-                RepeatTask task = (RepeatTask) queue.pollFirst();
+            protected WorkerTask poll(int shard) {
+                RepeatTask task = (RepeatTask) queue.poll(shard);
                 if (task == null) {
                     return null;
                 }
 
-                if (System.currentTimeMillis() > task.getLastRunTime()
-                        + taskInterval) {
-                    task.updateLastRunTime();
-                    running.add(task);
-                    return task;
-                } else {
-                    queue.add(task);
-                    return null;
+                executedCount.incrementAndGet();
+                if (task.getLastRunTime() > 0L) {
+                    recordScheduleLag(Math.max(0L, System.currentTimeMillis()
+                            - getDeadline(task)));
                 }
+                task.updateLastRunTime();
+                running.add(task);
+                return task;
             }
 
             @Override
             protected void commit(WorkerTask task) {
-                if (running.remove(task)) {
+                if (running.remove(task) && !cancelled.remove(task)) {
                     queue.add(task);
                 }
             }
 
             @Override
             protected void rollback(WorkerTask task) {
-                if (running.remove(task)) {
+                if (running.remove(task) && !cancelled.remove(task)) {
                     queue.add(task);
                 }
             }
+
+            @Override
+            protected void clearTask() {
+                super.clearTask();
+                known.clear();
+            }
         };
     }
 
     @Override
     protected final WorkerDaemon newWorkerInstance(String name) {
-        return new WorkerDaemon(this, name) {
-            @Override
-            protected void updateNextRun() {
-                setNextRun(getLastStarted() + workerInterval);
+        return new RepeatWorker(name);
+    }
+
+    private class RepeatWorker extends WorkerDaemon {
+        private final AtomicBoolean idle = new AtomicBoolean();
+
+        public RepeatWorker(String name) {
+            super(RepeatDaemonGroup.this, name);
+        }
+
+        @Override
+        protected void updateNextRun() {
+            long fallback = getLastStarted() + workerInterval;
+            if (leader.compareAndSet(null, this) || leader.get() == this) {
+                setNextRun(Math.min(scheduler.getNextDeadline(), fallback));
+            } else {
+                if (idle.compareAndSet(false, true)) {
+                    idleWorkers.add(this);
+                }
+                setNextRun(fallback);
             }
+        }
 
-            @Override
-            protected boolean work(WorkerTask task) throws Exception {
-                RepeatDaemonGroup.this.work(this, (RepeatTask) task);
-                return true;
+        @Override
+        protected boolean work(WorkerTask task) throws Exception {
+            if (leader.compareAndSet(this, null) && !scheduler.isEmpty()) {
+                promote();
             }
-        };
+            RepeatDaemonGroup.this.work(this, (RepeatTask) task);
+            return true;
+        }
     }
 }
@@ -4,11 +4,22 @@ import org.karatachi.daemon.producer.WorkerTask;
 
 public abstract class RepeatTask implements WorkerTask {
     private final Comparable<Object> object;
+    private volatile long interval;
     private volatile long lastRunTime;
 
-    @SuppressWarnings("unchecked")
     public RepeatTask(Comparable<? extends Object> object, long lastRunTime) {
+        this(object, lastRunTime, -1L);
+    }
+
+    /**
+     * @param interval
+     *            このタスクの実行間隔。負の場合はRepeatDaemonGroupのtaskIntervalを使用する
+     */
+    @SuppressWarnings("unchecked")
+    public RepeatTask(Comparable<? extends Object> object, long lastRunTime,
+            long interval) {
         this.lastRunTime = lastRunTime;
+        this.interval = interval;
         this.object = (Comparable<Object>) object;
     }
 
@@ -20,6 +31,24 @@ public abstract class RepeatTask implements WorkerTask {
         return lastRunTime;
     }
 
+    public final long getInterval() {
+        return interval;
+    }
+
+    /**
+     * replaceTask()が同じobjectのタスクを異なる実行間隔で返した場合に、前回のインスタンスに反映する
+     */
+    final void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * replaceTask()が返すタスクの同一性の判定に使う
+     */
+    final Object getObject() {
+        return object;
+    }
+
     @Override
     public final int compareTo(WorkerTask o) {
         if (this.lastRunTime < ((RepeatTask) o).lastRunTime) {
@@ -0,0 +1,165 @@
+package org.karatachi.daemon.producer.repeat;
+
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.karatachi.daemon.producer.WorkerTask;
+import org.karatachi.daemon.producer.WorkerTaskQueue;
+
+/**
+ * RepeatTaskを次回実行時刻順に保持し、実行時刻に達したタスクだけを取り出す待ち行列
+ */
+class RepeatTaskScheduler extends WorkerTaskQueue {
+    private static class Entry implements Comparable<Entry> {
+        private final long deadline;
+        private final RepeatTask task;
+
+        public Entry(long deadline, RepeatTask task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (deadline < o.deadline) {
+                return -1;
+            } else if (deadline > o.deadline) {
+                return 1;
+            } else {
+                return task.compareTo(o.task);
+            }
+        }
+    }
+
+    private final RepeatDaemonGroup owner;
+    private final ConcurrentSkipListSet<Entry> entries =
+            new ConcurrentSkipListSet<Entry>();
+    private final ConcurrentHashMap<WorkerTask, Entry> index =
+            new ConcurrentHashMap<WorkerTask, Entry>();
+
+    public RepeatTaskScheduler(RepeatDaemonGroup owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * 先頭のタスクの実行時刻。空の場合はLong.MAX_VALUE
+     */
+    public long getNextDeadline() {
+        Entry head = firstOrNull();
+        return head != null ? head.deadline : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int getShardCount() {
+        return 1;
+    }
+
+    @Override
+    public WorkerTask poll(int shard) {
+        while (true) {
+            Entry head = firstOrNull();
+            if (head == null || head.deadline > System.currentTimeMillis()) {
+                return null;
+            }
+            if (entries.remove(head)) {
+                index.remove(head.task, head);
+                return head.task;
+            }
+        }
+    }
+
+    private Entry firstOrNull() {
+        try {
+            return entries.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean add(WorkerTask task) {
+        RepeatTask repeatTask = (RepeatTask) task;
+        Entry entry = new Entry(owner.getDeadline(repeatTask), repeatTask);
+        if (index.putIfAbsent(task, entry) != null) {
+            return false;
+        }
+        entries.add(entry);
+        if (firstOrNull() == entry) {
+            owner.onDeadlineAdvanced();
+        }
+        return true;
+    }
+
+    /**
+     * 実行間隔が変わったタスクを新しい実行時刻の位置に並べ直す。待ち行列になければ何もしない
+     */
+    public void reschedule(RepeatTask task) {
+        Entry entry = index.get(task);
+        if (entry == null) {
+            return;
+        }
+        long deadline = owner.getDeadline(task);
+        // 取り出されたタスクは、戻す時に新しい実行時刻で追加される
+        if (deadline == entry.deadline || !entries.remove(entry)) {
+            return;
+        }
+        Entry updated = new Entry(deadline, task);
+        if (!index.replace(task, entry, updated)) {
+            return;
+        }
+        entries.add(updated);
+        if (index.get(task) != updated) {
+            // 並べ直す間にremove()された
+            entries.remove(updated);
+        } else if (firstOrNull() == updated) {
+            owner.onDeadlineAdvanced();
+        }
+    }
+
+    @Override
+    public boolean remove(WorkerTask task) {
+        Entry entry = index.remove(task);
+        return entry != null && entries.remove(entry);
+    }
+
+    @Override
+    public boolean contains(WorkerTask task) {
+        return index.containsKey(task);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        Entry entry;
+        while ((entry = entries.pollFirst()) != null) {
+            index.remove(entry.task, entry);
+        }
+    }
+
+    @Override
+    public SortedSet<WorkerTask> toSortedSet() {
+        TreeSet<WorkerTask> ret = new TreeSet<WorkerTask>();
+        for (Entry entry : entries) {
+            ret.add(entry.task);
+        }
+        return Collections.unmodifiableSortedSet(ret);
+    }
+
+    @Override
+    public WorkerTaskQueue newInstance() {
+        return new RepeatTaskScheduler(owner);
+    }
+}
@@ -0,0 +1,102 @@
+package org.karatachi.daemon;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * ThreadDaemonExecutor(通常/仮想スレッド)とScheduledDaemonExecutorのスレッド数、メモリ使用量、wakeup遅延を比較する。
+ *
+ * <pre>
+ * java -cp ... org.karatachi.daemon.DaemonExecutorBenchmark [thread|virtual|scheduled] [count]
+ * </pre>
+ */
+public class DaemonExecutorBenchmark {
+    private static class SleepingDaemon extends Daemon {
+        private volatile long wakeupRequested;
+        private volatile long wakeupLatency;
+        private volatile CountDownLatch latch;
+
+        public SleepingDaemon(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void updateNextRun() {
+            setNextRun(getLastStarted() + 60000L);
+        }
+
+        @Override
+        protected void work() throws Exception {
+            CountDownLatch latch = this.latch;
+            if (latch != null) {
+                wakeupLatency = System.nanoTime() - wakeupRequested;
+                this.latch = null;
+                latch.countDown();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "scheduled";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        DaemonExecutor executor;
+        if (mode.equals("thread")) {
+            executor = ThreadDaemonExecutor.INSTANCE;
+        } else if (mode.equals("virtual")) {
+            executor = ThreadDaemonExecutor.VIRTUAL;
+        } else {
+            executor =
+                    new ScheduledDaemonExecutor("Benchmark",
+                            Runtime.getRuntime().availableProcessors());
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long memoryBefore = runtime.totalMemory() - runtime.freeMemory();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        List<SleepingDaemon> daemons = new ArrayList<SleepingDaemon>(count);
+        for (int i = 0; i < count; ++i) {
+            SleepingDaemon daemon = new SleepingDaemon("Benchmark-" + i);
+            daemon.setExecutor(executor);
+            daemon.startup();
+            daemons.add(daemon);
+        }
+        Thread.sleep(1000L);
+
+        System.gc();
+        long memoryAfter = runtime.totalMemory() - runtime.freeMemory();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long totalLatency = 0L;
+        long maxLatency = 0L;
+        for (SleepingDaemon daemon : daemons) {
+            CountDownLatch latch = new CountDownLatch(1);
+            daemon.latch = latch;
+            daemon.wakeupRequested = System.nanoTime();
+            daemon.wakeup();
+            latch.await();
+            totalLatency += daemon.wakeupLatency;
+            maxLatency = Math.max(maxLatency, daemon.wakeupLatency);
+        }
+
+        System.out.printf("mode=%s daemons=%d%n", mode, count);
+        System.out.printf("threads: %d%n", threadsAfter - threadsBefore);
+        System.out.printf("memory: %d KB%n", (memoryAfter - memoryBefore) / 1024);
+        System.out.printf("wakeup latency: avg %.1f us, max %.1f us%n",
+                totalLatency / 1000.0 / count, maxLatency / 1000.0);
+
+        for (SleepingDaemon daemon : daemons) {
+            daemon.shutdown();
+        }
+        for (SleepingDaemon daemon : daemons) {
+            daemon.join();
+        }
+        if (executor instanceof ScheduledDaemonExecutor) {
+            ((ScheduledDaemonExecutor) executor).shutdown();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.karatachi.daemon.monitor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * H2のインメモリデータベースで、MonitorDaemonのバッチ書き込みと従来の1行ずつの書き込みのラウンドトリップ数と1サイクルの処理時間を比較する。
+ *
+ * <pre>
+ * java -cp ... org.karatachi.daemon.monitor.MonitorDaemonBenchmark [titles] [cycles]
+ * </pre>
+ */
+public class MonitorDaemonBenchmark {
+    private static final String TABLE = "monitor";
+    private static final String HOST = "localhost";
+
+    private static int roundTrips;
+
+    private static long baseTime(int cycles) {
+        long interval = MonitorDaemon.INTERVAL[0];
+        return (System.currentTimeMillis() / interval - cycles) * interval;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int titles = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int cycles = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+
+        for (int round = 0; round < 2; ++round) {
+            runLegacy(titles, cycles);
+            runBatch(titles, cycles);
+        }
+    }
+
+    private static Connection open(String name) throws SQLException {
+        Connection conn =
+                DriverManager.getConnection("jdbc:h2:mem:" + name
+                        + ";DB_CLOSE_DELAY=-1");
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute("DROP TABLE IF EXISTS " + TABLE);
+            stmt.execute("CREATE TABLE " + TABLE
+                    + "(time BIGINT, host VARCHAR(64), title VARCHAR(256),"
+                    + " level INT, value DOUBLE)");
+            stmt.execute("CREATE INDEX " + TABLE + "_idx ON " + TABLE
+                    + "(host, level, time, title)");
+        } finally {
+            stmt.close();
+        }
+        return conn;
+    }
+
+    private static void report(String label, int titles, int cycles,
+            long elapsed) {
+        System.out.printf(
+                "%-6s titles=%d cycles=%d: %.0f round trips/cycle, %.2f ms/cycle%n",
+                label, titles, cycles, (double) roundTrips / cycles, elapsed
+                        / 1e6 / cycles);
+    }
+
+    private static void runBatch(final int titles, int cycles)
+            throws Exception {
+        final Connection conn = open("batch");
+        final long[] time = new long[1];
+        long base = baseTime(cycles);
+        MonitorStore store = new JdbcMonitorStore(TABLE, HOST) {
+            @Override
+            protected Connection getConnection() throws SQLException {
+                return counting(conn);
+            }
+        };
+        MonitorDaemon daemon = new MonitorDaemon("Benchmark", store) {
+            @Override
+            protected void collectData() throws SQLException {
+                for (int i = 0; i < titles; ++i) {
+                    storeValue(time[0], "title" + i, Math.random());
+                }
+            }
+        };
+
+        roundTrips = 0;
+        long begin = System.nanoTime();
+        for (int cycle = 0; cycle < cycles; ++cycle) {
+            time[0] = base + cycle * MonitorDaemon.INTERVAL[0];
+            daemon.work();
+        }
+        report("batch", titles, cycles, System.nanoTime() - begin);
+        conn.close();
+    }
+
+    private static void runLegacy(int titles, int cycles) throws Exception {
+        Connection conn = open("legacy");
+        Connection counting = counting(conn);
+        long base = baseTime(cycles);
+
+        roundTrips = 0;
+        long begin = System.nanoTime();
+        for (int cycle = 0; cycle < cycles; ++cycle) {
+            long time = base + cycle * MonitorDaemon.INTERVAL[0];
+            for (int i = 0; i < titles; ++i) {
+                legacyStoreValue(counting, time, "title" + i, Math.random());
+            }
+            legacyDeleteExpired(counting);
+        }
+        report("legacy", titles, cycles, System.nanoTime() - begin);
+        conn.close();
+    }
+
+    private static Connection counting(final Connection conn) {
+        return (Connection) Proxy.newProxyInstance(
+                MonitorDaemonBenchmark.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (method.getName().equals("close")) {
+                            return null;
+                        }
+                        if (method.getName().equals("commit")) {
+                            ++roundTrips;
+                        }
+                        Object ret = invokeTarget(conn, method, args);
+                        if (ret instanceof PreparedStatement) {
+                            return countingStatement((PreparedStatement) ret);
+                        }
+                        return ret;
+                    }
+                });
+    }
+
+    private static PreparedStatement countingStatement(
+            final PreparedStatement stmt) {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                MonitorDaemonBenchmark.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (method.getName().startsWith("execute")) {
+                            ++roundTrips;
+                        }
+                        return invokeTarget(stmt, method, args);
+                    }
+                });
+    }
+
+    private static Object invokeTarget(Object target, Method method,
+            Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void legacyDeleteExpired(Connection conn)
+            throws SQLException {
+        PreparedStatement stmt =
+                conn.prepareStatement("DELETE FROM " + TABLE
+                        + " WHERE time < ? AND host='" + HOST + "' AND level=?");
+        try {
+            long time = System.currentTimeMillis();
+            for (int i = 0; i < MonitorDaemon.INTERVAL.length; ++i) {
+                long interval = MonitorDaemon.INTERVAL[i];
+                long starttime = (time / interval - 1) * interval;
+                stmt.setLong(1, starttime - MonitorDaemon.EXPIRE[i] * 2);
+                stmt.setInt(2, i);
+                stmt.executeUpdate();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * 変更前のMonitorDaemon.storeValue()と同じ処理
+     */
+    private static void legacyStoreValue(Connection conn, long time,
+            String title, double value) throws SQLException {
+        String where = " FROM " + TABLE
+                + " WHERE time >= ? AND time < ? AND host='" + HOST
+                + "' AND title=? AND level=?";
+        PreparedStatement insert =
+                conn.prepareStatement("INSERT INTO " + TABLE
+                        + "(time, host, title, level, value) VALUES(?, '"
+                        + HOST + "', ?, ?, ?)");
+        PreparedStatement count =
+                conn.prepareStatement("SELECT count(value) FROM " + TABLE
+                        + " WHERE time = ? AND host='" + HOST
+                        + "' AND title=? AND level=?");
+        PreparedStatement[] selects =
+                new PreparedStatement[] {
+                        conn.prepareStatement("SELECT sum(value) / count(value)"
+                                + where),
+                        conn.prepareStatement("SELECT max(value)" + where),
+                        conn.prepareStatement("SELECT min(value)" + where) };
+        String[] suffixes = new String[] { "", ".max", ".min" };
+        try {
+            for (String suffix : suffixes) {
+                insert.setLong(1, time);
+                insert.setString(2, title + suffix);
+                insert.setInt(3, 0);
+                insert.setDouble(4, value);
+                insert.executeUpdate();
+            }
+
+            for (int level = 1; level < MonitorDaemon.INTERVAL.length; ++level) {
+                long interval = MonitorDaemon.INTERVAL[level];
+                long starttime = (time / interval - 1) * interval;
+
+                count.setLong(1, starttime);
+                count.setString(2, title);
+                count.setInt(3, level);
+                ResultSet rs = count.executeQuery();
+                try {
+                    if (rs.next() && rs.getInt(1) != 0) {
+                        continue;
+                    }
+                } finally {
+                    rs.close();
+                }
+
+                for (int i = 0; i < selects.length; ++i) {
+                    selects[i].setLong(1, starttime);
+                    selects[i].setLong(2, starttime + interval);
+                    selects[i].setString(3, title + suffixes[i]);
+                    selects[i].setInt(4, level - 1);
+                    rs = selects[i].executeQuery();
+                    try {
+                        if (!rs.next() || rs.getObject(1) == null) {
+                            continue;
+                        }
+                        insert.setLong(1, starttime);
+                        insert.setString(2, title + suffixes[i]);
+                        insert.setInt(3, level);
+                        insert.setDouble(4, rs.getDouble(1));
+                    } finally {
+                        rs.close();
+                    }
+                    insert.executeUpdate();
+                }
+            }
+        } finally {
+            insert.close();
+            count.close();
+            for (PreparedStatement select : selects) {
+                select.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.karatachi.daemon.monitor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimeSeriesSegmentTest {
+    private static final int CAPACITY = 1024;
+
+    @Test
+    public void 異常終了後の追記() throws Exception {
+        File file = File.createTempFile("segment", ".dat");
+        try {
+            TimeSeriesSegment segment = TimeSeriesSegment.create(file, CAPACITY);
+            segment.append(1000L, 1.5);
+            segment.append(2000L, 2.5);
+            segment.force();
+
+            // 件数を更新する前に異常終了した追記のビットが残っている
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(64 + 16);
+                raf.write(filled(CAPACITY - 16));
+                raf.seek(64 + CAPACITY + 16);
+                raf.write(filled(CAPACITY - 16));
+            } finally {
+                raf.close();
+            }
+
+            segment = TimeSeriesSegment.open(file, true);
+            long[] times = new long[] { 1000L, 2000L, 3000L, 4100L, 9000L };
+            double[] values = new double[] { 1.5, 2.5, -7.25, 1e10, 0.0 };
+            for (int i = 2; i < times.length; ++i) {
+                segment.append(times[i], values[i]);
+            }
+
+            List<MonitorRecord> records = new ArrayList<MonitorRecord>();
+            segment.read("title", 0, 0L, Long.MAX_VALUE, records);
+            assertEquals(times.length, records.size());
+            for (int i = 0; i < times.length; ++i) {
+                assertEquals(times[i], records.get(i).getTime());
+                assertEquals(values[i], records.get(i).getValue(), 0.0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] filled(int length) {
+        byte[] ret = new byte[length];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = (byte) 0xff;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,106 @@
+package org.karatachi.daemon.producer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 複数のWorkerが同時にpoll/commitした場合のSkipListTaskQueueとWorkStealingTaskQueueの処理時間を比較する。
+ * running/finishedの管理は旧実装(ConcurrentLinkedQueue)と新実装(ConcurrentHashMap)で比較する。
+ *
+ * <pre>
+ * java -cp ... org.karatachi.daemon.producer.WorkerTaskQueueBenchmark [workers] [tasks]
+ * </pre>
+ */
+public class WorkerTaskQueueBenchmark {
+    private static class Task implements WorkerTask {
+        private final int id;
+
+        public Task(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(WorkerTask o) {
+            int other = ((Task) o).id;
+            return id < other ? -1 : (id == other ? 0 : 1);
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Task && ((Task) obj).id == id;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        List<Task> list = new ArrayList<Task>(tasks);
+        for (int i = 0; i < tasks; ++i) {
+            list.add(new Task(i));
+        }
+        Collections.shuffle(list);
+
+        for (int round = 0; round < 3; ++round) {
+            run("skiplist+linkedqueue", WorkerTaskQueue.newInstance(1),
+                    new ConcurrentLinkedQueue<WorkerTask>(), workers, list);
+            run("skiplist+hashset", WorkerTaskQueue.newInstance(1),
+                    newRunningSet(), workers, list);
+            run("workstealing+hashset", WorkerTaskQueue.newInstance(workers),
+                    newRunningSet(), workers, list);
+        }
+    }
+
+    private static Set<WorkerTask> newRunningSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<WorkerTask, Boolean>());
+    }
+
+    private static void run(String label, final WorkerTaskQueue queue,
+            final Collection<WorkerTask> running, int workers,
+            List<Task> tasks) throws InterruptedException {
+        queue.addAll(tasks);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(workers);
+        for (int i = 0; i < workers; ++i) {
+            final int shard = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        WorkerTask task;
+                        while ((task = queue.poll(shard)) != null) {
+                            running.add(task);
+                            running.remove(task);
+                        }
+                    } catch (InterruptedException ignore) {
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        end.await();
+        long elapsed = System.nanoTime() - begin;
+
+        System.out.printf("%-22s workers=%d tasks=%d: %.1f ms (%.0f ns/task)%n",
+                label, workers, tasks.size(), elapsed / 1e6, (double) elapsed
+                        / tasks.size());
+    }
+}
@@ -13,11 +13,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ConnectionManager {
+    /**
+     * 既定ではPreparedStatementを再利用しない
+     */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 0;
+
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final DataSourceWrapper dataSource;
     private final Connection connection;
     private final ArrayList<Statement> statements = new ArrayList<Statement>();
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    private StatementCache statementCache;
 
     public ConnectionManager(DataSourceWrapper dataSource) {
         this(dataSource, 2);
@@ -28,7 +35,7 @@ public class ConnectionManager {
 
         Connection connection = null;
         try {
-            connection = ds.getConnection();
+            connection = ds.getConnection(stack + 1);
         } catch (Exception e) {
             logger.error("Cannot create connection '" + ds.getName() + "'", e);
         }
@@ -82,30 +89,63 @@ public class ConnectionManager {
         return new StatementWrapper(stmt);
     }
 
-    public PreparedStatement prepareStatement(String sql) throws SQLException {
-        if (connection == null) {
-            throw new SQLException("not initialized");
+    /**
+     * 同じSQLのPreparedStatementを準備し直さずに再利用する数。0の場合は再利用しない。
+     *
+     * 再利用する場合、同じSQLのprepareStatement()はパラメータを消去した同じPreparedStatementを返す。
+     * そのため、同じSQLのResultSetを読み終える前に同じSQLを実行すると、先のResultSetは閉じられる
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCache != null) {
+            statementCache.close();
+            statementCache = null;
         }
+        this.statementCacheSize = statementCacheSize;
+    }
 
-        PreparedStatement stmt =
-                connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
-                        ResultSet.CONCUR_READ_ONLY);
-        statements.add(stmt);
-        return new PreparedStatementWrapper(stmt, sql);
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
     }
 
     public PreparedStatement prepareUpdatableStatement(String sql)
             throws SQLException {
+        return prepareStatement(sql, ResultSet.TYPE_SCROLL_INSENSITIVE,
+                ResultSet.CONCUR_UPDATABLE);
+    }
+
+    private PreparedStatement prepareStatement(String sql, int resultSetType,
+            int resultSetConcurrency) throws SQLException {
         if (connection == null) {
             throw new SQLException("not initialized");
         }
 
+        if (statementCacheSize > 0) {
+            if (statementCache == null) {
+                statementCache = new StatementCache(statementCacheSize);
+            }
+            PreparedStatementWrapper ret =
+                    statementCache.get(sql, resultSetType,
+                            resultSetConcurrency);
+            if (ret != null) {
+                return ret;
+            }
+        }
+
         PreparedStatement stmt =
-                connection.prepareStatement(sql,
-                        ResultSet.TYPE_SCROLL_INSENSITIVE,
-                        ResultSet.CONCUR_UPDATABLE);
-        statements.add(stmt);
-        return new PreparedStatementWrapper(stmt, sql);
+                connection.prepareStatement(sql, resultSetType,
+                        resultSetConcurrency);
+        PreparedStatementWrapper ret = new PreparedStatementWrapper(stmt, sql);
+        if (statementCache != null) {
+            statementCache.put(sql, resultSetType, resultSetConcurrency, ret);
+        } else {
+            statements.add(stmt);
+        }
+        return ret;
     }
 
     public void dispose() {
@@ -121,6 +161,14 @@ public class ConnectionManager {
         } catch (Exception e) {
             logger.error("Cannot close statement", e);
         }
+        if (statementCache != null) {
+            logger.debug("Statement cache of '{}' : {} hits, {} misses",
+                    new Object[] { dataSource.getName(),
+                            statementCache.getHitCount(),
+                            statementCache.getMissCount() });
+            statementCache.close();
+            statementCache = null;
+        }
 
         try {
             if (connection != null) {
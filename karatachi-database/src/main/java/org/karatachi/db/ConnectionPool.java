@@ -0,0 +1,492 @@
+package org.karatachi.db;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.karatachi.classloader.Reflection;
+import org.karatachi.concurrent.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * プールしていないDataSourceの接続を再利用する。
+ *
+ * 貸し出し中の接続の数をmaxSizeまでに制限し、空いている接続は最後に返されたものから貸し出す。
+ * 貸し出しと返却はロックを取らない。
+ * 一定時間使われていない接続は貸し出す前に検査し、maxLifetimeを過ぎた接続は閉じる。
+ * 空いている接続の検査と、leakThresholdを超えて返されない接続の検出はバックグラウンドで行う。
+ */
+public class ConnectionPool implements ConnectionPoolMBean {
+    public static final String DOMAIN = "org.karatachi.db";
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final long HOUSEKEEPING_INTERVAL = 30000;
+
+    private static ScheduledExecutorService housekeeper;
+
+    private static synchronized ScheduledExecutorService getHousekeeper() {
+        if (housekeeper == null) {
+            housekeeper =
+                    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread =
+                                    new Thread(r, "ConnectionPool-housekeeper");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return housekeeper;
+    }
+
+    private final String name;
+    private final DataSource dataSource;
+    private final int maxSize;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Entry> idle =
+            new ConcurrentLinkedDeque<Entry>();
+    private final Set<Entry> borrowed = Collections
+            .newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+    private final AtomicInteger totalCount = new AtomicInteger();
+
+    private volatile long maxWait = 30000;
+    private volatile long maxLifetime = 30 * 60 * 1000;
+    private volatile long validationInterval = 500;
+    private volatile int validationTimeout = 5;
+    private volatile long leakThreshold = 0;
+    private volatile boolean closed;
+
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    private final ScheduledFuture<?> housekeeping;
+    private ObjectName objectName;
+
+    public ConnectionPool(String name, DataSource dataSource, int maxSize) {
+        this.name = name;
+        this.dataSource = dataSource;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+        this.housekeeping =
+                getHousekeeper().scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            housekeep();
+                        } catch (RuntimeException e) {
+                            logger.error("Error on housekeeping pool "
+                                    + ConnectionPool.this.name, e);
+                        }
+                    }
+                }, HOUSEKEEPING_INTERVAL, HOUSEKEEPING_INTERVAL,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * 接続が空くのを待つ最大の時間(ms)
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * 作成してからこの時間(ms)を過ぎた接続は、返却された時点で閉じる
+     */
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * この時間(ms)以上使われていない接続は、貸し出す前にisValid()で検査する
+     */
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * isValid()のタイムアウト(秒)
+     */
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public long getLeakThreshold() {
+        return leakThreshold;
+    }
+
+    /**
+     * この時間(ms)を超えて返却されない接続を、貸し出した場所とともに警告する。0の場合は検出しない。
+     *
+     * 検出する場合は、貸し出すたびに呼び出し元を取得する
+     */
+    public void setLeakThreshold(long leakThreshold) {
+        this.leakThreshold = leakThreshold;
+    }
+
+    public Connection getConnection() throws SQLException {
+        return getConnection(2);
+    }
+
+    /**
+     * @param stack
+     *            リークの検出で報告する呼び出し元の、このメソッドからの深さ
+     */
+    Connection getConnection(int stack) throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire()
+                    && !permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLException(String.format(
+                        "Timed out waiting for connection pool %s (%d ms)",
+                        name, maxWait));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Thread Interrupted", e);
+        }
+        waitTime.record((System.nanoTime() - start) / 1000);
+
+        try {
+            Entry entry = borrow();
+            if (leakThreshold > 0) {
+                entry.borrowedFrom = Reflection.getAncestorMethodInfo(stack);
+            }
+            entry.borrowedTime = System.currentTimeMillis();
+            borrowed.add(entry);
+            return new PooledConnectionWrapper(this, entry);
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private Entry borrow() throws SQLException {
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            long now = System.currentTimeMillis();
+            if (now - entry.created >= maxLifetime) {
+                destroy(entry);
+            } else if (now - entry.lastUsed >= validationInterval
+                    && !isValid(entry)) {
+                destroy(entry);
+            } else {
+                return entry;
+            }
+        }
+
+        Connection connection = dataSource.getConnection();
+        try {
+            entry = new Entry(connection);
+        } catch (SQLException e) {
+            try {
+                connection.close();
+            } catch (SQLException ignore) {
+            }
+            throw e;
+        }
+        totalCount.incrementAndGet();
+        createdCount.incrementAndGet();
+        logger.debug("Pooled connection created : {}", name);
+        return entry;
+    }
+
+    /**
+     * PooledConnectionWrapper.close()から呼ばれる
+     */
+    void release(Entry entry) {
+        borrowed.remove(entry);
+        try {
+            if (closed
+                    || System.currentTimeMillis() - entry.created >= maxLifetime
+                    || !reset(entry)) {
+                destroy(entry);
+            } else {
+                entry.lastUsed = System.currentTimeMillis();
+                entry.borrowedFrom = null;
+                entry.leakReported = false;
+                idle.offerFirst(entry);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean reset(Entry entry) {
+        try {
+            Connection connection = entry.connection;
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (connection.isReadOnly()) {
+                connection.setReadOnly(false);
+            }
+            if (connection.getTransactionIsolation() != entry.isolation) {
+                connection.setTransactionIsolation(entry.isolation);
+            }
+            if (entry.catalog != null
+                    && !entry.catalog.equals(connection.getCatalog())) {
+                connection.setCatalog(entry.catalog);
+            }
+            if (connection.getHoldability() != entry.holdability) {
+                connection.setHoldability(entry.holdability);
+            }
+            connection.clearWarnings();
+            return true;
+        } catch (SQLException e) {
+            logger.warn("Failed to reset pooled connection of {} : {}", name,
+                    e.toString());
+            return false;
+        }
+    }
+
+    private boolean isValid(Entry entry) {
+        try {
+            return entry.connection.isValid(validationTimeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void destroy(Entry entry) {
+        totalCount.decrementAndGet();
+        destroyedCount.incrementAndGet();
+        try {
+            entry.connection.close();
+        } catch (SQLException e) {
+            logger.warn("Cannot close pooled connection of {} : {}", name,
+                    e.toString());
+        }
+        logger.debug("Pooled connection closed : {}", name);
+    }
+
+    /**
+     * 空いている接続を検査し、返されていない接続を報告する
+     */
+    void housekeep() {
+        long now = System.currentTimeMillis();
+        // 戻した接続を同じ走査で再び検査しないよう、検査する前の状態を取り出しておく
+        for (Entry entry : new ArrayList<Entry>(idle)) {
+            if (now - entry.lastUsed < validationInterval) {
+                continue;
+            }
+            // 取り出せなかった接続は貸し出されている
+            if (!idle.remove(entry)) {
+                continue;
+            }
+            if (closed || now - entry.created >= maxLifetime
+                    || totalCount.get() > maxSize || !isValid(entry)) {
+                destroy(entry);
+            } else {
+                entry.lastUsed = now;
+                idle.offerLast(entry);
+            }
+        }
+
+        long threshold = leakThreshold;
+        if (threshold > 0) {
+            for (Entry entry : borrowed) {
+                if (!entry.leakReported && now - entry.borrowedTime >= threshold) {
+                    entry.leakReported = true;
+                    leakCount.incrementAndGet();
+                    logger.warn(
+                            "Connection of {} has not been returned for {} ms : borrowed from {}",
+                            new Object[] { name, now - entry.borrowedTime,
+                                    entry.borrowedFrom });
+                }
+            }
+        }
+    }
+
+    /**
+     * 空いている接続を閉じる。貸し出し中の接続は返却された時点で閉じる
+     */
+    public void close() {
+        closed = true;
+        housekeeping.cancel(false);
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            destroy(entry);
+        }
+        unregister();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    @Override
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public int getTotalCount() {
+        return totalCount.get();
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return waitTime.getCount();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    @Override
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    @Override
+    public long getDestroyedCount() {
+        return destroyedCount.get();
+    }
+
+    @Override
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    @Override
+    public double getMeanWaitTime() {
+        return waitTime.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getMaxWaitTime() {
+        return waitTime.getMax() / 1000.0;
+    }
+
+    @Override
+    public double getWaitTime99thPercentile() {
+        return waitTime.getValueAtPercentile(99.0) / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        waitTime.reset();
+        timeoutCount.set(0L);
+        createdCount.set(0L);
+        destroyedCount.set(0L);
+        leakCount.set(0L);
+    }
+
+    public synchronized void register() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            ObjectName objectName =
+                    new ObjectName(DOMAIN + ":type=ConnectionPool,name="
+                            + ObjectName.quote(name));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(
+                    objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                        objectName);
+                this.objectName = objectName;
+            }
+        } catch (JMException e) {
+            logger.warn("Failed to register connection pool " + name, e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+        } catch (JMException e) {
+            logger.warn("Failed to unregister " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * プールしている物理的な接続
+     */
+    static class Entry {
+        final Connection connection;
+        final long created;
+        /** 返却時に戻す、作成時の接続の設定 */
+        final int isolation;
+        final String catalog;
+        final int holdability;
+        volatile long lastUsed;
+        volatile long borrowedTime;
+        volatile String borrowedFrom;
+        volatile boolean leakReported;
+
+        Entry(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.created = System.currentTimeMillis();
+            this.isolation = connection.getTransactionIsolation();
+            this.catalog = connection.getCatalog();
+            this.holdability = connection.getHoldability();
+            this.lastUsed = created;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.karatachi.db;
+
+/**
+ * 時間の単位はすべてms
+ */
+public interface ConnectionPoolMBean {
+    int getMaxSize();
+
+    int getActiveCount();
+
+    int getIdleCount();
+
+    int getTotalCount();
+
+    long getBorrowCount();
+
+    long getTimeoutCount();
+
+    long getCreatedCount();
+
+    long getDestroyedCount();
+
+    long getLeakCount();
+
+    double getMeanWaitTime();
+
+    double getMaxWaitTime();
+
+    double getWaitTime99thPercentile();
+
+    void reset();
+}
@@ -21,9 +21,23 @@ public class ConnectionWrapper {
     private final Connection connection;
     private final String url;
     private final ArrayList<Statement> statements = new ArrayList<Statement>();
+    private final StatementCache statementCache;
 
     public ConnectionWrapper(Connection connection) throws SQLException {
+        this(connection, ConnectionManager.DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * @param statementCacheSize
+     *            同じSQLのPreparedStatementを再利用する数。0の場合は再利用しない。
+     *            再利用する場合、同じSQLのResultSetを読み終える前に同じSQLを実行すると、先のResultSetは閉じられる
+     */
+    public ConnectionWrapper(Connection connection, int statementCacheSize)
+            throws SQLException {
         this.connection = connection;
+        this.statementCache =
+                statementCacheSize > 0 ? new StatementCache(statementCacheSize)
+                        : null;
         this.url = connection.getMetaData().getURL();
         if (logger.isTraceEnabled()) {
             logger.debug("DB connection '{}' created : {}", url,
@@ -42,6 +56,9 @@ public class ConnectionWrapper {
         } catch (Exception e) {
             logger.error("Cannot close statement", e);
         }
+        if (statementCache != null) {
+            statementCache.close();
+        }
 
         try {
             connection.close();
@@ -79,21 +96,38 @@ public class ConnectionWrapper {
 
     public PreparedStatement prepareStatement(String sql, Object... args)
             throws SQLException {
-        return setupPreparedStatment(connection.prepareStatement(sql), sql,
-                args);
+        return prepareStatementWithParameter(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY, args);
     }
 
     public PreparedStatement prepareStatementWithParameter(String sql,
             int resultSetType, int resultSetConcurrency, Object... args)
             throws SQLException {
-        return setupPreparedStatment(connection.prepareStatement(sql,
-                resultSetType, resultSetConcurrency), sql, args);
+        PreparedStatementWrapper ret = null;
+        if (statementCache != null) {
+            ret = statementCache.get(sql, resultSetType, resultSetConcurrency);
+        }
+        if (ret == null) {
+            PreparedStatement stmt =
+                    connection.prepareStatement(sql, resultSetType,
+                            resultSetConcurrency);
+            ret = new PreparedStatementWrapper(stmt, sql);
+            if (statementCache != null) {
+                statementCache.put(sql, resultSetType, resultSetConcurrency,
+                        ret);
+            } else {
+                statements.add(stmt);
+            }
+        }
+        return setupPreparedStatment(ret, args);
+    }
+
+    public StatementCache getStatementCache() {
+        return statementCache;
     }
 
-    private PreparedStatement setupPreparedStatment(PreparedStatement stmt,
-            String sql, Object... args) throws SQLException {
-        statements.add(stmt);
-        PreparedStatementWrapper ret = new PreparedStatementWrapper(stmt, sql);
+    private PreparedStatement setupPreparedStatment(
+            PreparedStatementWrapper ret, Object... args) throws SQLException {
         int i = 1;
         for (Object arg : args) {
             if (arg == null) {
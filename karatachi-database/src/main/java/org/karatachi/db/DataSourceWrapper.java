@@ -18,6 +18,7 @@ public final class DataSourceWrapper implements DataSource,
     private final DataSource dataSource;
     private final boolean master;
     private boolean active;
+    private volatile ConnectionPool pool;
 
     public DataSourceWrapper(String name, DataSource dataSource, boolean master) {
         this.name = name;
@@ -56,9 +57,50 @@ public final class DataSourceWrapper implements DataSource,
         }
     }
 
+    /**
+     * DataSourceの接続をConnectionPoolでプールする。既にプールしている場合は何もしない
+     *
+     * @return プールの設定を変更するためのConnectionPool
+     */
+    public synchronized ConnectionPool enablePooling(int maxSize) {
+        if (pool == null) {
+            pool = new ConnectionPool(name, dataSource, maxSize);
+            pool.register();
+        }
+        return pool;
+    }
+
+    /**
+     * プールを閉じる。貸し出し中の接続は返却された時点で閉じる
+     */
+    public synchronized void disablePooling() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    /**
+     * プールしていなければnullを返す
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
     public Connection getConnection() throws SQLException {
+        return getConnection(2);
+    }
+
+    /**
+     * @param stack
+     *            ConnectionPoolがリークを報告する呼び出し元の、このメソッドからの深さ
+     */
+    Connection getConnection(int stack) throws SQLException {
         try {
-            Connection ret = dataSource.getConnection();
+            ConnectionPool pool = this.pool;
+            Connection ret =
+                    pool != null ? pool.getConnection(stack + 1) : dataSource
+                            .getConnection();
             active = true;
             return ret;
         } catch (SQLException e) {
@@ -1,13 +1,28 @@
 package org.karatachi.db;
 
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.karatachi.exception.IncompatibleConfigurationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +39,16 @@ public class DatabaseReplicator {
 
     private final int fetchSize = 1000;
 
+    private int batchSize = 1000;
+    private int commitInterval = 10000;
+    private ProgressListener progressListener;
+    private int checksumFanout = 16;
+    private ReplicationWatermarkStore watermarkStore;
+    private long reconcileInterval = 60 * 60 * 1000;
+    private int queryParallelism = 1;
+    private long queryTimeout = 0;
+    private ExecutorService queryExecutor;
+
     DatabaseReplicator(DataSourceWrapper[] dataSources) {
         this(dataSources, "id", "updated_date");
     }
@@ -49,6 +74,23 @@ public class DatabaseReplicator {
         this.updateColumn = updateColumn;
     }
 
+    /**
+     * executeQuery()で各データソースの結果を1つにまとめる。QueryReducersに実装がある
+     */
+    public static interface ResultReducer<T> {
+        /**
+         * 1つのデータソースの結果を読み込む。値がなければnullを返す。
+         *
+         * queryParallelismが2以上であれば、複数のスレッドから同時に呼び出される。
+         */
+        public T read(ResultSet rs) throws SQLException;
+
+        /**
+         * nullでない結果をデータソースの順にまとめる
+         */
+        public T reduce(T result, T value);
+    }
+
     public static interface Selectable {
         public boolean replace(Comparable<Object> original,
                 Comparable<Object> replace);
@@ -70,15 +112,141 @@ public class DatabaseReplicator {
         };
     }
 
+    /**
+     * replicateBatch()の進捗を受け取る
+     */
+    public static interface ProgressListener {
+        /**
+         * @param rows
+         *            マスターから読み込んだ行数
+         * @param changed
+         *            スレーブに適用した変更の数
+         */
+        public void progress(String tableName, DataSourceWrapper slave,
+                long rows, long changed);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * replicateBatch()でexecuteBatch()を実行するまでに溜める変更の数
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * replicateBatch()でコミットする間隔(変更の数)
+     */
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public int getChecksumFanout() {
+        return checksumFanout;
+    }
+
+    /**
+     * replicateChecksum()でチェックサムが一致しない範囲を分割する数
+     */
+    public void setChecksumFanout(int checksumFanout) {
+        this.checksumFanout = Math.max(2, checksumFanout);
+    }
+
+    public ReplicationWatermarkStore getWatermarkStore() {
+        return watermarkStore;
+    }
+
+    /**
+     * replicateIncremental()で複製済みの位置を保存する
+     */
+    public void setWatermarkStore(ReplicationWatermarkStore watermarkStore) {
+        this.watermarkStore = watermarkStore;
+    }
+
+    public long getReconcileInterval() {
+        return reconcileInterval;
+    }
+
+    /**
+     * replicateIncremental()でマスターで削除された行をスレーブに反映する間隔(ms)
+     */
+    public void setReconcileInterval(long reconcileInterval) {
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    public int getQueryParallelism() {
+        return queryParallelism;
+    }
+
+    /**
+     * executeQuery()で同時に問い合わせるデータソースの数。1であれば順に問い合わせる
+     */
+    public void setQueryParallelism(int queryParallelism) {
+        this.queryParallelism = queryParallelism;
+    }
+
+    public long getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * executeQuery()で1つのデータソースへの問い合わせを打ち切るまでのミリ秒。0であれば打ち切らない
+     */
+    public void setQueryTimeout(long queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public ExecutorService getQueryExecutor() {
+        return queryExecutor;
+    }
+
+    /**
+     * executeQuery()を並列に実行するExecutorService。nullであれば呼び出しごとにスレッドを生成する
+     */
+    public void setQueryExecutor(ExecutorService queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
     public Comparable<Object> executeQuery(Selectable selectable,
             boolean stopIfNull, String sql, Object... param)
             throws SQLException {
+        return executeQuery(QueryReducers.select(selectable), stopIfNull, sql,
+                param);
+    }
+
+    /**
+     * すべてのデータソースでsqlを実行し、結果をreducerでまとめる。接続できないデータソースは無視する。
+     *
+     * queryParallelismが2以上であれば、データソースに並列に問い合わせる。
+     *
+     * @param stopIfNull
+     *            いずれかのデータソースの結果がnullであれば、他のデータソースの問い合わせを打ち切ってnullを返す
+     * @throws SQLTimeoutException
+     *             いずれかのデータソースの問い合わせがqueryTimeoutを超えた場合
+     */
+    public <T> T executeQuery(ResultReducer<T> reducer, boolean stopIfNull,
+            String sql, Object... param) throws SQLException {
+        if (queryParallelism > 1 && dataSources.length > 1) {
+            return executeQueryParallel(reducer, stopIfNull, sql, param);
+        }
+
         ConnectionManager[] connections = new ConnectionManager[dataSources.length];
         try {
             for (int i = 0; i < connections.length; ++i) {
                 connections[i] = new ConnectionManager(dataSources[i]);
             }
-            return executeQueryAll(connections, selectable, stopIfNull, sql,
+            return executeQueryAll(connections, reducer, stopIfNull, sql,
                     param);
         } finally {
             for (ConnectionManager conn : connections) {
@@ -89,38 +257,215 @@ public class DatabaseReplicator {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private Comparable<Object> executeQueryAll(ConnectionManager[] connections,
-            Selectable selectable, boolean stopIfNull, String sql,
+    private <T> T executeQueryAll(ConnectionManager[] connections,
+            ResultReducer<T> reducer, boolean stopIfNull, String sql,
             Object... param) throws SQLException {
-        Comparable<Object> ret = null;
+        T ret = null;
         for (ConnectionManager conn : connections) {
             if (!conn.isConnected()) {
                 continue;
             }
 
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            for (int i = 0; i < param.length; ++i) {
-                stmt.setObject(i + 1, param[i]);
+            T curr = reducer.read(prepareQuery(conn, sql, param).executeQuery());
+            if (curr != null) {
+                ret = ret == null ? curr : reducer.reduce(ret, curr);
+            } else if (stopIfNull) {
+                return null;
+            }
+        }
+        return ret;
+    }
+
+    private PreparedStatement prepareQuery(ConnectionManager conn, String sql,
+            Object... param) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        for (int i = 0; i < param.length; ++i) {
+            stmt.setObject(i + 1, param[i]);
+        }
+        if (queryTimeout > 0) {
+            stmt.setQueryTimeout((int) ((queryTimeout + 999) / 1000));
+        }
+        return stmt;
+    }
+
+    private <T> T executeQueryParallel(ResultReducer<T> reducer,
+            boolean stopIfNull, String sql, Object... param)
+            throws SQLException {
+        ExecutorService executor = queryExecutor;
+        if (executor == null) {
+            executor =
+                    Executors.newFixedThreadPool(
+                            Math.min(queryParallelism, dataSources.length),
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread =
+                                            new Thread(r,
+                                                    "DatabaseReplicator-Query");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+        }
+
+        CompletionService<SourceQuery<T>> completion =
+                new ExecutorCompletionService<SourceQuery<T>>(executor);
+        List<SourceQuery<T>> queries = new ArrayList<SourceQuery<T>>();
+        List<Future<SourceQuery<T>>> futures =
+                new ArrayList<Future<SourceQuery<T>>>();
+        try {
+            for (DataSourceWrapper dataSource : dataSources) {
+                SourceQuery<T> query =
+                        new SourceQuery<T>(dataSource, reducer, sql, param);
+                queries.add(query);
+                futures.add(completion.submit(query));
             }
 
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                Comparable<Object> curr = (Comparable<Object>) rs.getObject(1);
-                if (curr != null) {
-                    if (ret == null) {
-                        ret = curr;
-                    } else if (selectable.replace(ret, curr)) {
-                        ret = curr;
+            for (int remaining = queries.size(); remaining > 0;) {
+                Future<SourceQuery<T>> future;
+                if (queryTimeout > 0) {
+                    future =
+                            completion.poll(getQueryWait(queries),
+                                    TimeUnit.MILLISECONDS);
+                } else {
+                    future = completion.take();
+                }
+                if (future == null) {
+                    for (SourceQuery<T> query : queries) {
+                        if (query.isTimedOut()) {
+                            throw new SQLTimeoutException("Query on "
+                                    + query.dataSource.getName()
+                                    + " timed out : " + sql);
+                        }
                     }
-                } else if (stopIfNull) {
+                    continue;
+                }
+                --remaining;
+
+                SourceQuery<T> query;
+                try {
+                    query = future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof SQLException ? (SQLException) cause
+                            : new SQLException(cause);
+                }
+                if (query.connected && query.result == null && stopIfNull) {
                     return null;
                 }
-            } else if (stopIfNull) {
-                return null;
+            }
+
+            // データソースの順にまとめる
+            T ret = null;
+            for (SourceQuery<T> query : queries) {
+                if (query.result != null) {
+                    ret = ret == null ? query.result : reducer.reduce(ret,
+                            query.result);
+                }
+            }
+            return ret;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Thread Interrupted", e);
+        } finally {
+            for (int i = 0; i < futures.size(); ++i) {
+                futures.get(i).cancel(false);
+                queries.get(i).cancel();
+            }
+            if (executor != queryExecutor) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 実行中の問い合わせの最も早いタイムアウトまでのミリ秒
+     */
+    private long getQueryWait(List<? extends SourceQuery<?>> queries) {
+        long now = System.currentTimeMillis();
+        long ret = queryTimeout;
+        for (SourceQuery<?> query : queries) {
+            long started = query.started;
+            if (started != 0L && !query.done) {
+                ret = Math.min(ret, started + queryTimeout - now);
+            }
+        }
+        return Math.max(ret, 1L);
+    }
+
+    /**
+     * executeQuery()で1つのデータソースに問い合わせる
+     */
+    private class SourceQuery<T> implements Callable<SourceQuery<T>> {
+        private final DataSourceWrapper dataSource;
+        private final ResultReducer<T> reducer;
+        private final String sql;
+        private final Object[] param;
+
+        private volatile long started;
+        private volatile boolean done;
+        private volatile boolean cancelled;
+        private volatile PreparedStatement statement;
+        private boolean connected;
+        private T result;
+
+        public SourceQuery(DataSourceWrapper dataSource,
+                ResultReducer<T> reducer, String sql, Object[] param) {
+            this.dataSource = dataSource;
+            this.reducer = reducer;
+            this.sql = sql;
+            this.param = param;
+        }
+
+        @Override
+        public SourceQuery<T> call() throws Exception {
+            started = System.currentTimeMillis();
+            ConnectionManager conn = null;
+            try {
+                if (cancelled) {
+                    return this;
+                }
+                conn = new ConnectionManager(dataSource);
+                connected = conn.isConnected();
+                if (!connected) {
+                    return this;
+                }
+
+                PreparedStatement stmt = prepareQuery(conn, sql, param);
+                statement = stmt;
+                // cancel()がstatementを設定する前に呼ばれていれば実行しない
+                if (cancelled) {
+                    return this;
+                }
+                result = reducer.read(stmt.executeQuery());
+                return this;
+            } finally {
+                statement = null;
+                done = true;
+                if (conn != null) {
+                    conn.dispose();
+                }
+            }
+        }
+
+        public boolean isTimedOut() {
+            long started = this.started;
+            return started != 0L && !done
+                    && System.currentTimeMillis() - started >= queryTimeout;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            PreparedStatement stmt = statement;
+            if (stmt != null) {
+                try {
+                    stmt.cancel();
+                } catch (SQLException e) {
+                    logger.debug("Failed to cancel query on "
+                            + dataSource.getName(), e);
+                }
             }
         }
-        return ret;
     }
 
     public long replicate(String tableName) throws SQLException,
@@ -251,6 +596,706 @@ public class DatabaseReplicator {
         }
     }
 
+    public long replicateBatch(String tableName) throws SQLException,
+            InterruptedException {
+        return replicateBatch(tableName, false);
+    }
+
+    public long replicateBatchFull(String tableName) throws SQLException,
+            InterruptedException {
+        return replicateBatch(tableName, true);
+    }
+
+    /**
+     * マスターを1回だけ前方向に読み、スレーブごとのスレッドでキーを突き合わせて変更をバッチで適用する。
+     *
+     * スレーブからはキーと更新日時のカラムだけを前方向に読む。
+     * 失敗したスレーブがあっても他のスレーブの複製は続け、最後に最初の例外を投げる。
+     */
+    private long replicateBatch(String tableName, boolean fullReplicate)
+            throws SQLException, InterruptedException {
+        String sqlGetAll =
+                String.format("SELECT * FROM %s ORDER BY %s", tableName,
+                        keyColumn);
+
+        ConnectionManager connMaster = null;
+        List<SlaveReplicator> replicators = new ArrayList<SlaveReplicator>();
+        ExecutorService executor = null;
+        try {
+            connMaster = new ConnectionManager(master);
+            connMaster.setAutoCommit(false);
+            Statement stmt = connMaster.createStatement();
+            stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
+            stmt.setFetchSize(fetchSize);
+            ResultSet rsMaster = stmt.executeQuery(sqlGetAll);
+
+            ResultSetMetaData metaData = rsMaster.getMetaData();
+            String[] columns = new String[metaData.getColumnCount()];
+            for (int i = 0; i < columns.length; ++i) {
+                columns[i] = metaData.getColumnName(i + 1);
+            }
+            int keyIndex = SlaveWriter.indexOf(columns, keyColumn);
+            int updateIndex =
+                    fullReplicate ? -1 : SlaveWriter.indexOf(columns,
+                            updateColumn);
+
+            SQLException error = null;
+            for (DataSourceWrapper slave : slaves) {
+                SlaveReplicator replicator =
+                        new SlaveReplicator(tableName, slave, keyIndex,
+                                updateIndex);
+                try {
+                    if (replicator.open(columns)) {
+                        replicators.add(replicator);
+                        continue;
+                    }
+                } catch (SQLException e) {
+                    logger.error("Failed to replicate " + tableName + " to "
+                            + slave.getName(), e);
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+                replicator.dispose();
+            }
+            if (replicators.isEmpty()) {
+                if (error != null) {
+                    throw error;
+                }
+                return 0;
+            }
+
+            executor =
+                    Executors.newFixedThreadPool(replicators.size(),
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread =
+                                            new Thread(r, "DatabaseReplicator");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (SlaveReplicator replicator : replicators) {
+                futures.add(executor.submit(replicator));
+            }
+
+            while (rsMaster.next()) {
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < row.length; ++i) {
+                    row[i] = rsMaster.getObject(i + 1);
+                }
+                for (SlaveReplicator replicator : replicators) {
+                    replicator.queue.put(row);
+                }
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            for (SlaveReplicator replicator : replicators) {
+                replicator.queue.put(END);
+            }
+
+            long ret = 0;
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    ret += futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    logger.error("Failed to replicate " + tableName + " to "
+                            + replicators.get(i).slave.getName(), cause);
+                    if (error == null) {
+                        error =
+                                cause instanceof SQLException ? (SQLException) cause
+                                        : new SQLException(cause);
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return ret;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (connMaster != null) {
+                connMaster.dispose();
+            }
+            for (SlaveReplicator replicator : replicators) {
+                replicator.dispose();
+            }
+        }
+    }
+
+    private static final Object[] END = new Object[0];
+
+    /**
+     * 1つのスレーブについて、キューで受け取ったマスターの行とスレーブのキーを突き合わせる
+     */
+    private class SlaveReplicator implements Callable<Long> {
+        private final String tableName;
+        private final DataSourceWrapper slave;
+        private final int keyIndex;
+        private final int updateIndex;
+        private final BlockingQueue<Object[]> queue =
+                new ArrayBlockingQueue<Object[]>(fetchSize);
+
+        private ConnectionManager reader;
+        private ConnectionManager writer;
+        private ResultSet keys;
+        private SlaveWriter slaveWriter;
+        private Object slaveUpdate;
+        /** ENDを受け取っていればtrue */
+        private boolean ended;
+
+        public SlaveReplicator(String tableName, DataSourceWrapper slave,
+                int keyIndex, int updateIndex) {
+            this.tableName = tableName;
+            this.slave = slave;
+            this.keyIndex = keyIndex;
+            this.updateIndex = updateIndex;
+        }
+
+        /**
+         * 定期的にコミットしてもカーソルが閉じないよう、読み込みと書き込みで別の接続を使う
+         */
+        public boolean open(String[] columns) throws SQLException {
+            reader = new ConnectionManager(slave);
+            writer = new ConnectionManager(slave);
+            if (!reader.isConnected() || !writer.isConnected()) {
+                return false;
+            }
+
+            reader.setAutoCommit(false);
+            Statement stmt = reader.createStatement();
+            stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
+            stmt.setFetchSize(fetchSize);
+            keys =
+                    stmt.executeQuery(String.format(
+                            "SELECT %s%s FROM %s ORDER BY %s", keyColumn,
+                            updateIndex >= 0 ? ", " + updateColumn : "",
+                            tableName, keyColumn));
+
+            writer.setAutoCommit(false);
+            slaveWriter =
+                    new SlaveWriter(writer, tableName, keyColumn, columns,
+                            batchSize, commitInterval);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Comparable<Object> nextKey() throws SQLException {
+            if (!keys.next()) {
+                return null;
+            }
+            if (updateIndex >= 0) {
+                slaveUpdate = keys.getObject(2);
+            }
+            return (Comparable<Object>) keys.getObject(1);
+        }
+
+        @Override
+        public Long call() throws Exception {
+            long rows = 0;
+            try {
+                Comparable<Object> slaveKey = nextKey();
+                Object[] row;
+                while ((row = queue.take()) != END) {
+                    Object key = row[keyIndex];
+                    while (slaveKey != null && slaveKey.compareTo(key) < 0) {
+                        slaveWriter.delete(slaveKey);
+                        slaveKey = nextKey();
+                    }
+                    if (slaveKey != null && slaveKey.compareTo(key) == 0) {
+                        if (updateIndex < 0
+                                || !DatabaseReplicator.equals(
+                                        row[updateIndex], slaveUpdate)) {
+                            slaveWriter.update(row);
+                        }
+                        slaveKey = nextKey();
+                    } else {
+                        slaveWriter.insert(row);
+                    }
+
+                    if (++rows % batchSize == 0) {
+                        progress(rows);
+                    }
+                }
+                ended = true;
+                while (slaveKey != null) {
+                    slaveWriter.delete(slaveKey);
+                    slaveKey = nextKey();
+                }
+                slaveWriter.commit();
+                progress(rows);
+
+                logger.info(
+                        "Replicated {} to {} : {} rows, {} inserted, {} updated, {} deleted",
+                        new Object[] { tableName, slave.getName(), rows,
+                                slaveWriter.getInserted(),
+                                slaveWriter.getUpdated(),
+                                slaveWriter.getDeleted() });
+                return slaveWriter.getChanged();
+            } catch (SQLException e) {
+                drain();
+                throw e;
+            } catch (RuntimeException e) {
+                drain();
+                throw e;
+            }
+        }
+
+        /**
+         * マスターの読み込みを止めないよう、残りの行を読み捨てる
+         */
+        private void drain() throws InterruptedException {
+            while (!ended) {
+                ended = queue.take() == END;
+            }
+        }
+
+        private void progress(long rows) {
+            ProgressListener listener = progressListener;
+            if (listener != null) {
+                listener.progress(tableName, slave, rows,
+                        slaveWriter.getChanged());
+            }
+        }
+
+        public void dispose() {
+            if (reader != null) {
+                reader.dispose();
+            }
+            if (writer != null) {
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * キーの範囲ごとの集計値をマスターとスレーブで比較し、一致しない範囲だけを複製する。
+     *
+     * 範囲の集計値が異なる場合はchecksumFanout個に分割して比較を繰り返し、
+     * 行数がbatchSize以下になった範囲の行を突き合わせて変更を適用する。
+     * 変更が少なければ、読み込む行数はテーブルの大きさではなく変更の数に比例する。
+     * キーは整数のカラムである必要がある。
+     */
+    public long replicateChecksum(String tableName) throws SQLException,
+            InterruptedException {
+        String sqlRange =
+                String.format("SELECT MIN(%s), MAX(%s) FROM %s", keyColumn,
+                        keyColumn, tableName);
+
+        ConnectionManager connMaster = null;
+        ConnectionManager connSlave = null;
+        try {
+            connMaster = new ConnectionManager(master);
+            connMaster.setAutoCommit(false);
+
+            ResultSet rs =
+                    connMaster.createStatement().executeQuery(
+                            String.format("SELECT * FROM %s WHERE 1 = 0",
+                                    tableName));
+            ResultSetMetaData metaData = rs.getMetaData();
+            String[] columns = new String[metaData.getColumnCount()];
+            for (int i = 0; i < columns.length; ++i) {
+                columns[i] = metaData.getColumnName(i + 1);
+            }
+            rs.close();
+            int keyIndex = SlaveWriter.indexOf(columns, keyColumn);
+            int updateIndex = SlaveWriter.indexOf(columns, updateColumn);
+
+            ChecksumRange masterRange =
+                    new ChecksumRange(connMaster, tableName);
+            long ret = 0;
+            for (DataSourceWrapper slave : slaves) {
+                connSlave = new ConnectionManager(slave);
+                if (!connSlave.isConnected()) {
+                    connSlave = null;
+                    continue;
+                }
+                connSlave.setAutoCommit(false);
+
+                long[] range = getKeyRange(connMaster, sqlRange, null);
+                range = getKeyRange(connSlave, sqlRange, range);
+                if (range != null) {
+                    SlaveWriter writer =
+                            new SlaveWriter(connSlave, tableName, keyColumn,
+                                    columns, batchSize, commitInterval);
+                    compareRange(masterRange, new ChecksumRange(connSlave,
+                            tableName), writer, keyIndex, updateIndex,
+                            range[0], range[1] + 1);
+                    writer.commit();
+
+                    logger.info(
+                            "Replicated {} to {} : {} inserted, {} updated, {} deleted",
+                            new Object[] { tableName, slave.getName(),
+                                    writer.getInserted(), writer.getUpdated(),
+                                    writer.getDeleted() });
+                    ret += writer.getChanged();
+                }
+
+                connSlave.dispose();
+                connSlave = null;
+            }
+            return ret;
+        } finally {
+            if (connMaster != null) {
+                connMaster.dispose();
+            }
+            if (connSlave != null) {
+                connSlave.dispose();
+            }
+        }
+    }
+
+    private long[] getKeyRange(ConnectionManager conn, String sql,
+            long[] range) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery(sql);
+        rs.next();
+        Number min = (Number) rs.getObject(1);
+        Number max = (Number) rs.getObject(2);
+        rs.close();
+        if (min == null) {
+            return range;
+        } else if (range == null) {
+            return new long[] { min.longValue(), max.longValue() };
+        } else {
+            return new long[] { Math.min(range[0], min.longValue()),
+                    Math.max(range[1], max.longValue()) };
+        }
+    }
+
+    /**
+     * [from, to)の範囲を比較する
+     */
+    @SuppressWarnings("unchecked")
+    private void compareRange(ChecksumRange masterRange,
+            ChecksumRange slaveRange, SlaveWriter writer, int keyIndex,
+            int updateIndex, long from, long to) throws SQLException,
+            InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        Object[] masterSum = masterRange.checksum(from, to);
+        Object[] slaveSum = slaveRange.checksum(from, to);
+        if (equals(masterSum, slaveSum)) {
+            return;
+        }
+
+        long rows =
+                Math.max(((Number) masterSum[0]).longValue(),
+                        ((Number) slaveSum[0]).longValue());
+        if (rows > batchSize && to - from > checksumFanout) {
+            long step = (to - from + checksumFanout - 1) / checksumFanout;
+            for (long begin = from; begin < to; begin += step) {
+                compareRange(masterRange, slaveRange, writer, keyIndex,
+                        updateIndex, begin, Math.min(begin + step, to));
+            }
+            return;
+        }
+
+        // 範囲内のスレーブのキーは読み終えてから変更する
+        List<Object[]> slaveKeys = slaveRange.keys(from, to);
+        ResultSet rs = masterRange.rows(from, to);
+        int pos = 0;
+        while (rs.next()) {
+            Object[] row = new Object[rs.getMetaData().getColumnCount()];
+            for (int i = 0; i < row.length; ++i) {
+                row[i] = rs.getObject(i + 1);
+            }
+            Object key = row[keyIndex];
+            while (pos < slaveKeys.size()
+                    && ((Comparable<Object>) slaveKeys.get(pos)[0])
+                            .compareTo(key) < 0) {
+                writer.delete(slaveKeys.get(pos++)[0]);
+            }
+            if (pos < slaveKeys.size()
+                    && ((Comparable<Object>) slaveKeys.get(pos)[0])
+                            .compareTo(key) == 0) {
+                if (!equals(row[updateIndex], slaveKeys.get(pos)[1])) {
+                    writer.update(row);
+                }
+                ++pos;
+            } else {
+                writer.insert(row);
+            }
+        }
+        rs.close();
+        while (pos < slaveKeys.size()) {
+            writer.delete(slaveKeys.get(pos++)[0]);
+        }
+    }
+
+    private static boolean equals(Object[] a, Object[] b) {
+        for (int i = 0; i < a.length; ++i) {
+            if (!equals(a[i], b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(Object a, Object b) {
+        if (a instanceof BigDecimal && b instanceof BigDecimal) {
+            return ((BigDecimal) a).compareTo((BigDecimal) b) == 0;
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * キーの範囲に含まれる行の集計値を返すSQL。パラメータは範囲の開始(含む)と終了(含まない)。
+     *
+     * 1列目は行数でなければならない。既定はキーの合計と、更新日時(ms)をキーで重み付けした合計。
+     * 誤差が出ないよう整数で合計する。
+     *
+     * 既定のSQLはEXTRACT(EPOCH FROM ...)を使うため、PostgreSQLとH2でしか動かない。
+     * 他のデータベースではオーバーライドする。
+     */
+    protected String getChecksumSql(String tableName) {
+        return String.format("SELECT COUNT(*), SUM(%1$s), "
+                + "SUM(CAST(FLOOR(EXTRACT(EPOCH FROM %2$s) * 1000) AS BIGINT) "
+                + "* (MOD(%1$s, 65521) + 1)) "
+                + "FROM %3$s WHERE %1$s >= ? AND %1$s < ?", keyColumn,
+                updateColumn, tableName);
+    }
+
+    /**
+     * 1つの接続でのキーの範囲の集計と読み込み
+     */
+    private class ChecksumRange {
+        private final PreparedStatement checksum;
+        private final PreparedStatement keys;
+        private final PreparedStatement rows;
+
+        public ChecksumRange(ConnectionManager conn, String tableName)
+                throws SQLException {
+            this.checksum = conn.prepareStatement(getChecksumSql(tableName));
+            this.keys =
+                    conn.prepareStatement(String.format(
+                            "SELECT %1$s, %2$s FROM %3$s "
+                                    + "WHERE %1$s >= ? AND %1$s < ? ORDER BY %1$s",
+                            keyColumn, updateColumn, tableName));
+            this.rows =
+                    conn.prepareStatement(String.format("SELECT * FROM %2$s "
+                            + "WHERE %1$s >= ? AND %1$s < ? ORDER BY %1$s",
+                            keyColumn, tableName));
+        }
+
+        public Object[] checksum(long from, long to) throws SQLException {
+            ResultSet rs = execute(checksum, from, to);
+            rs.next();
+            Object[] ret = new Object[rs.getMetaData().getColumnCount()];
+            for (int i = 0; i < ret.length; ++i) {
+                ret[i] = rs.getObject(i + 1);
+            }
+            rs.close();
+            return ret;
+        }
+
+        public List<Object[]> keys(long from, long to) throws SQLException {
+            List<Object[]> ret = new ArrayList<Object[]>();
+            ResultSet rs = execute(keys, from, to);
+            while (rs.next()) {
+                ret.add(new Object[] { rs.getObject(1), rs.getObject(2) });
+            }
+            rs.close();
+            return ret;
+        }
+
+        public ResultSet rows(long from, long to) throws SQLException {
+            return execute(rows, from, to);
+        }
+
+        private ResultSet execute(PreparedStatement stmt, long from, long to)
+                throws SQLException {
+            stmt.setLong(1, from);
+            stmt.setLong(2, to);
+            return stmt.executeQuery();
+        }
+    }
+
+    /**
+     * 前回の複製以降に更新された行だけをマスターから読み、スレーブの行をUPDATEする(なければINSERTする)。
+     *
+     * スレーブごとに複製済みの(更新日時, キー)をReplicationWatermarkStoreに保存し、
+     * 保存されていないスレーブにはすべての行を複製する。
+     * マスターで削除された行は、reconcileIntervalごとにキーだけを突き合わせて削除する。
+     * 更新日時がnullの行と、保存済みの位置より古い更新日時でコミットされた行は、最初の複製以外では複製されない。
+     */
+    public long replicateIncremental(String tableName) throws SQLException,
+            IOException, InterruptedException {
+        if (watermarkStore == null) {
+            throw new IncompatibleConfigurationException(
+                    "Watermark store is not set");
+        }
+
+        ConnectionManager connMaster = null;
+        ConnectionManager connSlave = null;
+        try {
+            connMaster = new ConnectionManager(master);
+            connMaster.setAutoCommit(false);
+
+            long ret = 0;
+            for (DataSourceWrapper slave : slaves) {
+                connSlave = new ConnectionManager(slave);
+                if (!connSlave.isConnected()) {
+                    connSlave = null;
+                    continue;
+                }
+                connSlave.setAutoCommit(false);
+
+                ret += replicateIncremental(tableName, connMaster, slave,
+                        connSlave);
+
+                connSlave.dispose();
+                connSlave = null;
+            }
+            return ret;
+        } finally {
+            if (connMaster != null) {
+                connMaster.dispose();
+            }
+            if (connSlave != null) {
+                connSlave.dispose();
+            }
+        }
+    }
+
+    private long replicateIncremental(String tableName,
+            ConnectionManager connMaster, DataSourceWrapper slave,
+            ConnectionManager connSlave) throws SQLException, IOException,
+            InterruptedException {
+        ReplicationWatermark watermark =
+                watermarkStore.load(tableName, slave.getName());
+
+        PreparedStatement stmt;
+        if (watermark == null) {
+            stmt =
+                    connMaster.prepareStatement(String.format(
+                            "SELECT * FROM %s ORDER BY %s, %s", tableName,
+                            updateColumn, keyColumn));
+        } else {
+            stmt =
+                    connMaster.prepareStatement(String.format(
+                            "SELECT * FROM %1$s WHERE %2$s > ? "
+                                    + "OR (%2$s = ? AND %3$s > ?) ORDER BY %2$s, %3$s",
+                            tableName, updateColumn, keyColumn));
+            stmt.setObject(1, watermark.getUpdate());
+            stmt.setObject(2, watermark.getUpdate());
+            stmt.setObject(3, watermark.getKey());
+        }
+        stmt.setFetchSize(fetchSize);
+        ResultSet rs = stmt.executeQuery();
+
+        ResultSetMetaData metaData = rs.getMetaData();
+        String[] columns = new String[metaData.getColumnCount()];
+        for (int i = 0; i < columns.length; ++i) {
+            columns[i] = metaData.getColumnName(i + 1);
+        }
+        int keyIndex = SlaveWriter.indexOf(columns, keyColumn);
+        int updateIndex = SlaveWriter.indexOf(columns, updateColumn);
+
+        SlaveWriter writer =
+                new SlaveWriter(connSlave, tableName, keyColumn, columns,
+                        batchSize, commitInterval);
+        Object update = watermark != null ? watermark.getUpdate() : null;
+        Object key = watermark != null ? watermark.getKey() : null;
+        long copied = 0;
+        while (rs.next()) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < row.length; ++i) {
+                row[i] = rs.getObject(i + 1);
+            }
+            writer.upsert(row);
+            if (row[updateIndex] != null) {
+                update = row[updateIndex];
+                key = row[keyIndex];
+            }
+            ++copied;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        rs.close();
+
+        long reconciled =
+                watermark != null ? watermark.getReconciled() : 0;
+        long deleted = 0;
+        if (System.currentTimeMillis() - reconciled >= reconcileInterval) {
+            reconciled = System.currentTimeMillis();
+            deleted = reconcileDeletes(tableName, connMaster, slave, writer);
+        }
+        writer.commit();
+        if (update != null) {
+            watermarkStore.save(tableName, slave.getName(),
+                    new ReplicationWatermark(update, key, reconciled));
+        }
+
+        logger.info("Replicated {} to {} : {} copied, {} deleted",
+                new Object[] { tableName, slave.getName(), copied, deleted });
+        return copied + deleted;
+    }
+
+    /**
+     * マスターとスレーブのキーを突き合わせ、マスターにないキーをスレーブから削除する
+     */
+    @SuppressWarnings("unchecked")
+    private long reconcileDeletes(String tableName,
+            ConnectionManager connMaster, DataSourceWrapper slave,
+            SlaveWriter writer) throws SQLException, InterruptedException {
+        String sql =
+                String.format("SELECT %s FROM %s ORDER BY %s", keyColumn,
+                        tableName, keyColumn);
+
+        // writerのコミットでカーソルが閉じないよう、スレーブのキーは別の接続で読む
+        ConnectionManager reader = new ConnectionManager(slave);
+        try {
+            if (!reader.isConnected()) {
+                return 0;
+            }
+            reader.setAutoCommit(false);
+
+            Statement stmtMaster = connMaster.createStatement();
+            stmtMaster.setFetchSize(fetchSize);
+            ResultSet rsMaster = stmtMaster.executeQuery(sql);
+            Statement stmtSlave = reader.createStatement();
+            stmtSlave.setFetchSize(fetchSize);
+            ResultSet rsSlave = stmtSlave.executeQuery(sql);
+
+            long ret = 0;
+            Comparable<Object> masterKey =
+                    rsMaster.next() ? (Comparable<Object>) rsMaster.getObject(1)
+                            : null;
+            while (rsSlave.next()) {
+                Object slaveKey = rsSlave.getObject(1);
+                while (masterKey != null && masterKey.compareTo(slaveKey) < 0) {
+                    masterKey =
+                            rsMaster.next() ? (Comparable<Object>) rsMaster.getObject(1)
+                                    : null;
+                }
+                if (masterKey == null || masterKey.compareTo(slaveKey) != 0) {
+                    writer.delete(slaveKey);
+                    ++ret;
+                }
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            rsMaster.close();
+            rsSlave.close();
+            return ret;
+        } finally {
+            reader.dispose();
+        }
+    }
+
     private void insertRecord(ResultSet dest, ResultSet src)
             throws SQLException {
         ResultSetMetaData destMetaData = dest.getMetaData();
@@ -0,0 +1,91 @@
+package org.karatachi.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ReplicationWatermarkを1つのファイルにシリアライズして保存する。
+ *
+ * 保存は一時ファイルに書き込んでディスクに同期してから、同じディレクトリ内で不可分に置き換える。
+ * 書き込み中に停止しても前回の内容が残る。
+ */
+public class FileReplicationWatermarkStore implements
+        ReplicationWatermarkStore {
+    private final File file;
+    private HashMap<String, ReplicationWatermark> watermarks;
+
+    public FileReplicationWatermarkStore(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized ReplicationWatermark load(String tableName,
+            String slaveName) throws IOException {
+        return getWatermarks().get(getKey(tableName, slaveName));
+    }
+
+    @Override
+    public synchronized void save(String tableName, String slaveName,
+            ReplicationWatermark watermark) throws IOException {
+        HashMap<String, ReplicationWatermark> watermarks =
+                new HashMap<String, ReplicationWatermark>(getWatermarks());
+        if (watermark != null) {
+            watermarks.put(getKey(tableName, slaveName), watermark);
+        } else {
+            watermarks.remove(getKey(tableName, slaveName));
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        ObjectOutputStream out = new ObjectOutputStream(stream);
+        try {
+            out.writeObject(watermarks);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        this.watermarks = watermarks;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ReplicationWatermark> getWatermarks()
+            throws IOException {
+        if (watermarks == null) {
+            if (file.exists()) {
+                ObjectInputStream in =
+                        new ObjectInputStream(new FileInputStream(file));
+                try {
+                    watermarks =
+                            (HashMap<String, ReplicationWatermark>) in.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                } finally {
+                    in.close();
+                }
+            } else {
+                watermarks = new HashMap<String, ReplicationWatermark>();
+            }
+        }
+        return watermarks;
+    }
+
+    private String getKey(String tableName, String slaveName) {
+        return tableName + " " + slaveName;
+    }
+}
@@ -0,0 +1,338 @@
+package org.karatachi.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ConnectionPoolが貸し出す接続。close()で作成したStatementを閉じ、物理的な接続をプールに返す。
+ *
+ * Statementはプロキシで返し、getConnection()で物理的な接続ではなくこの接続を返す。
+ */
+final class PooledConnectionWrapper implements Connection {
+    private final ConnectionPool pool;
+    private final ConnectionPool.Entry entry;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    /** 閉じられていないStatement */
+    private final Set<Statement> statements = Collections
+            .newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+
+    public PooledConnectionWrapper(ConnectionPool pool,
+            ConnectionPool.Entry entry) {
+        this.pool = pool;
+        this.entry = entry;
+    }
+
+    private Connection get() throws SQLException {
+        if (closed.get()) {
+            throw new SQLException("Connection is closed");
+        }
+        return entry.connection;
+    }
+
+    private <T extends Statement> T track(Class<T> type, final T statement) {
+        statements.add(statement);
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+                new Class<?>[] { type }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("getConnection") && args == null) {
+                            return PooledConnectionWrapper.this;
+                        }
+                        if (name.equals("close") && args == null) {
+                            statements.remove(statement);
+                        }
+                        try {
+                            return method.invoke(statement, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                }));
+    }
+
+    public void close() throws SQLException {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                for (Statement statement : new ArrayList<Statement>(statements)) {
+                    try {
+                        statement.close();
+                    } catch (SQLException ignore) {
+                    }
+                }
+                statements.clear();
+            } finally {
+                pool.release(entry);
+            }
+        }
+    }
+
+    public boolean isClosed() throws SQLException {
+        return closed.get() || entry.connection.isClosed();
+    }
+
+    public Statement createStatement() throws SQLException {
+        return track(Statement.class, get().createStatement());
+    }
+
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return track(PreparedStatement.class, get().prepareStatement(sql));
+    }
+
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return track(CallableStatement.class, get().prepareCall(sql));
+    }
+
+    public String nativeSQL(String sql) throws SQLException {
+        return get().nativeSQL(sql);
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        get().setAutoCommit(autoCommit);
+    }
+
+    public boolean getAutoCommit() throws SQLException {
+        return get().getAutoCommit();
+    }
+
+    public void commit() throws SQLException {
+        get().commit();
+    }
+
+    public void rollback() throws SQLException {
+        get().rollback();
+    }
+
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return get().getMetaData();
+    }
+
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        get().setReadOnly(readOnly);
+    }
+
+    public boolean isReadOnly() throws SQLException {
+        return get().isReadOnly();
+    }
+
+    public void setCatalog(String catalog) throws SQLException {
+        get().setCatalog(catalog);
+    }
+
+    public String getCatalog() throws SQLException {
+        return get().getCatalog();
+    }
+
+    public void setTransactionIsolation(int level) throws SQLException {
+        get().setTransactionIsolation(level);
+    }
+
+    public int getTransactionIsolation() throws SQLException {
+        return get().getTransactionIsolation();
+    }
+
+    public SQLWarning getWarnings() throws SQLException {
+        return get().getWarnings();
+    }
+
+    public void clearWarnings() throws SQLException {
+        get().clearWarnings();
+    }
+
+    public Statement createStatement(int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        return track(Statement.class,
+                get().createStatement(resultSetType, resultSetConcurrency));
+    }
+
+    public PreparedStatement prepareStatement(String sql, int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        return track(PreparedStatement.class,
+                get().prepareStatement(sql, resultSetType,
+                        resultSetConcurrency));
+    }
+
+    public CallableStatement prepareCall(String sql, int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        return track(CallableStatement.class,
+                get().prepareCall(sql, resultSetType, resultSetConcurrency));
+    }
+
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return get().getTypeMap();
+    }
+
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        get().setTypeMap(map);
+    }
+
+    public void setHoldability(int holdability) throws SQLException {
+        get().setHoldability(holdability);
+    }
+
+    public int getHoldability() throws SQLException {
+        return get().getHoldability();
+    }
+
+    public Savepoint setSavepoint() throws SQLException {
+        return get().setSavepoint();
+    }
+
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return get().setSavepoint(name);
+    }
+
+    public void rollback(Savepoint savepoint) throws SQLException {
+        get().rollback(savepoint);
+    }
+
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        get().releaseSavepoint(savepoint);
+    }
+
+    public Statement createStatement(int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return track(Statement.class,
+                get().createStatement(resultSetType, resultSetConcurrency,
+                        resultSetHoldability));
+    }
+
+    public PreparedStatement prepareStatement(String sql, int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return track(PreparedStatement.class,
+                get().prepareStatement(sql, resultSetType,
+                        resultSetConcurrency, resultSetHoldability));
+    }
+
+    public CallableStatement prepareCall(String sql, int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return track(CallableStatement.class,
+                get().prepareCall(sql, resultSetType,
+                        resultSetConcurrency, resultSetHoldability));
+    }
+
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
+            throws SQLException {
+        return track(PreparedStatement.class,
+                get().prepareStatement(sql, autoGeneratedKeys));
+    }
+
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
+            throws SQLException {
+        return track(PreparedStatement.class,
+                get().prepareStatement(sql, columnIndexes));
+    }
+
+    public PreparedStatement prepareStatement(String sql, String[] columnNames)
+            throws SQLException {
+        return track(PreparedStatement.class,
+                get().prepareStatement(sql, columnNames));
+    }
+
+    public Clob createClob() throws SQLException {
+        return get().createClob();
+    }
+
+    public Blob createBlob() throws SQLException {
+        return get().createBlob();
+    }
+
+    public NClob createNClob() throws SQLException {
+        return get().createNClob();
+    }
+
+    public SQLXML createSQLXML() throws SQLException {
+        return get().createSQLXML();
+    }
+
+    public boolean isValid(int timeout) throws SQLException {
+        return !closed.get() && entry.connection.isValid(timeout);
+    }
+
+    public void setClientInfo(String name, String value)
+            throws SQLClientInfoException {
+        entry.connection.setClientInfo(name, value);
+    }
+
+    public void setClientInfo(Properties properties)
+            throws SQLClientInfoException {
+        entry.connection.setClientInfo(properties);
+    }
+
+    public String getClientInfo(String name) throws SQLException {
+        return get().getClientInfo(name);
+    }
+
+    public Properties getClientInfo() throws SQLException {
+        return get().getClientInfo();
+    }
+
+    public Array createArrayOf(String typeName, Object[] elements)
+            throws SQLException {
+        return get().createArrayOf(typeName, elements);
+    }
+
+    public Struct createStruct(String typeName, Object[] attributes)
+            throws SQLException {
+        return get().createStruct(typeName, attributes);
+    }
+
+    public void setSchema(String schema) throws SQLException {
+        get().setSchema(schema);
+    }
+
+    public String getSchema() throws SQLException {
+        return get().getSchema();
+    }
+
+    public void abort(Executor executor) throws SQLException {
+        get().abort(executor);
+        close();
+    }
+
+    public void setNetworkTimeout(Executor executor, int milliseconds)
+            throws SQLException {
+        get().setNetworkTimeout(executor, milliseconds);
+    }
+
+    public int getNetworkTimeout() throws SQLException {
+        return get().getNetworkTimeout();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return get().unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return get().isWrapperFor(iface);
+    }
+}
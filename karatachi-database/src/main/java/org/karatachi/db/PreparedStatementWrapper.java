@@ -23,23 +23,36 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.Calendar;
 
-import org.karatachi.classloader.Reflection;
 import org.karatachi.thread.AcceptInterruptable;
 import org.karatachi.thread.InterruptableOperation;
+import org.karatachi.thread.InterruptableSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public final class PreparedStatementWrapper implements PreparedStatement {
-    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final Logger logger =
+            LoggerFactory.getLogger(PreparedStatementWrapper.class);
 
     private final PreparedStatement statement;
     private final String sql;
-    private final String[] args = new String[256];
+    /** DEBUGレベルのログとStatementStatisticsのパラメータの記録が無効であればnull */
+    private StatementParameters parameters;
+    private StatementMetrics metrics;
+    /** 実行中の文が更新した行数。不明であれば-1 */
+    private long rows;
+    private boolean succeeded;
     private final InterruptableOperation interruptable;
+    private boolean cached;
 
     public PreparedStatementWrapper(PreparedStatement statement, String sql) {
         this.statement = statement;
         this.sql = sql;
+        if (logger.isDebugEnabled()
+                || StatementStatistics.isCaptureParameters()) {
+            this.parameters =
+                    new StatementParameters(
+                            StatementParameters.countPlaceholders(sql));
+        }
         this.interruptable = new InterruptableOperation() {
             @Override
             public void interrupt() {
@@ -52,10 +65,18 @@ public final class PreparedStatementWrapper implements PreparedStatement {
         };
     }
 
+    /**
+     * StatementCacheが保持している間はclose()で閉じない
+     */
+    void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
     private void setInterruptable() throws SQLException {
-        if (Thread.currentThread() instanceof AcceptInterruptable) {
+        AcceptInterruptable acceptor = InterruptableSupport.current();
+        if (acceptor != null) {
             try {
-                ((AcceptInterruptable) Thread.currentThread()).setInterruptable(interruptable);
+                acceptor.setInterruptable(interruptable);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 throw new SQLException("Thread Interrupted", e);
@@ -64,61 +85,115 @@ public final class PreparedStatementWrapper implements PreparedStatement {
     }
 
     private void clearInterruptable() {
-        if (Thread.currentThread() instanceof AcceptInterruptable) {
-            ((AcceptInterruptable) Thread.currentThread()).clearInterruptable();
+        AcceptInterruptable acceptor = InterruptableSupport.current();
+        if (acceptor != null) {
+            acceptor.clearInterruptable();
         }
     }
 
-    private void logExecute(String sql) {
-        if (logger.isDebugEnabled()) {
-            StringBuffer sb = new StringBuffer(sql);
-            for (int i = 0; i < 256; ++i) {
-                int pos = sb.indexOf("?");
-                if (pos == -1) {
-                    break;
-                }
-                String str = args[i];
-                if (str == null) {
-                    str = "null";
-                }
-                sb.replace(pos, pos + 1, str);
-            }
+    private void logExecute(String sql, StatementParameters parameters) {
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
+        if (parameters == null && sql == this.sql) {
+            // 生成後にDEBUGレベルが有効になった場合は次の実行から記録する
+            this.parameters =
+                    new StatementParameters(
+                            StatementParameters.countPlaceholders(sql));
+        }
 
-            String logstr = "Execute SQL : sql = " + sb.toString();
-            if (logger.isTraceEnabled()) {
-                logstr =
-                        logstr + " from : "
-                                + Reflection.getAncestorMethodInfo(2);
+        StringBuilder sb = new StringBuilder(sql.length() + 64);
+        sb.append("Execute SQL : sql = ");
+        if (parameters != null) {
+            parameters.format(sb, sql);
+        } else {
+            sb.append(sql);
+        }
+        if (logger.isTraceEnabled()) {
+            String caller = StatementTrace.getCaller(2);
+            if (caller != null) {
+                sb.append(" from : ").append(caller);
             }
+        }
+        logger.debug(sb.toString());
+    }
 
-            logger.debug(logstr);
+    /**
+     * 集計が無効であれば0を返す
+     */
+    private long begin() {
+        rows = -1L;
+        succeeded = false;
+        return StatementStatistics.isEnabled() ? System.nanoTime() : 0L;
+    }
+
+    private boolean executed(boolean ret) {
+        succeeded = true;
+        return ret;
+    }
+
+    private ResultSet executed(ResultSet ret) {
+        succeeded = true;
+        return ret;
+    }
+
+    private int executed(int ret) {
+        rows = ret;
+        succeeded = true;
+        return ret;
+    }
+
+    private int[] executed(int[] ret) {
+        rows = StatementStatistics.sumUpdateCounts(ret);
+        succeeded = true;
+        return ret;
+    }
+
+    private void record(String sql, StatementParameters parameters,
+            long started) {
+        if (started == 0L) {
+            return;
+        }
+        StatementMetrics metrics;
+        if (sql == this.sql) {
+            if (this.metrics == null) {
+                this.metrics = StatementStatistics.getMetrics(sql);
+            }
+            metrics = this.metrics;
+        } else {
+            metrics = StatementStatistics.getMetrics(sql);
         }
+        StatementStatistics.record(metrics, System.nanoTime() - started, rows,
+                !succeeded, sql, parameters);
     }
 
     private void set(int parameterIndex, Object x) {
-        if (!logger.isDebugEnabled()) {
-            return;
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
         }
+    }
 
-        if (x == null) {
-            args[parameterIndex - 1] = "null";
-        } else if (x instanceof String) {
-            args[parameterIndex - 1] = String.format("'%s'", x);
-        } else if (x instanceof Boolean) {
-            args[parameterIndex - 1] = x.toString();
-        } else if (x instanceof Number) {
-            args[parameterIndex - 1] = x.toString();
-        } else if (x instanceof Date) {
-            args[parameterIndex - 1] = String.format("'%tF'::date", x);
-        } else if (x instanceof Time) {
-            args[parameterIndex - 1] = String.format("'%tT'::time", x);
-        } else if (x instanceof Timestamp) {
-            args[parameterIndex - 1] =
-                    String.format("'%1$tF %1$tT'::timestamp", x);
-        } else {
-            args[parameterIndex - 1] =
-                    String.format("'%s'::%s", x,
-                            x.getClass().getCanonicalName());
+    private void set(int parameterIndex, long x) {
+        if (parameters != null) {
+            parameters.setLong(parameterIndex, x);
+        }
+    }
+
+    private void set(int parameterIndex, double x) {
+        if (parameters != null) {
+            parameters.setDouble(parameterIndex, x);
+        }
+    }
+
+    private void set(int parameterIndex, float x) {
+        if (parameters != null) {
+            parameters.setFloat(parameterIndex, x);
+        }
+    }
+
+    private void set(int parameterIndex, boolean x) {
+        if (parameters != null) {
+            parameters.setBoolean(parameterIndex, x);
         }
     }
 
@@ -128,29 +203,44 @@ public final class PreparedStatementWrapper implements PreparedStatement {
 
     public void clearParameters() throws SQLException {
         statement.clearParameters();
+        if (parameters != null) {
+            parameters.clear();
+        }
     }
 
     public boolean execute() throws SQLException {
-        return statement.execute();
+        long started = begin();
+        try {
+            setInterruptable();
+            logExecute(sql, parameters);
+            return executed(statement.execute());
+        } finally {
+            clearInterruptable();
+            record(sql, parameters, started);
+        }
     }
 
     public ResultSet executeQuery() throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.executeQuery();
+            logExecute(sql, parameters);
+            return executed(statement.executeQuery());
         } finally {
             clearInterruptable();
+            record(sql, parameters, started);
         }
     }
 
     public int executeUpdate() throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.executeUpdate();
+            logExecute(sql, parameters);
+            return executed(statement.executeUpdate());
         } finally {
             clearInterruptable();
+            record(sql, parameters, started);
         }
     }
 
@@ -446,105 +536,133 @@ public final class PreparedStatementWrapper implements PreparedStatement {
     }
 
     public void close() throws SQLException {
+        if (cached) {
+            return;
+        }
         statement.close();
     }
 
     public boolean execute(String sql) throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.execute(sql);
+            logExecute(sql, null);
+            return executed(statement.execute(sql));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
     public boolean execute(String sql, int autoGeneratedKeys)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.execute(sql, autoGeneratedKeys);
+            logExecute(sql, null);
+            return executed(statement.execute(sql, autoGeneratedKeys));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
     public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.execute(sql, columnIndexes);
+            logExecute(sql, null);
+            return executed(statement.execute(sql, columnIndexes));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
     public boolean execute(String sql, String[] columnNames)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.execute(sql, columnNames);
+            logExecute(sql, null);
+            return executed(statement.execute(sql, columnNames));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
     public int[] executeBatch() throws SQLException {
-        return statement.executeBatch();
+        long started = begin();
+        try {
+            setInterruptable();
+            return executed(statement.executeBatch());
+        } finally {
+            clearInterruptable();
+            record(sql, null, started);
+        }
     }
 
     public ResultSet executeQuery(String sql) throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.executeQuery(sql);
+            logExecute(sql, null);
+            return executed(statement.executeQuery(sql));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
     public int executeUpdate(String sql) throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.executeUpdate(sql);
+            logExecute(sql, null);
+            return executed(statement.executeUpdate(sql));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
     public int executeUpdate(String sql, int autoGeneratedKeys)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.executeUpdate(sql, autoGeneratedKeys);
+            logExecute(sql, null);
+            return executed(statement.executeUpdate(sql, autoGeneratedKeys));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
     public int executeUpdate(String sql, int[] columnIndexes)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.executeUpdate(sql, columnIndexes);
+            logExecute(sql, null);
+            return executed(statement.executeUpdate(sql, columnIndexes));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
     public int executeUpdate(String sql, String[] columnNames)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
-            logExecute(sql);
-            return statement.executeUpdate(sql, columnNames);
+            logExecute(sql, null);
+            return executed(statement.executeUpdate(sql, columnNames));
         } finally {
             clearInterruptable();
+            record(sql, null, started);
         }
     }
 
@@ -0,0 +1,146 @@
+package org.karatachi.db;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.karatachi.db.DatabaseReplicator.ResultReducer;
+import org.karatachi.db.DatabaseReplicator.Selectable;
+
+/**
+ * DatabaseReplicator.executeQuery()で使うResultReducer
+ */
+public final class QueryReducers {
+    private QueryReducers() {
+    }
+
+    /**
+     * 1行目の1列目の値をSelectableで選ぶ
+     */
+    public static ResultReducer<Comparable<Object>> select(
+            final Selectable selectable) {
+        return new ResultReducer<Comparable<Object>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Comparable<Object> read(ResultSet rs) throws SQLException {
+                return rs.next() ? (Comparable<Object>) rs.getObject(1) : null;
+            }
+
+            @Override
+            public Comparable<Object> reduce(Comparable<Object> result,
+                    Comparable<Object> value) {
+                return selectable.replace(result, value) ? value : result;
+            }
+        };
+    }
+
+    /**
+     * 1行目の1列目の値の合計
+     */
+    public static final ResultReducer<BigDecimal> SUM =
+            new ResultReducer<BigDecimal>() {
+                @Override
+                public BigDecimal read(ResultSet rs) throws SQLException {
+                    return rs.next() ? rs.getBigDecimal(1) : null;
+                }
+
+                @Override
+                public BigDecimal reduce(BigDecimal result, BigDecimal value) {
+                    return result.add(value);
+                }
+            };
+
+    /**
+     * すべてのデータソースの行をデータソースの順に連結する
+     */
+    public static ResultReducer<List<Object[]>> union() {
+        return new ResultReducer<List<Object[]>>() {
+            @Override
+            public List<Object[]> read(ResultSet rs) throws SQLException {
+                return readRows(rs);
+            }
+
+            @Override
+            public List<Object[]> reduce(List<Object[]> result,
+                    List<Object[]> value) {
+                result.addAll(value);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * すべてのデータソースの行からcomparatorの順に先頭のlimit行を返す。
+     *
+     * 各データソースで読み込む行を減らすため、SQLにORDER BYとLIMITを指定するとよい。
+     */
+    public static ResultReducer<List<Object[]>> top(final int limit,
+            final Comparator<Object[]> comparator) {
+        return new ResultReducer<List<Object[]>>() {
+            @Override
+            public List<Object[]> read(ResultSet rs) throws SQLException {
+                List<Object[]> rows = readRows(rs);
+                Collections.sort(rows, comparator);
+                return rows.size() > limit ? new ArrayList<Object[]>(
+                        rows.subList(0, limit)) : rows;
+            }
+
+            @Override
+            public List<Object[]> reduce(List<Object[]> result,
+                    List<Object[]> value) {
+                List<Object[]> ret =
+                        new ArrayList<Object[]>(Math.min(limit, result.size()
+                                + value.size()));
+                int i = 0;
+                int j = 0;
+                while (ret.size() < limit
+                        && (i < result.size() || j < value.size())) {
+                    if (j >= value.size()
+                            || (i < result.size() && comparator.compare(
+                                    result.get(i), value.get(j)) <= 0)) {
+                        ret.add(result.get(i++));
+                    } else {
+                        ret.add(value.get(j++));
+                    }
+                }
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * column列目(1から始まる)の値の順に先頭のlimit行を返す。nullは最後になる
+     */
+    public static ResultReducer<List<Object[]>> top(int limit,
+            final int column, final boolean descending) {
+        return top(limit, new Comparator<Object[]>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public int compare(Object[] o1, Object[] o2) {
+                Comparable<Object> v1 = (Comparable<Object>) o1[column - 1];
+                Comparable<Object> v2 = (Comparable<Object>) o2[column - 1];
+                if (v1 == null || v2 == null) {
+                    return v1 == null ? (v2 == null ? 0 : 1) : -1;
+                }
+                return descending ? v2.compareTo(v1) : v1.compareTo(v2);
+            }
+        });
+    }
+
+    private static List<Object[]> readRows(ResultSet rs) throws SQLException {
+        int columns = rs.getMetaData().getColumnCount();
+        List<Object[]> ret = new ArrayList<Object[]>();
+        while (rs.next()) {
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns; ++i) {
+                row[i] = rs.getObject(i + 1);
+            }
+            ret.add(row);
+        }
+        return ret;
+    }
+}
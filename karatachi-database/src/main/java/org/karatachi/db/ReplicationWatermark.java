@@ -0,0 +1,46 @@
+package org.karatachi.db;
+
+import java.io.Serializable;
+
+/**
+ * DatabaseReplicator.replicateIncremental()でスレーブに複製済みの位置
+ */
+public class ReplicationWatermark implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Object update;
+    private final Object key;
+    private final long reconciled;
+
+    /**
+     * @param update
+     *            複製済みの更新日時の最大値
+     * @param key
+     *            updateの行のうち複製済みのキーの最大値
+     * @param reconciled
+     *            削除された行を最後に反映した時刻
+     */
+    public ReplicationWatermark(Object update, Object key, long reconciled) {
+        this.update = update;
+        this.key = key;
+        this.reconciled = reconciled;
+    }
+
+    public Object getUpdate() {
+        return update;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    public long getReconciled() {
+        return reconciled;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("update=%s, key=%s, reconciled=%tF %<tT", update,
+                key, reconciled);
+    }
+}
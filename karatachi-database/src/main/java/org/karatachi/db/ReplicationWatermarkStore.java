@@ -0,0 +1,17 @@
+package org.karatachi.db;
+
+import java.io.IOException;
+
+/**
+ * テーブルとスレーブごとのReplicationWatermarkを保存する
+ */
+public interface ReplicationWatermarkStore {
+    /**
+     * 保存されていなければnullを返す
+     */
+    ReplicationWatermark load(String tableName, String slaveName)
+            throws IOException;
+
+    void save(String tableName, String slaveName, ReplicationWatermark watermark)
+            throws IOException;
+}
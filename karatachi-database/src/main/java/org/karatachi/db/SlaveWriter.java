@@ -0,0 +1,240 @@
+package org.karatachi.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DatabaseReplicatorがスレーブに適用する変更を、INSERT/UPDATE/DELETEのバッチにまとめて実行する。
+ *
+ * 行はマスターのカラムの順のObject[]で受け取り、スレーブのカラムに名前で対応付ける。
+ * batchSize件ごとにexecuteBatch()を実行し、commitInterval件ごとにコミットする。
+ */
+class SlaveWriter {
+    private final ConnectionManager conn;
+    private final int batchSize;
+    private final int commitInterval;
+
+    private final PreparedStatement insert;
+    private final PreparedStatement update;
+    private final PreparedStatement delete;
+    /** upsert()用のUPDATE。キー以外のカラムがなければキーをそのまま代入する */
+    private final PreparedStatement upsert;
+    private final int keyIndex;
+    /** INSERTのパラメータに対応する行のインデックス */
+    private final int[] insertIndex;
+    /** UPDATEのパラメータに対応する行のインデックス。最後はキー */
+    private final int[] updateIndex;
+    /** upsert()のUPDATEのパラメータに対応する行のインデックス */
+    private final int[] upsertIndex;
+
+    /** upsert()のUPDATEのバッチに対応する行。更新されなかった行をINSERTする */
+    private final List<Object[]> pendingUpsert = new ArrayList<Object[]>();
+    private int pendingInsert;
+    private int pendingUpdate;
+    private int pendingDelete;
+    private int uncommitted;
+
+    private long inserted;
+    private long updated;
+    private long deleted;
+
+    public SlaveWriter(ConnectionManager conn, String tableName,
+            String keyColumn, String[] sourceColumns, int batchSize,
+            int commitInterval) throws SQLException {
+        this.conn = conn;
+        this.batchSize = batchSize;
+        this.commitInterval = commitInterval;
+
+        Statement stmt = conn.createStatement();
+        ResultSet rs =
+                stmt.executeQuery(String.format("SELECT * FROM %s WHERE 1 = 0",
+                        tableName));
+        ResultSetMetaData metaData = rs.getMetaData();
+        String[] columns = new String[metaData.getColumnCount()];
+        for (int i = 0; i < columns.length; ++i) {
+            columns[i] = metaData.getColumnName(i + 1);
+        }
+        rs.close();
+
+        this.keyIndex = indexOf(sourceColumns, keyColumn);
+        this.insertIndex = new int[columns.length];
+        this.updateIndex = new int[columns.length];
+        StringBuilder insertColumns = new StringBuilder();
+        StringBuilder insertValues = new StringBuilder();
+        StringBuilder updateColumns = new StringBuilder();
+        int u = 0;
+        for (int i = 0; i < columns.length; ++i) {
+            int index = indexOf(sourceColumns, columns[i]);
+            insertIndex[i] = index;
+            if (i > 0) {
+                insertColumns.append(", ");
+                insertValues.append(", ");
+            }
+            insertColumns.append(columns[i]);
+            insertValues.append("?");
+            if (index != keyIndex) {
+                if (u > 0) {
+                    updateColumns.append(", ");
+                }
+                updateColumns.append(columns[i]).append(" = ?");
+                updateIndex[u++] = index;
+            }
+        }
+        updateIndex[u] = keyIndex;
+
+        this.insert =
+                conn.prepareStatement(String.format(
+                        "INSERT INTO %s (%s) VALUES (%s)", tableName,
+                        insertColumns, insertValues));
+        this.update =
+                u > 0 ? conn.prepareStatement(String.format(
+                        "UPDATE %s SET %s WHERE %s = ?", tableName,
+                        updateColumns, keyColumn)) : null;
+        this.delete =
+                conn.prepareStatement(String.format(
+                        "DELETE FROM %s WHERE %s = ?", tableName, keyColumn));
+        if (update != null) {
+            this.upsert =
+                    conn.prepareStatement(String.format(
+                            "UPDATE %s SET %s WHERE %s = ?", tableName,
+                            updateColumns, keyColumn));
+            this.upsertIndex = updateIndex;
+        } else {
+            this.upsert =
+                    conn.prepareStatement(String.format(
+                            "UPDATE %1$s SET %2$s = ? WHERE %2$s = ?",
+                            tableName, keyColumn));
+            this.upsertIndex = new int[] { keyIndex, keyIndex };
+        }
+    }
+
+    static int indexOf(String[] columns, String column) throws SQLException {
+        for (int i = 0; i < columns.length; ++i) {
+            if (columns[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        throw new SQLException("Column " + column + " does not exist");
+    }
+
+    public void insert(Object[] row) throws SQLException {
+        addInsert(row);
+        added();
+    }
+
+    private void addInsert(Object[] row) throws SQLException {
+        for (int i = 0; i < insertIndex.length; ++i) {
+            insert.setObject(i + 1, row[insertIndex[i]]);
+        }
+        insert.addBatch();
+        ++pendingInsert;
+    }
+
+    public void update(Object[] row) throws SQLException {
+        if (update == null) {
+            return;
+        }
+        for (int i = 0; i < updateIndex.length; ++i) {
+            update.setObject(i + 1, row[updateIndex[i]]);
+        }
+        update.addBatch();
+        ++pendingUpdate;
+        added();
+    }
+
+    public void delete(Object key) throws SQLException {
+        delete.setObject(1, key);
+        delete.addBatch();
+        ++pendingDelete;
+        added();
+    }
+
+    /**
+     * スレーブの行をUPDATEし、行がなければ(更新件数が0なら)INSERTする。
+     * DELETEしないので、スレーブの外部キーのON DELETEは発火しない。
+     */
+    public void upsert(Object[] row) throws SQLException {
+        for (int i = 0; i < upsertIndex.length; ++i) {
+            upsert.setObject(i + 1, row[upsertIndex[i]]);
+        }
+        upsert.addBatch();
+        pendingUpsert.add(row);
+        added();
+    }
+
+    private void added() throws SQLException {
+        if (pendingInsert + pendingUpdate + pendingDelete
+                + pendingUpsert.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * 溜まっているバッチを実行し、commitInterval件を超えていればコミットする
+     */
+    public void flush() throws SQLException {
+        // 同じキーのDELETEとINSERTが並ぶ場合があるので、DELETEを先に実行する
+        if (pendingDelete > 0) {
+            delete.executeBatch();
+            deleted += pendingDelete;
+            uncommitted += pendingDelete;
+            pendingDelete = 0;
+        }
+        if (pendingUpdate > 0) {
+            update.executeBatch();
+            updated += pendingUpdate;
+            uncommitted += pendingUpdate;
+            pendingUpdate = 0;
+        }
+        if (!pendingUpsert.isEmpty()) {
+            int[] counts = upsert.executeBatch();
+            for (int i = 0; i < counts.length; ++i) {
+                // SUCCESS_NO_INFOは更新されたものとして扱う
+                if (counts[i] == 0) {
+                    addInsert(pendingUpsert.get(i));
+                } else {
+                    ++updated;
+                    ++uncommitted;
+                }
+            }
+            pendingUpsert.clear();
+        }
+        if (pendingInsert > 0) {
+            insert.executeBatch();
+            inserted += pendingInsert;
+            uncommitted += pendingInsert;
+            pendingInsert = 0;
+        }
+        if (uncommitted >= commitInterval) {
+            conn.commit();
+            uncommitted = 0;
+        }
+    }
+
+    public void commit() throws SQLException {
+        flush();
+        conn.commit();
+        uncommitted = 0;
+    }
+
+    public long getInserted() {
+        return inserted;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public long getChanged() {
+        return inserted + updated + deleted;
+    }
+}
@@ -0,0 +1,51 @@
+package org.karatachi.db;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * しきい値を超えたSQLの実行
+ */
+public class SlowQuery implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Date date;
+    private final double time;
+    private final String threadName;
+    private final String sql;
+
+    public SlowQuery(Date date, double time, String threadName, String sql) {
+        this.date = date;
+        this.time = time;
+        this.threadName = threadName;
+        this.sql = sql;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    /**
+     * 実行時間(ミリ秒)
+     */
+    public double getTime() {
+        return time;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * パラメータを記録していればパラメータを埋め込んだSQL
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%tF %<tT %.1fms [%s] %s", date, time,
+                threadName, sql);
+    }
+}
@@ -0,0 +1,208 @@
+package org.karatachi.db;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 1つの接続のPreparedStatementWrapperを、SQLと結果セットの種類ごとに保持するLRUキャッシュ。
+ *
+ * 同じSQLを準備すると、パラメータを消去した同じPreparedStatementWrapperを返す。
+ * キャッシュした文のclose()は何もせず、maxSizeからあふれた時点かclose()で閉じる。
+ * スレッドセーフではない。
+ */
+public class StatementCache {
+    private static final Logger logger =
+            LoggerFactory.getLogger(StatementCache.class);
+
+    private static final Statistics statistics = new Statistics();
+
+    /**
+     * すべてのキャッシュのヒット率。最初に呼び出した時点でMBeanとして登録する
+     */
+    public static StatementCacheMBean getStatistics() {
+        statistics.register();
+        return statistics;
+    }
+
+    private final int maxSize;
+    private final LinkedHashMap<Key, PreparedStatementWrapper> statements;
+
+    private long hitCount;
+    private long missCount;
+
+    public StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.statements =
+                new LinkedHashMap<Key, PreparedStatementWrapper>(16, 0.75f,
+                        true);
+        statistics.register();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * キャッシュしていなければnullを返す
+     */
+    public PreparedStatementWrapper get(String sql, int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        Key key = new Key(sql, resultSetType, resultSetConcurrency);
+        PreparedStatementWrapper ret = statements.get(key);
+        if (ret != null && ret.isClosed()) {
+            statements.remove(key);
+            ret = null;
+        }
+        if (ret == null) {
+            ++missCount;
+            statistics.missCount.incrementAndGet();
+            return null;
+        }
+        ++hitCount;
+        statistics.hitCount.incrementAndGet();
+        ret.clearParameters();
+        return ret;
+    }
+
+    public void put(String sql, int resultSetType, int resultSetConcurrency,
+            PreparedStatementWrapper statement) {
+        statement.setCached(true);
+        PreparedStatementWrapper old =
+                statements.put(new Key(sql, resultSetType,
+                        resultSetConcurrency), statement);
+        if (old != null && old != statement) {
+            closeStatement(old);
+        }
+
+        Iterator<PreparedStatementWrapper> i = statements.values().iterator();
+        while (statements.size() > maxSize && i.hasNext()) {
+            PreparedStatementWrapper eldest = i.next();
+            i.remove();
+            closeStatement(eldest);
+            statistics.evictionCount.incrementAndGet();
+        }
+    }
+
+    public void close() {
+        for (PreparedStatementWrapper statement : statements.values()) {
+            closeStatement(statement);
+        }
+        statements.clear();
+    }
+
+    private void closeStatement(PreparedStatementWrapper statement) {
+        statement.setCached(false);
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            logger.error("Cannot close statement", e);
+        }
+    }
+
+    private static class Key {
+        private final String sql;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+
+        public Key(String sql, int resultSetType, int resultSetConcurrency) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+        }
+
+        @Override
+        public int hashCode() {
+            return (sql.hashCode() * 31 + resultSetType) * 31
+                    + resultSetConcurrency;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key o = (Key) obj;
+            return sql.equals(o.sql) && resultSetType == o.resultSetType
+                    && resultSetConcurrency == o.resultSetConcurrency;
+        }
+    }
+
+    private static class Statistics implements StatementCacheMBean {
+        private final AtomicLong hitCount = new AtomicLong();
+        private final AtomicLong missCount = new AtomicLong();
+        private final AtomicLong evictionCount = new AtomicLong();
+        private boolean registered;
+
+        @Override
+        public long getHitCount() {
+            return hitCount.get();
+        }
+
+        @Override
+        public long getMissCount() {
+            return missCount.get();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return evictionCount.get();
+        }
+
+        @Override
+        public double getHitRatio() {
+            long hit = hitCount.get();
+            long total = hit + missCount.get();
+            return total == 0 ? 0.0 : (double) hit / total;
+        }
+
+        @Override
+        public void reset() {
+            hitCount.set(0L);
+            missCount.set(0L);
+            evictionCount.set(0L);
+        }
+
+        public synchronized void register() {
+            if (registered) {
+                return;
+            }
+            registered = true;
+            try {
+                ObjectName objectName =
+                        new ObjectName(ConnectionPool.DOMAIN
+                                + ":type=StatementCache");
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(
+                        objectName)) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(
+                            new StandardMBean(this, StatementCacheMBean.class),
+                            objectName);
+                }
+            } catch (JMException e) {
+                logger.warn("Failed to register statement cache statistics", e);
+            }
+        }
+    }
+}
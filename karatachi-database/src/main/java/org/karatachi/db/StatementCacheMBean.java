@@ -0,0 +1,16 @@
+package org.karatachi.db;
+
+/**
+ * すべてのStatementCacheの合計
+ */
+public interface StatementCacheMBean {
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    double getHitRatio();
+
+    void reset();
+}
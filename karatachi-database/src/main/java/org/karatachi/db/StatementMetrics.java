@@ -0,0 +1,98 @@
+package org.karatachi.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.karatachi.concurrent.LatencyHistogram;
+
+/**
+ * 正規化したSQLごとの実行回数と実行時間。時間はミリ秒で返す
+ */
+public class StatementMetrics {
+    private final String sql;
+    /** マイクロ秒 */
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong slowCount = new AtomicLong();
+    private volatile String slowSample;
+
+    public StatementMetrics(String sql) {
+        this.sql = sql;
+    }
+
+    void record(long nanos, long rows, boolean failed) {
+        latency.record(nanos / 1000L);
+        if (failed) {
+            errorCount.incrementAndGet();
+        } else if (rows > 0L) {
+            this.rows.addAndGet(rows);
+        }
+    }
+
+    void recordSlow(String sample) {
+        slowCount.incrementAndGet();
+        slowSample = sample;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * executeUpdate()とexecuteBatch()で更新した行数の合計
+     */
+    public long getRows() {
+        return rows.get();
+    }
+
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+
+    /**
+     * 最後に遅延したSQL。パラメータを記録していればパラメータを埋め込む
+     */
+    public String getSlowSample() {
+        return slowSample;
+    }
+
+    public double getTotalTime() {
+        return latency.getTotal() / 1000.0;
+    }
+
+    public double getMeanTime() {
+        return latency.getMean() / 1000.0;
+    }
+
+    public double getMaxTime() {
+        return latency.getMax() / 1000.0;
+    }
+
+    public double getPercentile99Time() {
+        return latency.getValueAtPercentile(99.0) / 1000.0;
+    }
+
+    public void reset() {
+        latency.reset();
+        errorCount.set(0L);
+        rows.set(0L);
+        slowCount.set(0L);
+        slowSample = null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "count=%d errors=%d rows=%d total=%.1fms mean=%.3fms p99=%.3fms max=%.3fms : %s",
+                getCount(), getErrorCount(), getRows(), getTotalTime(),
+                getMeanTime(), getPercentile99Time(), getMaxTime(), sql);
+    }
+}
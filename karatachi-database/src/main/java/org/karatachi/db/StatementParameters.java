@@ -0,0 +1,191 @@
+package org.karatachi.db;
+
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * ログに出力するためにPreparedStatementのパラメータを記録する。
+ *
+ * 数値と真偽値はボクシングせずに保持し、文字列への変換はformat()で1回だけ行う。
+ */
+final class StatementParameters {
+    private static final byte UNSET = 0;
+    private static final byte NULL = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte FLOAT = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte OBJECT = 6;
+
+    private byte[] types;
+    private long[] values;
+    private Object[] objects;
+
+    public StatementParameters(int count) {
+        this.types = new byte[Math.max(count, 1)];
+        this.values = new long[types.length];
+    }
+
+    /**
+     * SQLの文字列リテラルの外にある?の数を返す
+     */
+    public static int countPlaceholders(String sql) {
+        int ret = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); ++i) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '?') {
+                ++ret;
+            }
+        }
+        return ret;
+    }
+
+    private int index(int parameterIndex) {
+        int index = parameterIndex - 1;
+        if (index >= types.length) {
+            int length = Math.max(index + 1, types.length * 2);
+            byte[] types = new byte[length];
+            System.arraycopy(this.types, 0, types, 0, this.types.length);
+            long[] values = new long[length];
+            System.arraycopy(this.values, 0, values, 0, this.values.length);
+            this.types = types;
+            this.values = values;
+            if (objects != null) {
+                Object[] objects = new Object[length];
+                System.arraycopy(this.objects, 0, objects, 0,
+                        this.objects.length);
+                this.objects = objects;
+            }
+        }
+        return index;
+    }
+
+    public void setLong(int parameterIndex, long x) {
+        int index = index(parameterIndex);
+        types[index] = LONG;
+        values[index] = x;
+    }
+
+    public void setDouble(int parameterIndex, double x) {
+        int index = index(parameterIndex);
+        types[index] = DOUBLE;
+        values[index] = Double.doubleToRawLongBits(x);
+    }
+
+    public void setFloat(int parameterIndex, float x) {
+        int index = index(parameterIndex);
+        types[index] = FLOAT;
+        values[index] = Float.floatToRawIntBits(x);
+    }
+
+    public void setBoolean(int parameterIndex, boolean x) {
+        int index = index(parameterIndex);
+        types[index] = BOOLEAN;
+        values[index] = x ? 1 : 0;
+    }
+
+    public void setObject(int parameterIndex, Object x) {
+        int index = index(parameterIndex);
+        if (x == null) {
+            types[index] = NULL;
+            return;
+        }
+        if (objects == null) {
+            objects = new Object[types.length];
+        }
+        types[index] = OBJECT;
+        objects[index] = x;
+    }
+
+    public void clear() {
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = UNSET;
+        }
+        if (objects != null) {
+            for (int i = 0; i < objects.length; ++i) {
+                objects[i] = null;
+            }
+        }
+    }
+
+    /**
+     * SQLの?をパラメータの値で置き換えてsbに追加する
+     */
+    public void format(StringBuilder sb, String sql) {
+        int n = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); ++i) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                sb.append(c);
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                sb.append(c);
+            } else if (c == '?') {
+                append(sb, n++);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private void append(StringBuilder sb, int index) {
+        if (index >= types.length) {
+            sb.append('?');
+            return;
+        }
+        switch (types[index]) {
+        case NULL:
+            sb.append("null");
+            break;
+        case LONG:
+            sb.append(values[index]);
+            break;
+        case DOUBLE:
+            sb.append(Double.longBitsToDouble(values[index]));
+            break;
+        case FLOAT:
+            sb.append(Float.intBitsToFloat((int) values[index]));
+            break;
+        case BOOLEAN:
+            sb.append(values[index] != 0);
+            break;
+        case OBJECT:
+            appendObject(sb, objects[index]);
+            break;
+        default:
+            sb.append('?');
+            break;
+        }
+    }
+
+    private void appendObject(StringBuilder sb, Object x) {
+        if (x instanceof String) {
+            sb.append('\'').append(x).append('\'');
+        } else if (x instanceof Boolean || x instanceof Number) {
+            sb.append(x);
+        } else if (x instanceof Date) {
+            sb.append('\'').append(x).append("'::date");
+        } else if (x instanceof Time) {
+            sb.append('\'').append(x).append("'::time");
+        } else if (x instanceof Timestamp) {
+            String str = x.toString();
+            sb.append('\'').append(str, 0, Math.min(str.length(), 19))
+                    .append("'::timestamp");
+        } else {
+            sb.append('\'').append(x).append("'::")
+                    .append(x.getClass().getCanonicalName());
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package org.karatachi.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * StatementWrapperとPreparedStatementWrapperの実行時間を、リテラルを?に置き換えたSQLごとに集計する。
+ *
+ * 実行時間がslowThresholdを超えたSQLはWARNレベルでログに出力し、新しいものからslowLogSize件を保持する。
+ * 集計するSQLはmaxStatements種類までで、それ以降のSQLは"(others)"にまとめる。
+ * 集計結果はorg.karatachi.db:type=StatementStatisticsのMBeanでも参照できる。
+ * 既定では集計しない。setEnabled(true)で有効にする。
+ */
+public final class StatementStatistics {
+    private static final Logger logger =
+            LoggerFactory.getLogger(StatementStatistics.class);
+
+    public static final long DEFAULT_SLOW_THRESHOLD = 1000L;
+    public static final int DEFAULT_MAX_STATEMENTS = 200;
+    public static final int DEFAULT_SLOW_LOG_SIZE = 100;
+    public static final String OTHERS = "(others)";
+
+    /** 置き換える前のSQLと集計先の対応を保持する数 */
+    private static final int MAX_RESOLVED = 4096;
+
+    private static final Pattern IN_LIST = Pattern.compile(
+            "\\b(IN) ?\\( ?\\?( ?, ?\\?)+ ?\\)", Pattern.CASE_INSENSITIVE);
+
+    private static volatile boolean enabled = false;
+    private static volatile boolean captureParameters = false;
+    private static volatile long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+    private static volatile int maxStatements = DEFAULT_MAX_STATEMENTS;
+    private static volatile int slowLogSize = DEFAULT_SLOW_LOG_SIZE;
+
+    private static final ConcurrentMap<String, StatementMetrics> statements =
+            new ConcurrentHashMap<String, StatementMetrics>();
+    private static final ConcurrentMap<String, StatementMetrics> resolved =
+            new ConcurrentHashMap<String, StatementMetrics>();
+    private static final ConcurrentLinkedDeque<SlowQuery> slowQueries =
+            new ConcurrentLinkedDeque<SlowQuery>();
+    private static final AtomicInteger slowQueryCount = new AtomicInteger();
+    private static final Statistics statistics = new Statistics();
+
+    private StatementStatistics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        StatementStatistics.enabled = enabled;
+    }
+
+    /**
+     * 遅延したSQLにパラメータを埋め込むため、PreparedStatementWrapperでパラメータを記録するかどうか。
+     * 既定では記録しない。変更後に準備した文から有効になる
+     */
+    public static boolean isCaptureParameters() {
+        return enabled && captureParameters;
+    }
+
+    public static void setCaptureParameters(boolean captureParameters) {
+        StatementStatistics.captureParameters = captureParameters;
+    }
+
+    /**
+     * ミリ秒。0以下であれば遅延したSQLを記録しない
+     */
+    public static long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public static void setSlowThreshold(long slowThreshold) {
+        StatementStatistics.slowThreshold = slowThreshold;
+    }
+
+    public static int getMaxStatements() {
+        return maxStatements;
+    }
+
+    public static void setMaxStatements(int maxStatements) {
+        StatementStatistics.maxStatements = maxStatements;
+        resolved.clear();
+    }
+
+    public static int getSlowLogSize() {
+        return slowLogSize;
+    }
+
+    public static void setSlowLogSize(int slowLogSize) {
+        StatementStatistics.slowLogSize = slowLogSize;
+    }
+
+    /**
+     * MBeanを登録して返す
+     */
+    public static StatementStatisticsMBean getStatistics() {
+        statistics.register();
+        return statistics;
+    }
+
+    /**
+     * 合計時間の長い順にcount件を返す
+     */
+    public static List<StatementMetrics> getTopStatements(int count) {
+        List<StatementMetrics> ret =
+                new ArrayList<StatementMetrics>(statements.values());
+        Collections.sort(ret, new Comparator<StatementMetrics>() {
+            @Override
+            public int compare(StatementMetrics o1, StatementMetrics o2) {
+                return Double.compare(o2.getTotalTime(), o1.getTotalTime());
+            }
+        });
+        return ret.size() > count ? new ArrayList<StatementMetrics>(
+                ret.subList(0, count)) : ret;
+    }
+
+    /**
+     * 新しい順に返す
+     */
+    public static List<SlowQuery> getSlowQueries() {
+        return new ArrayList<SlowQuery>(slowQueries);
+    }
+
+    /**
+     * 集計を0に戻す。集計しているSQLの種類は保持する
+     */
+    public static void reset() {
+        for (StatementMetrics metrics : statements.values()) {
+            metrics.reset();
+        }
+        slowQueries.clear();
+        slowQueryCount.set(0);
+        statistics.clear();
+    }
+
+    /**
+     * 置き換える前のSQLごとに集計先を保持し、同じSQLは置き換え直さない
+     */
+    static StatementMetrics getMetrics(String sql) {
+        StatementMetrics ret = resolved.get(sql);
+        if (ret == null) {
+            ret = resolve(sql);
+            if (resolved.size() < MAX_RESOLVED) {
+                resolved.put(sql, ret);
+            }
+        }
+        return ret;
+    }
+
+    private static StatementMetrics resolve(String sql) {
+        String normalized = normalize(sql);
+        StatementMetrics ret = statements.get(normalized);
+        if (ret == null) {
+            statistics.register();
+            if (statements.size() >= maxStatements) {
+                normalized = OTHERS;
+                ret = statements.get(normalized);
+                if (ret != null) {
+                    return ret;
+                }
+            }
+            StatementMetrics created = new StatementMetrics(normalized);
+            ret = statements.putIfAbsent(normalized, created);
+            if (ret == null) {
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param rows
+     *            更新した行数。不明であれば負の値
+     * @param parameters
+     *            記録していなければnull
+     */
+    static void record(StatementMetrics metrics, long nanos, long rows,
+            boolean failed, String sql, StatementParameters parameters) {
+        metrics.record(nanos, rows, failed);
+
+        long threshold = slowThreshold;
+        if (threshold > 0L && nanos >= threshold * 1000000L) {
+            String sample = sql;
+            if (parameters != null) {
+                StringBuilder sb = new StringBuilder(sql.length() + 64);
+                parameters.format(sb, sql);
+                sample = sb.toString();
+            }
+            double time = nanos / 1000000.0;
+            logger.warn("Slow SQL : time = {}ms, sql = {}",
+                    String.format("%.1f", time), sample);
+
+            metrics.recordSlow(sample);
+            statistics.slowCount.incrementAndGet();
+            slowQueries.addFirst(new SlowQuery(new Date(), time,
+                    Thread.currentThread().getName(), sample));
+            if (slowQueryCount.incrementAndGet() > slowLogSize) {
+                if (slowQueries.pollLast() != null) {
+                    slowQueryCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * executeBatch()の結果から更新した行数を返す。行数が不明な文は数えない
+     */
+    static long sumUpdateCounts(int[] counts) {
+        long ret = 0L;
+        if (counts != null) {
+            for (int count : counts) {
+                if (count > 0) {
+                    ret += count;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 文字列と数値のリテラルを?に、IN (?, ?, ...)をIN (?)に置き換え、空白をまとめる
+     */
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean space = false;
+        int length = sql.length();
+        for (int i = 0; i < length; ++i) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            if (c == '\'') {
+                // ''はエスケープされた'として読み飛ばす
+                ++i;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    ++i;
+                }
+                sb.append('?');
+            } else if (c == '"') {
+                int end = sql.indexOf('"', i + 1);
+                end = end < 0 ? length : end + 1;
+                sb.append(sql, i, end);
+                i = end - 1;
+            } else if (Character.isDigit(c)
+                    && (sb.length() == 0 || !isIdentifierPart(sb.charAt(sb
+                            .length() - 1)))) {
+                while (i + 1 < length && isNumberPart(sql.charAt(i + 1))) {
+                    ++i;
+                }
+                sb.append('?');
+            } else {
+                sb.append(c);
+            }
+        }
+        return IN_LIST.matcher(sb).replaceAll("$1 (?)");
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$'
+                || c == '?';
+    }
+
+    private static boolean isNumberPart(char c) {
+        return Character.isDigit(c) || c == '.';
+    }
+
+    private static class Statistics implements StatementStatisticsMBean {
+        private final AtomicLong slowCount = new AtomicLong();
+        private boolean registered;
+
+        @Override
+        public boolean isEnabled() {
+            return StatementStatistics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            StatementStatistics.setEnabled(enabled);
+        }
+
+        @Override
+        public long getSlowThreshold() {
+            return StatementStatistics.getSlowThreshold();
+        }
+
+        @Override
+        public void setSlowThreshold(long slowThreshold) {
+            StatementStatistics.setSlowThreshold(slowThreshold);
+        }
+
+        @Override
+        public long getCount() {
+            long ret = 0L;
+            for (StatementMetrics metrics : statements.values()) {
+                ret += metrics.getCount();
+            }
+            return ret;
+        }
+
+        @Override
+        public long getErrorCount() {
+            long ret = 0L;
+            for (StatementMetrics metrics : statements.values()) {
+                ret += metrics.getErrorCount();
+            }
+            return ret;
+        }
+
+        @Override
+        public long getSlowCount() {
+            return slowCount.get();
+        }
+
+        @Override
+        public long getRows() {
+            long ret = 0L;
+            for (StatementMetrics metrics : statements.values()) {
+                ret += metrics.getRows();
+            }
+            return ret;
+        }
+
+        @Override
+        public int getStatementCount() {
+            return statements.size();
+        }
+
+        @Override
+        public String[] getTopStatements() {
+            List<StatementMetrics> top =
+                    StatementStatistics.getTopStatements(20);
+            String[] ret = new String[top.size()];
+            for (int i = 0; i < ret.length; ++i) {
+                ret[i] = top.get(i).toString();
+            }
+            return ret;
+        }
+
+        @Override
+        public String[] getSlowQueries() {
+            List<SlowQuery> slow = StatementStatistics.getSlowQueries();
+            String[] ret = new String[slow.size()];
+            for (int i = 0; i < ret.length; ++i) {
+                ret[i] = slow.get(i).toString();
+            }
+            return ret;
+        }
+
+        @Override
+        public void reset() {
+            StatementStatistics.reset();
+        }
+
+        private void clear() {
+            slowCount.set(0L);
+        }
+
+        public synchronized void register() {
+            if (registered) {
+                return;
+            }
+            registered = true;
+            try {
+                ObjectName objectName =
+                        new ObjectName(ConnectionPool.DOMAIN
+                                + ":type=StatementStatistics");
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(
+                        objectName)) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(
+                            new StandardMBean(this,
+                                    StatementStatisticsMBean.class),
+                            objectName);
+                }
+            } catch (JMException e) {
+                logger.warn("Failed to register statement statistics", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.karatachi.db;
+
+/**
+ * すべてのStatementWrapperとPreparedStatementWrapperの実行統計
+ */
+public interface StatementStatisticsMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getSlowThreshold();
+
+    void setSlowThreshold(long slowThreshold);
+
+    long getCount();
+
+    long getErrorCount();
+
+    long getSlowCount();
+
+    long getRows();
+
+    int getStatementCount();
+
+    /**
+     * 合計時間の長い順
+     */
+    String[] getTopStatements();
+
+    /**
+     * 新しい順
+     */
+    String[] getSlowQueries();
+
+    void reset();
+}
@@ -0,0 +1,43 @@
+package org.karatachi.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.karatachi.classloader.Reflection;
+
+/**
+ * TRACEレベルのSQLログに出力する呼び出し元を、samplingInterval回に1回だけ取得する。
+ */
+public final class StatementTrace {
+    public static final int DEFAULT_SAMPLING_INTERVAL = 16;
+
+    private static volatile int samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private StatementTrace() {
+    }
+
+    public static int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    /**
+     * 1以下を指定すると毎回取得する
+     */
+    public static void setSamplingInterval(int samplingInterval) {
+        StatementTrace.samplingInterval = Math.max(samplingInterval, 1);
+    }
+
+    /**
+     * 呼び出し元を返す。サンプリングの対象外であればnullを返す
+     *
+     * @param index
+     *            このメソッドの呼び出し元を0とした深さ
+     */
+    static String getCaller(int index) {
+        int interval = samplingInterval;
+        if (interval > 1 && counter.getAndIncrement() % interval != 0) {
+            return null;
+        }
+        return Reflection.getAncestorMethodInfo(index + 1);
+    }
+}
@@ -6,18 +6,25 @@ import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 
-import org.karatachi.classloader.Reflection;
 import org.karatachi.thread.AcceptInterruptable;
 import org.karatachi.thread.InterruptableOperation;
+import org.karatachi.thread.InterruptableSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public final class StatementWrapper implements Statement {
-    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final Logger logger =
+            LoggerFactory.getLogger(StatementWrapper.class);
 
     private final Statement statement;
     private final InterruptableOperation interruptable;
 
+    /** 実行中の文が更新した行数。不明であれば-1 */
+    private long rows;
+    private boolean succeeded;
+    /** バッチの集計に使う、最初に追加したSQL */
+    private String batchSql;
+
     public StatementWrapper(Statement statement) {
         this.statement = statement;
         this.interruptable = new InterruptableOperation() {
@@ -33,9 +40,10 @@ public final class StatementWrapper implements Statement {
     }
 
     private void setInterruptable() throws SQLException {
-        if (Thread.currentThread() instanceof AcceptInterruptable) {
+        AcceptInterruptable acceptor = InterruptableSupport.current();
+        if (acceptor != null) {
             try {
-                ((AcceptInterruptable) Thread.currentThread()).setInterruptable(interruptable);
+                acceptor.setInterruptable(interruptable);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 throw new SQLException("Thread Interrupted", e);
@@ -44,25 +52,67 @@ public final class StatementWrapper implements Statement {
     }
 
     private void clearInterruptable() {
-        if (Thread.currentThread() instanceof AcceptInterruptable) {
-            ((AcceptInterruptable) Thread.currentThread()).clearInterruptable();
+        AcceptInterruptable acceptor = InterruptableSupport.current();
+        if (acceptor != null) {
+            acceptor.clearInterruptable();
         }
     }
 
     private void logExecute(String sql) throws SQLException {
         if (logger.isDebugEnabled()) {
-            String logstr = "Execute SQL : sql = " + sql;
-            if (logger.isTraceEnabled()) {
-                logstr =
-                        logstr + " from : "
-                                + Reflection.getAncestorMethodInfo(2);
+            String caller =
+                    logger.isTraceEnabled() ? StatementTrace.getCaller(2) : null;
+            if (caller != null) {
+                logger.debug("Execute SQL : sql = " + sql + " from : " + caller);
+            } else {
+                logger.debug("Execute SQL : sql = " + sql);
             }
-            logger.debug(logstr);
+        }
+    }
+
+    /**
+     * 集計が無効であれば0を返す
+     */
+    private long begin() {
+        rows = -1L;
+        succeeded = false;
+        return StatementStatistics.isEnabled() ? System.nanoTime() : 0L;
+    }
+
+    private boolean executed(boolean ret) {
+        succeeded = true;
+        return ret;
+    }
+
+    private ResultSet executed(ResultSet ret) {
+        succeeded = true;
+        return ret;
+    }
+
+    private int executed(int ret) {
+        rows = ret;
+        succeeded = true;
+        return ret;
+    }
+
+    private int[] executed(int[] ret) {
+        rows = StatementStatistics.sumUpdateCounts(ret);
+        succeeded = true;
+        return ret;
+    }
+
+    private void record(String sql, long started) {
+        if (started != 0L && sql != null) {
+            StatementStatistics.record(StatementStatistics.getMetrics(sql),
+                    System.nanoTime() - started, rows, !succeeded, sql, null);
         }
     }
 
     public void addBatch(String sql) throws SQLException {
         statement.addBatch(sql);
+        if (batchSql == null) {
+            batchSql = sql;
+        }
     }
 
     public void cancel() throws SQLException {
@@ -71,6 +121,7 @@ public final class StatementWrapper implements Statement {
 
     public void clearBatch() throws SQLException {
         statement.clearBatch();
+        batchSql = null;
     }
 
     public void clearWarnings() throws SQLException {
@@ -82,101 +133,128 @@ public final class StatementWrapper implements Statement {
     }
 
     public boolean execute(String sql) throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.execute(sql);
+            return executed(statement.execute(sql));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
     public boolean execute(String sql, int autoGeneratedKeys)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.execute(sql, autoGeneratedKeys);
+            return executed(statement.execute(sql, autoGeneratedKeys));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
     public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.execute(sql, columnIndexes);
+            return executed(statement.execute(sql, columnIndexes));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
     public boolean execute(String sql, String[] columnNames)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.execute(sql, columnNames);
+            return executed(statement.execute(sql, columnNames));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
     public int[] executeBatch() throws SQLException {
-        return statement.executeBatch();
+        String sql = batchSql;
+        batchSql = null;
+        long started = begin();
+        try {
+            setInterruptable();
+            return executed(statement.executeBatch());
+        } finally {
+            clearInterruptable();
+            record(sql, started);
+        }
     }
 
     public ResultSet executeQuery(String sql) throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.executeQuery(sql);
+            return executed(statement.executeQuery(sql));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
     public int executeUpdate(String sql) throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.executeUpdate(sql);
+            return executed(statement.executeUpdate(sql));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
     public int executeUpdate(String sql, int autoGeneratedKeys)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.executeUpdate(sql, autoGeneratedKeys);
+            return executed(statement.executeUpdate(sql, autoGeneratedKeys));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
     public int executeUpdate(String sql, int[] columnIndexes)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.executeUpdate(sql, columnIndexes);
+            return executed(statement.executeUpdate(sql, columnIndexes));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
     public int executeUpdate(String sql, String[] columnNames)
             throws SQLException {
+        long started = begin();
         try {
             setInterruptable();
             logExecute(sql);
-            return statement.executeUpdate(sql, columnNames);
+            return executed(statement.executeUpdate(sql, columnNames));
         } finally {
             clearInterruptable();
+            record(sql, started);
         }
     }
 
@@ -0,0 +1,78 @@
+package org.karatachi.db;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+    private ConnectionPool pool;
+
+    @Before
+    public void before() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:ConnectionPoolTest;DB_CLOSE_DELAY=-1");
+        pool = new ConnectionPool("test", dataSource, 4);
+    }
+
+    @After
+    public void after() {
+        pool.close();
+    }
+
+    @Test(timeout = 10000)
+    public void 空いている接続の検査() throws Exception {
+        Connection[] connections = new Connection[3];
+        for (int i = 0; i < connections.length; ++i) {
+            connections[i] = pool.getConnection();
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        assertEquals(3, pool.getIdleCount());
+
+        pool.setValidationInterval(0);
+        pool.housekeep();
+        assertEquals(3, pool.getIdleCount());
+        assertEquals(3, pool.getTotalCount());
+        assertEquals(0, pool.getDestroyedCount());
+
+        Connection connection = pool.getConnection();
+        assertTrue(connection.isValid(1));
+        connection.close();
+    }
+
+    @Test(timeout = 10000)
+    public void 返却時に接続の状態を戻す() throws Exception {
+        Connection connection = pool.getConnection();
+        int isolation = connection.getTransactionIsolation();
+        int holdability = connection.getHoldability();
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        connection
+                .setHoldability(holdability == ResultSet.HOLD_CURSORS_OVER_COMMIT ? ResultSet.CLOSE_CURSORS_AT_COMMIT
+                        : ResultSet.HOLD_CURSORS_OVER_COMMIT);
+        Statement statement = connection.createStatement();
+        PreparedStatement prepared = connection.prepareStatement("SELECT 1");
+        ResultSet rs = prepared.executeQuery();
+        assertSame(connection, statement.getConnection());
+        assertSame(connection, prepared.getConnection());
+        connection.close();
+
+        assertTrue(statement.isClosed());
+        assertTrue(prepared.isClosed());
+        assertTrue(rs.isClosed());
+
+        connection = pool.getConnection();
+        assertEquals(1, pool.getTotalCount());
+        assertEquals(isolation, connection.getTransactionIsolation());
+        assertEquals(holdability, connection.getHoldability());
+        connection.close();
+    }
+}
@@ -0,0 +1,159 @@
+package org.karatachi.db;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.h2.api.Trigger;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+public class DatabaseReplicatorTest {
+    /**
+     * スレーブの削除を失敗させる
+     */
+    public static class FailingTrigger implements Trigger {
+        @Override
+        public void init(Connection conn, String schemaName,
+                String triggerName, String tableName, boolean before, int type) {
+        }
+
+        @Override
+        public void fire(Connection conn, Object[] oldRow, Object[] newRow)
+                throws SQLException {
+            throw new SQLException("Delete rejected");
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void remove() {
+        }
+    }
+
+    private static DataSourceWrapper createDataSource(String name,
+            boolean master) throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:DatabaseReplicatorTest-" + name
+                + ";DB_CLOSE_DELAY=-1");
+        DataSourceWrapper ret = new DataSourceWrapper(name, dataSource, master);
+        execute(ret, "CREATE TABLE t (id INT PRIMARY KEY, "
+                + "name VARCHAR(100), updated_date TIMESTAMP)");
+        return ret;
+    }
+
+    private static void execute(DataSourceWrapper dataSource, String sql)
+            throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            conn.createStatement().execute(sql);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static String query(DataSourceWrapper dataSource, String sql)
+            throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            ResultSet rs = conn.createStatement().executeQuery(sql);
+            rs.next();
+            return rs.getString(1);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static class MemoryWatermarkStore implements
+            ReplicationWatermarkStore {
+        private final Map<String, ReplicationWatermark> watermarks =
+                new HashMap<String, ReplicationWatermark>();
+
+        @Override
+        public ReplicationWatermark load(String tableName, String slaveName) {
+            return watermarks.get(tableName + "/" + slaveName);
+        }
+
+        @Override
+        public void save(String tableName, String slaveName,
+                ReplicationWatermark watermark) {
+            watermarks.put(tableName + "/" + slaveName, watermark);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void スレーブの最後のコミットが失敗() throws Exception {
+        DataSourceWrapper master = createDataSource("master", true);
+        DataSourceWrapper slave = createDataSource("slave", false);
+        execute(master, "INSERT INTO t SELECT x, 'n' || x, "
+                + "TIMESTAMP '2020-01-01 00:00:00' FROM SYSTEM_RANGE(1, 100)");
+        // マスターの最後の行より後ろのキーは、ENDを受け取った後に削除される
+        execute(slave, "INSERT INTO t VALUES (1000, 'extra', NULL)");
+        execute(slave, "CREATE TRIGGER reject BEFORE DELETE ON t FOR EACH ROW "
+                + "CALL \"" + FailingTrigger.class.getName() + "\"");
+
+        DatabaseReplicator replicator =
+                new DatabaseReplicator(new DataSourceWrapper[] { master,
+                        slave });
+        try {
+            replicator.replicateBatch("t");
+            fail();
+        } catch (SQLException e) {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void 差分複製で子の行が残る() throws Exception {
+        DataSourceWrapper master = createDataSource("incremental-master", true);
+        DataSourceWrapper slave = createDataSource("incremental-slave", false);
+        execute(master, "INSERT INTO t SELECT x, 'new' || x, "
+                + "TIMESTAMP '2020-01-02 00:00:00' FROM SYSTEM_RANGE(1, 100)");
+        execute(slave, "INSERT INTO t SELECT x, 'old' || x, "
+                + "TIMESTAMP '2020-01-01 00:00:00' FROM SYSTEM_RANGE(1, 50)");
+        execute(slave, "CREATE TABLE child (id INT PRIMARY KEY, "
+                + "parent_id INT REFERENCES t(id) ON DELETE CASCADE)");
+        execute(slave, "INSERT INTO child VALUES (1, 10)");
+
+        DatabaseReplicator replicator =
+                new DatabaseReplicator(new DataSourceWrapper[] { master,
+                        slave });
+        replicator.setWatermarkStore(new MemoryWatermarkStore());
+        replicator.setBatchSize(7);
+        assertEquals(100, replicator.replicateIncremental("t"));
+
+        assertEquals("1", query(slave, "SELECT COUNT(*) FROM child"));
+        assertEquals("100", query(slave, "SELECT COUNT(*) FROM t"));
+        assertEquals("new10", query(slave, "SELECT name FROM t WHERE id = 10"));
+        assertEquals("new100",
+                query(slave, "SELECT name FROM t WHERE id = 100"));
+    }
+
+    @Test(timeout = 10000)
+    public void チェックサムで変更した行だけを複製() throws Exception {
+        DataSourceWrapper master = createDataSource("checksum-master", true);
+        DataSourceWrapper slave = createDataSource("checksum-slave", false);
+        String insert =
+                "INSERT INTO t SELECT x, 'n' || x, "
+                        + "TIMESTAMP '2020-01-01 00:00:00' FROM SYSTEM_RANGE(1, 10000)";
+        execute(master, insert);
+        execute(slave, insert);
+        execute(master, "UPDATE t SET name = 'changed', "
+                + "updated_date = TIMESTAMP '2020-01-01 00:00:00.001' "
+                + "WHERE id = 5000");
+
+        DatabaseReplicator replicator =
+                new DatabaseReplicator(new DataSourceWrapper[] { master,
+                        slave });
+        replicator.setBatchSize(100);
+        assertEquals(1, replicator.replicateChecksum("t"));
+
+        assertEquals("changed",
+                query(slave, "SELECT name FROM t WHERE id = 5000"));
+    }
+}
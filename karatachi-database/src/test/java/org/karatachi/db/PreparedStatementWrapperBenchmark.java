@@ -0,0 +1,136 @@
+package org.karatachi.db;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * PreparedStatementWrapperのパラメータ設定と実行のオーバーヘッドを、ドライバを使わずに計測する。
+ *
+ * ログの有効/無効はクラスパス上のslf4jのバインディングの設定に従う。
+ * ログが無効の場合も、有効時にパラメータの記録とSQLの組み立てにかかる時間を計測する。
+ * StatementStatisticsによる集計は、無効と有効の両方で計測する。
+ *
+ * <pre>
+ * java -cp ... org.karatachi.db.PreparedStatementWrapperBenchmark [iterations]
+ * </pre>
+ */
+public class PreparedStatementWrapperBenchmark {
+    private static final String SQL =
+            "UPDATE item SET name = ?, price = ?, stock = ?, updated = ? WHERE id = ? AND name <> '?'";
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        PreparedStatement raw = stub();
+        PreparedStatement wrapped = new PreparedStatementWrapper(stub(), SQL);
+        Timestamp updated = new Timestamp(System.currentTimeMillis());
+
+        System.out.printf("debug=%s trace=%s iterations=%d%n",
+                LoggerFactory.getLogger(PreparedStatementWrapper.class)
+                        .isDebugEnabled(),
+                LoggerFactory.getLogger(PreparedStatementWrapper.class)
+                        .isTraceEnabled(), iterations);
+
+        for (int round = 0; round < 3; ++round) {
+            Result base = execute(raw, updated, iterations);
+            StatementStatistics.setEnabled(false);
+            Result wrap = execute(wrapped, updated, iterations);
+            StatementStatistics.setEnabled(true);
+            Result stats = execute(wrapped, updated, iterations);
+            Result format = format(updated, iterations);
+            System.out.printf(
+                    "round %d: driver %.1f ns/op, wrapper +%.1f ns/op +%.1f B/op, "
+                            + "with statistics +%.1f ns/op +%.1f B/op, "
+                            + "record+format %.1f ns/op %.1f B/op%n", round,
+                    base.nanos, wrap.nanos - base.nanos, wrap.bytes
+                            - base.bytes, stats.nanos - base.nanos,
+                    stats.bytes - base.bytes, format.nanos, format.bytes);
+        }
+    }
+
+    private static Result execute(PreparedStatement statement,
+            Timestamp updated, int iterations) throws SQLException {
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            statement.setString(1, "item");
+            statement.setInt(2, i);
+            statement.setLong(3, i * 7L);
+            statement.setTimestamp(4, updated);
+            statement.setInt(5, i);
+            statement.executeUpdate();
+        }
+        return new Result(System.nanoTime() - start, allocated() - bytes,
+                iterations);
+    }
+
+    private static Result format(Timestamp updated, int iterations) {
+        StatementParameters parameters =
+                new StatementParameters(
+                        StatementParameters.countPlaceholders(SQL));
+        StringBuilder sb = new StringBuilder();
+        int length = 0;
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            parameters.setObject(1, "item");
+            parameters.setLong(2, i);
+            parameters.setLong(3, i * 7L);
+            parameters.setObject(4, updated);
+            parameters.setLong(5, i);
+            sb.setLength(0);
+            parameters.format(sb, SQL);
+            length += sb.toString().length();
+        }
+        Result ret =
+                new Result(System.nanoTime() - start, allocated() - bytes,
+                        iterations);
+        if (length == 0) {
+            System.out.println();
+        }
+        return ret;
+    }
+
+    private static long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static PreparedStatement stub() {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        Class<?> type = method.getReturnType();
+                        if (type == int.class) {
+                            return 1;
+                        } else if (type == boolean.class) {
+                            return false;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static class Result {
+        private final double nanos;
+        private final double bytes;
+
+        public Result(long nanos, long bytes, int iterations) {
+            this.nanos = (double) nanos / iterations;
+            this.bytes = (double) bytes / iterations;
+        }
+    }
+}
@@ -1,11 +1,123 @@
 package org.karatachi.classloader;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * 呼び出し元のメソッドの情報を取得する。
+ *
+ * 実行時のJDKがStackWalkerに対応している場合は、スタックトレース全体を作らずに必要なフレームだけを取得する。
+ * 古いターゲットでもビルドできるようリフレクション経由で呼び出す。
+ */
 public class Reflection {
+    private static final int CACHED_DEPTH = 16;
+
+    private static final Object walker;
+    private static final Class<?> function;
+    private static final Method walk;
+    private static final Method skip;
+    private static final Method findFirst;
+    private static final Method isPresent;
+    private static final Method get;
+
+    /** 深さごとのjava.util.function.Functionの実装 */
+    private static final Object[] functions = new Object[CACHED_DEPTH];
+
+    static {
+        Object[] objects = new Object[2];
+        Method[] methods = new Method[5];
+        try {
+            Class<?> clazz = Class.forName("java.lang.StackWalker");
+            objects[0] = clazz.getMethod("getInstance").invoke(null);
+            objects[1] = Class.forName("java.util.function.Function");
+            methods[0] = clazz.getMethod("walk", (Class<?>) objects[1]);
+            Class<?> stream = Class.forName("java.util.stream.Stream");
+            methods[1] = stream.getMethod("skip", long.class);
+            methods[2] = stream.getMethod("findFirst");
+            Class<?> optional = Class.forName("java.util.Optional");
+            methods[3] = optional.getMethod("isPresent");
+            methods[4] = optional.getMethod("get");
+        } catch (Exception e) {
+            objects = new Object[2];
+            methods = new Method[5];
+        }
+        walker = objects[0];
+        function = (Class<?>) objects[1];
+        walk = methods[0];
+        skip = methods[1];
+        findFirst = methods[2];
+        isPresent = methods[3];
+        get = methods[4];
+    }
+
+    public static boolean isStackWalkerSupported() {
+        return walker != null;
+    }
+
     public static String getParentMethodInfo() {
-        return new Throwable().getStackTrace()[2].toString();
+        return getMethodInfo(3);
     }
 
     public static String getAncestorMethodInfo(int index) {
-        return new Throwable().getStackTrace()[1 + index].toString();
+        return getMethodInfo(2 + index);
+    }
+
+    /**
+     * @param depth
+     *            このメソッドのフレームを0とした深さ
+     */
+    private static String getMethodInfo(int depth) {
+        if (walker != null) {
+            String ret = walkStack(depth + 1);
+            if (ret != null) {
+                return ret;
+            }
+        }
+        StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+        return depth < stackTrace.length ? stackTrace[depth].toString() : null;
+    }
+
+    /**
+     * StackWalkerでフレームを取得する。取得できなければnullを返す
+     *
+     * @param depth
+     *            このメソッドのフレームを0とした深さ
+     */
+    static String walkStack(int depth) {
+        try {
+            Object frame = walk.invoke(walker, getFunction(depth));
+            return frame != null ? frame.toString() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Object getFunction(final int depth) {
+        Object ret = depth < CACHED_DEPTH ? functions[depth] : null;
+        if (ret == null) {
+            ret =
+                    Proxy.newProxyInstance(function.getClassLoader(),
+                            new Class<?>[] { function },
+                            new InvocationHandler() {
+                                @Override
+                                public Object invoke(Object proxy,
+                                        Method method, Object[] args)
+                                        throws Throwable {
+                                    if (!method.getName().equals("apply")) {
+                                        return method.invoke(this, args);
+                                    }
+                                    Object first =
+                                            findFirst.invoke(skip.invoke(
+                                                    args[0], (long) depth));
+                                    return (Boolean) isPresent.invoke(first) ? get
+                                            .invoke(first) : null;
+                                }
+                            });
+            if (depth < CACHED_DEPTH) {
+                functions[depth] = ret;
+            }
+        }
+        return ret;
     }
 }
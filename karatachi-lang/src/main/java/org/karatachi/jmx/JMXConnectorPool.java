@@ -0,0 +1,181 @@
+package org.karatachi.jmx;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 接続先のURLごとにJMXConnectorを1つ保持し、共有する。
+ *
+ * 接続に失敗した場合は、失敗の回数に応じて最大maxBackoff(ms)まで再接続を待つ。
+ */
+public class JMXConnectorPool {
+    private static final Logger logger =
+            LoggerFactory.getLogger(JMXConnectorPool.class);
+
+    private static final JMXConnectorPool instance = new JMXConnectorPool(
+            1000, 60000);
+
+    public static JMXConnectorPool getInstance() {
+        return instance;
+    }
+
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public JMXConnectorPool(long minBackoff, long maxBackoff) {
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * 接続を返す。接続していなければ接続する
+     *
+     * @throws IOException
+     *             接続に失敗した場合、または再接続を待っている場合
+     */
+    public MBeanServerConnection getConnection(JMXServiceURL url,
+            Map<String, ?> environment) throws IOException {
+        return getEntry(url).getConnection(environment);
+    }
+
+    /**
+     * 通信に失敗した接続を閉じ、次回のgetConnection()で再接続する
+     */
+    public void invalidate(JMXServiceURL url, MBeanServerConnection connection) {
+        getEntry(url).invalidate(connection);
+    }
+
+    public boolean isConnected(JMXServiceURL url) {
+        return getEntry(url).isConnected();
+    }
+
+    /**
+     * すべての接続を閉じる
+     */
+    public void close() {
+        Entry[] list;
+        synchronized (entries) {
+            list = entries.values().toArray(new Entry[entries.size()]);
+            entries.clear();
+        }
+        for (Entry entry : list) {
+            entry.invalidate(null);
+        }
+    }
+
+    private Entry getEntry(JMXServiceURL url) {
+        synchronized (entries) {
+            Entry entry = entries.get(url.toString());
+            if (entry == null) {
+                entry = new Entry(url);
+                entries.put(url.toString(), entry);
+            }
+            return entry;
+        }
+    }
+
+    private class Entry implements NotificationListener {
+        private final JMXServiceURL url;
+
+        private JMXConnector connector;
+        private MBeanServerConnection connection;
+        private int failures;
+        private long nextRetry;
+
+        public Entry(JMXServiceURL url) {
+            this.url = url;
+        }
+
+        public synchronized MBeanServerConnection getConnection(
+                Map<String, ?> environment) throws IOException {
+            if (connection != null) {
+                return connection;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now < nextRetry) {
+                throw new IOException(String.format(
+                        "Reconnecting to %s is suspended for %d ms", url,
+                        nextRetry - now));
+            }
+
+            JMXConnector connector = null;
+            try {
+                connector = JMXConnectorFactory.connect(url, environment);
+                connector.addConnectionNotificationListener(this, null, null);
+                this.connection = connector.getMBeanServerConnection();
+                this.connector = connector;
+                if (failures > 0) {
+                    logger.info("Reconnected to {}", url);
+                }
+                failures = 0;
+                return connection;
+            } catch (IOException e) {
+                close(connector);
+                ++failures;
+                long backoff =
+                        Math.min(maxBackoff,
+                                minBackoff << Math.min(failures - 1, 30));
+                nextRetry = now + backoff;
+                logger.warn("Failed to connect to {}, retry after {} ms: {}",
+                        url, backoff, e.toString());
+                throw e;
+            }
+        }
+
+        public synchronized void invalidate(MBeanServerConnection connection) {
+            if (connection != null && connection != this.connection) {
+                return;
+            }
+            close(connector);
+            this.connector = null;
+            this.connection = null;
+        }
+
+        public synchronized boolean isConnected() {
+            return connection != null;
+        }
+
+        @Override
+        public void handleNotification(Notification notification,
+                Object handback) {
+            String type = notification.getType();
+            if (type.equals(JMXConnectionNotification.CLOSED)
+                    || type.equals(JMXConnectionNotification.FAILED)) {
+                synchronized (this) {
+                    if (notification.getSource() == connector) {
+                        this.connector = null;
+                        this.connection = null;
+                    }
+                }
+            }
+        }
+
+        private void close(JMXConnector connector) {
+            if (connector == null) {
+                return;
+            }
+            try {
+                connector.removeConnectionNotificationListener(this);
+            } catch (Exception ignore) {
+            }
+            try {
+                connector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
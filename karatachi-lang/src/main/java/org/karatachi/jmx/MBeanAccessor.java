@@ -27,6 +27,25 @@ public class MBeanAccessor {
         return title;
     }
 
+    public MBeanWrapper getBean() {
+        return bean;
+    }
+
+    public String getAttributeName() {
+        return attribute.getName();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * trueの場合、getValue()はJMXを経由せずに値を取得する
+     */
+    public boolean isDirect() {
+        return false;
+    }
+
     public double getValue() {
         if (key == null) {
             try {
@@ -43,4 +62,21 @@ public class MBeanAccessor {
             }
         }
     }
+
+    /**
+     * MBeanWrapper.get(String[])などで取得済みの属性の値から値を取り出す
+     */
+    public double getValue(Object value) {
+        if (key != null) {
+            if (!(value instanceof CompositeData)) {
+                return Double.NaN;
+            }
+            value = ((CompositeData) value).get(key);
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else {
+            return Double.NaN;
+        }
+    }
 }
@@ -0,0 +1,211 @@
+package org.karatachi.jmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.karatachi.translator.PrimitiveTranslator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * "ObjectName:属性名[.キー]"の形式の文字列からMBeanAccessorを作成する。
+ *
+ * 解析した文字列と属性の型はキャッシュし、MBeanWrapperはObjectNameごとに共有する。
+ * ObjectNameがパターンの場合は、一致するすべてのMBeanのMBeanAccessorを作成する。
+ */
+public class MBeanAccessorRegistry {
+    private static final Logger logger =
+            LoggerFactory.getLogger(MBeanAccessorRegistry.class);
+
+    private static final Map<String, Class<?>> types =
+            new ConcurrentHashMap<String, Class<?>>();
+
+    private final MBeanServerWrapper server;
+    private final boolean platform;
+    private final ConcurrentMap<ObjectName, MBeanWrapper> beans =
+            new ConcurrentHashMap<ObjectName, MBeanWrapper>();
+    private final Map<String, Descriptor> descriptors =
+            new ConcurrentHashMap<String, Descriptor>();
+
+    public MBeanAccessorRegistry(MBeanServerWrapper server) {
+        this.server = server;
+        // サブクラスは他のJVMに接続している可能性がある
+        this.platform = server.getClass() == MBeanServerWrapper.class;
+    }
+
+    public MBeanServerWrapper getServer() {
+        return server;
+    }
+
+    public MBeanWrapper getBean(ObjectName name) {
+        MBeanWrapper bean = beans.get(name);
+        if (bean == null) {
+            MBeanWrapper created =
+                    new MBeanWrapper(server, name, name.toString());
+            bean = beans.putIfAbsent(name, created);
+            if (bean == null) {
+                bean = created;
+            }
+        }
+        return bean;
+    }
+
+    /**
+     * accessorに一致するMBeanAccessorを返す。MBeanや属性が存在しない場合は空のリストを返す。
+     *
+     * ObjectNameがパターンの場合、titleの{キー}はMBeanのキープロパティの値で置き換える。
+     * titleに{キー}を含まなければ、パターンで固定していないキープロパティの値を"."で連結してtitleに付加する。
+     * パターンの展開はこのメソッドの呼び出し時に1回だけ行う。
+     *
+     * @throws InvalidAttributeValueException
+     *             属性が数値を返さない場合
+     */
+    public List<MBeanAccessor> compile(String title, String accessor)
+            throws JMException {
+        Descriptor descriptor = getDescriptor(accessor);
+
+        Set<ObjectName> names;
+        if (descriptor.name.isPattern()) {
+            MBeanServerConnection connection = null;
+            try {
+                connection = server.get();
+                names =
+                        new TreeSet<ObjectName>(connection.queryNames(
+                                descriptor.name, null));
+            } catch (IOException e) {
+                throw server.failed(connection, e);
+            }
+        } else {
+            names = Collections.singleton(descriptor.name);
+        }
+
+        List<MBeanAccessor> ret = new ArrayList<MBeanAccessor>();
+        for (ObjectName name : names) {
+            MBeanWrapper bean = getBean(name);
+            // 通信の失敗はJMExceptionとして通知する
+            MBeanInfo beanInfo = bean.getInfo();
+            if (beanInfo == null) {
+                continue;
+            }
+            for (MBeanAttributeInfo info : beanInfo.getAttributes()) {
+                if (info.getName().equals(descriptor.attribute)) {
+                    MBeanAccessor compiled =
+                            compile(descriptor.name.isPattern() ? expand(
+                                    title, descriptor.name, name) : title,
+                                    accessor, bean, info, descriptor.key);
+                    if (compiled != null) {
+                        ret.add(compiled);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    private MBeanAccessor compile(String title, String accessor,
+            MBeanWrapper bean, MBeanAttributeInfo info, String key)
+            throws JMException {
+        Class<?> clazz = getType(info.getType());
+        if (clazz == null) {
+            logger.error("Accessor '{}' is unknown type: {}", accessor,
+                    info.getType());
+            return null;
+        }
+        if (!(Number.class.isAssignableFrom(clazz) && key == null)
+                && !(CompositeData.class.isAssignableFrom(clazz) && key != null)) {
+            logger.error("Accessor '{}' does not return number", accessor);
+            throw new InvalidAttributeValueException(
+                    "Accessor does not return number.");
+        }
+
+        MBeanAccessor ret = null;
+        if (platform) {
+            ret = PlatformMBeanAccessor.create(title, bean, info, key);
+        }
+        if (ret == null) {
+            ret = new MBeanAccessor(title, bean, info, key);
+        }
+        return ret;
+    }
+
+    private Descriptor getDescriptor(String accessor) throws JMException {
+        Descriptor descriptor = descriptors.get(accessor);
+        if (descriptor == null) {
+            int idx1 = accessor.lastIndexOf(":");
+            String attribute = accessor.substring(idx1 + 1);
+            String key = null;
+            if (attribute.contains(".")) {
+                int idx2 = attribute.lastIndexOf(".");
+                key = attribute.substring(idx2 + 1);
+                attribute = attribute.substring(0, idx2);
+            }
+            descriptor =
+                    new Descriptor(new ObjectName(accessor.substring(0, idx1)),
+                            attribute, key);
+            descriptors.put(accessor, descriptor);
+        }
+        return descriptor;
+    }
+
+    private static Class<?> getType(String type) {
+        Class<?> clazz = types.get(type);
+        if (clazz == null) {
+            try {
+                clazz =
+                        Class.forName(PrimitiveTranslator.toWrapperClassName(type));
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+            types.put(type, clazz);
+        }
+        return clazz;
+    }
+
+    private static String expand(String title, ObjectName pattern,
+            ObjectName name) {
+        Map<String, String> properties =
+                new TreeMap<String, String>(name.getKeyPropertyList());
+        if (title.contains("{")) {
+            for (Map.Entry<String, String> e : properties.entrySet()) {
+                title = title.replace("{" + e.getKey() + "}", e.getValue());
+            }
+            return title;
+        }
+
+        StringBuilder sb = new StringBuilder(title);
+        for (Map.Entry<String, String> e : properties.entrySet()) {
+            if (!e.getValue().equals(pattern.getKeyProperty(e.getKey()))) {
+                sb.append('.').append(e.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class Descriptor {
+        private final ObjectName name;
+        private final String attribute;
+        private final String key;
+
+        public Descriptor(ObjectName name, String attribute, String key) {
+            this.name = name;
+            this.attribute = attribute;
+            this.key = key;
+        }
+    }
+}
@@ -1,14 +1,97 @@
 package org.karatachi.jmx;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.management.MBeanServer;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
 
 public class MBeanServerWrapper implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    protected MBeanServer get() {
+    private static final MBeanInfo NOT_FOUND = new MBeanInfo(null, null, null,
+            null, null, null);
+
+    /** 接続ごとのMBeanInfoのキャッシュ */
+    private static final Map<MBeanServerConnection, Map<ObjectName, MBeanInfo>> caches =
+            new WeakHashMap<MBeanServerConnection, Map<ObjectName, MBeanInfo>>();
+
+    protected MBeanServerConnection get() throws IOException {
         return ManagementFactory.getPlatformMBeanServer();
     }
+
+    /**
+     * 通信に失敗した場合に呼び出され、呼び出し元に返す例外を作成する
+     *
+     * @param connection
+     *            失敗したget()で取得した接続。get()が失敗した場合はnull
+     */
+    protected JMException failed(MBeanServerConnection connection,
+            IOException e) {
+        JMException ret = new JMException(e.toString());
+        ret.initCause(e);
+        return ret;
+    }
+
+    /**
+     * MBeanInfoを返す。MBeanが存在しない場合はnullを返す。
+     *
+     * MBeanInfoはMBeanの登録・登録解除の通知を受けるまでキャッシュする。
+     */
+    public MBeanInfo getMBeanInfo(ObjectName name) throws JMException {
+        MBeanServerConnection connection = null;
+        try {
+            connection = get();
+            Map<ObjectName, MBeanInfo> cache = getInfoCache(connection);
+            MBeanInfo info = cache.get(name);
+            if (info == null) {
+                try {
+                    info = connection.getMBeanInfo(name);
+                } catch (InstanceNotFoundException e) {
+                    info = NOT_FOUND;
+                }
+                cache.put(name, info);
+            }
+            return info != NOT_FOUND ? info : null;
+        } catch (IOException e) {
+            throw failed(connection, e);
+        }
+    }
+
+    private static Map<ObjectName, MBeanInfo> getInfoCache(
+            MBeanServerConnection connection) throws IOException, JMException {
+        synchronized (caches) {
+            Map<ObjectName, MBeanInfo> cache = caches.get(connection);
+            if (cache == null) {
+                final Map<ObjectName, MBeanInfo> created =
+                        new ConcurrentHashMap<ObjectName, MBeanInfo>();
+                connection.addNotificationListener(
+                        MBeanServerDelegate.DELEGATE_NAME,
+                        new NotificationListener() {
+                            @Override
+                            public void handleNotification(
+                                    Notification notification, Object handback) {
+                                if (notification instanceof MBeanServerNotification) {
+                                    created.remove(((MBeanServerNotification) notification)
+                                            .getMBeanName());
+                                }
+                            }
+                        }, null, null);
+                caches.put(connection, created);
+                cache = created;
+            }
+            return cache;
+        }
+    }
 }
@@ -1,37 +1,123 @@
 package org.karatachi.jmx;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Vector;
 
 import javax.management.JMException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanOperationInfo;
 import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 import javax.swing.tree.TreeNode;
 
 import org.apache.commons.lang.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * MBeanServerのMBeanの木構造。子のノードは最初に参照された時点で作成する
+ */
 public class MBeanTree extends AbstractTreeNode {
     private static final long serialVersionUID = 1L;
+    private static final Logger logger =
+            LoggerFactory.getLogger(MBeanTree.class);
+
+    /** 1つのノードに直接表示するMBeanの数。超える場合はページに分ける */
+    public static final int PAGE_SIZE = 100;
 
     private final MBeanServerWrapper server;
+    private final ObjectName pattern;
 
     public MBeanTree(MBeanServerWrapper server) {
+        this(server, null);
+    }
+
+    /**
+     * @param pattern
+     *            表示するMBeanのObjectNameのパターン。MBeanServer側で絞り込む
+     */
+    public MBeanTree(MBeanServerWrapper server, ObjectName pattern) {
         super(null);
 
         this.server = server;
+        this.pattern = pattern;
+    }
 
-        String[] domains = server.get().getDomains();
+    @Override
+    protected void loadChildren() {
+        String[] domains;
+        MBeanServerConnection connection = null;
+        try {
+            connection = server.get();
+            if (pattern == null) {
+                domains = connection.getDomains();
+            } else {
+                Set<String> set = new TreeSet<String>();
+                for (ObjectName name : connection.queryNames(pattern, null)) {
+                    set.add(name.getDomain());
+                }
+                domains = set.toArray(new String[set.size()]);
+            }
+        } catch (IOException e) {
+            logger.warn("Fail to get domains of " + server,
+                    server.failed(connection, e));
+            domains = new String[0];
+        }
         Arrays.sort(domains);
         for (String domain : domains) {
             addChild(new DomainNode(this, domain));
         }
     }
 
+    /**
+     * nameに一致し、patternにも一致するMBeanのObjectNameを返す
+     */
+    private List<ObjectName> queryNames(ObjectName name) {
+        MBeanServerConnection connection = null;
+        try {
+            connection = server.get();
+            List<ObjectName> ret =
+                    new ArrayList<ObjectName>(connection.queryNames(name,
+                            pattern));
+            Collections.sort(ret);
+            return ret;
+        } catch (IOException e) {
+            logger.warn("Fail to query " + name, server.failed(connection, e));
+            return new ArrayList<ObjectName>();
+        }
+    }
+
+    /**
+     * queryに一致するMBeanのうち、offsetからlimit個を追加する
+     */
+    private void addBeans(AbstractTreeNode parent, ObjectName query,
+            int offset, int limit) {
+        int index = 0;
+        for (ObjectName name : queryNames(query)) {
+            if (name.getKeyPropertyList().size() <= 1) {
+                continue;
+            }
+            if (index >= offset && index < offset + limit) {
+                parent.addChild(new BeanNode(parent, new MBeanWrapper(server,
+                        name)));
+            }
+            ++index;
+        }
+    }
+
     @Override
     public String getName() {
         return "ROOT";
@@ -50,12 +136,58 @@ public class MBeanTree extends AbstractTreeNode {
         private DomainNode(TreeNode parent, String domain) {
             super(parent);
             this.domain = domain;
-            for (MBeanWrapper child : MBeanWrapper.createDomainTree(server,
-                    domain).values()) {
-                addChild(new BeanNode(this, child));
+        }
+
+        /**
+         * type(j2eeType)ごとにまとめ、子のMBeanの数だけを数える
+         */
+        @Override
+        protected void loadChildren() {
+            Map<String, Integer> types = new TreeMap<String, Integer>();
+            try {
+                ObjectName query = new ObjectName(domain + ":*");
+                for (ObjectName name : queryNames(query)) {
+                    String key;
+                    if (name.getKeyProperty("type") != null) {
+                        key = "type=" + name.getKeyProperty("type");
+                    } else if (name.getKeyProperty("j2eeType") != null) {
+                        key = "j2eeType=" + name.getKeyProperty("j2eeType");
+                    } else {
+                        continue;
+                    }
+                    Integer count = types.get(key);
+                    if (count == null) {
+                        count = 0;
+                    }
+                    if (name.getKeyPropertyList().size() > 1) {
+                        ++count;
+                    }
+                    types.put(key, count);
+                }
+            } catch (MalformedObjectNameException e) {
+                logger.warn("Fail to query domain " + domain, e);
+            }
+
+            for (Map.Entry<String, Integer> entry : types.entrySet()) {
+                String key = entry.getKey();
+                try {
+                    MBeanWrapper bean =
+                            new MBeanWrapper(server, new ObjectName(domain
+                                    + ":" + key),
+                                    key.substring(key.indexOf('=') + 1));
+                    addChild(new BeanNode(this, bean, new ObjectName(domain
+                            + ":" + key + ",*"), entry.getValue()));
+                } catch (JMException e) {
+                    logger.warn("Fail to create object", e);
+                }
             }
         }
 
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+
         @Override
         public String getName() {
             return domain;
@@ -71,13 +203,38 @@ public class MBeanTree extends AbstractTreeNode {
         private static final long serialVersionUID = 1L;
 
         private final MBeanWrapper bean;
+        private final ObjectName children;
+        private final int count;
 
         private BeanNode(TreeNode parent, MBeanWrapper bean) {
+            this(parent, bean, null, 0);
+        }
+
+        /**
+         * @param children
+         *            子のMBeanを問い合わせる条件
+         * @param count
+         *            子のMBeanの数
+         */
+        private BeanNode(TreeNode parent, MBeanWrapper bean,
+                ObjectName children, int count) {
             super(parent);
             this.bean = bean;
+            this.children = children;
+            this.count = count;
+        }
 
-            for (MBeanWrapper child : bean.getChildren()) {
-                addChild(new BeanNode(this, child));
+        @Override
+        protected void loadChildren() {
+            if (children != null) {
+                if (count <= PAGE_SIZE) {
+                    addBeans(this, children, 0, PAGE_SIZE);
+                } else {
+                    for (int i = 0; i < count; i += PAGE_SIZE) {
+                        addChild(new PageNode(this, children, i, Math.min(
+                                PAGE_SIZE, count - i)));
+                    }
+                }
             }
             for (MBeanAttributeInfo attr : bean.getAttributes()) {
                 addChild(new AttributeNode(this, bean, attr));
@@ -87,6 +244,11 @@ public class MBeanTree extends AbstractTreeNode {
             }
         }
 
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+
         @Override
         public String getName() {
             return bean.getName();
@@ -98,6 +260,45 @@ public class MBeanTree extends AbstractTreeNode {
         }
     }
 
+    /**
+     * 子のMBeanが多い場合に、PAGE_SIZE個ずつに分けて表示する
+     */
+    public class PageNode extends AbstractTreeNode {
+        private static final long serialVersionUID = 1L;
+
+        private final ObjectName query;
+        private final int offset;
+        private final int size;
+
+        private PageNode(TreeNode parent, ObjectName query, int offset,
+                int size) {
+            super(parent);
+            this.query = query;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        protected void loadChildren() {
+            addBeans(this, query, offset, size);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+
+        @Override
+        public String getName() {
+            return String.format("[%d-%d]", offset + 1, offset + size);
+        }
+
+        @Override
+        public Object getValue() {
+            return "";
+        }
+    }
+
     public class AttributeNode extends AbstractTreeNode {
         private static final long serialVersionUID = 1L;
 
@@ -228,11 +429,10 @@ abstract class AbstractTreeNode implements TreeNode, MBeanNode, Serializable {
     private static final long serialVersionUID = 1L;
 
     private final TreeNode parent;
-    private final Vector<TreeNode> children;
+    private Vector<TreeNode> children;
 
     public AbstractTreeNode(TreeNode parent) {
         this.parent = parent;
-        this.children = new Vector<TreeNode>();
     }
 
     @Override
@@ -241,13 +441,27 @@ abstract class AbstractTreeNode implements TreeNode, MBeanNode, Serializable {
     @Override
     public abstract Object getValue() throws JMException;
 
+    /**
+     * 子のノードを最初に参照した時点で呼び出され、addChild()で子のノードを追加する
+     */
+    protected void loadChildren() {
+    }
+
     protected void addChild(TreeNode node) {
         children.add(node);
     }
 
+    private synchronized Vector<TreeNode> getChildren() {
+        if (children == null) {
+            children = new Vector<TreeNode>();
+            loadChildren();
+        }
+        return children;
+    }
+
     @Override
     public Enumeration<TreeNode> children() {
-        return children.elements();
+        return getChildren().elements();
     }
 
     @Override
@@ -257,17 +471,17 @@ abstract class AbstractTreeNode implements TreeNode, MBeanNode, Serializable {
 
     @Override
     public TreeNode getChildAt(int childIndex) {
-        return children.get(childIndex);
+        return getChildren().get(childIndex);
     }
 
     @Override
     public int getChildCount() {
-        return children.size();
+        return getChildren().size();
     }
 
     @Override
     public int getIndex(TreeNode node) {
-        return children.indexOf(node);
+        return getChildren().indexOf(node);
     }
 
     @Override
@@ -277,6 +491,6 @@ abstract class AbstractTreeNode implements TreeNode, MBeanNode, Serializable {
 
     @Override
     public boolean isLeaf() {
-        return children.size() == 0;
+        return getChildren().size() == 0;
     }
 }
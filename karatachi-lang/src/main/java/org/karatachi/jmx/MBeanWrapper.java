@@ -1,16 +1,18 @@
 package org.karatachi.jmx;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
 import javax.management.Attribute;
-import javax.management.InstanceNotFoundException;
+import javax.management.AttributeList;
 import javax.management.JMException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanInfo;
 import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
@@ -29,32 +31,44 @@ public class MBeanWrapper implements Serializable {
     private final MBeanServerWrapper server;
     private final ObjectName objectName;
     private final String name;
-    private final MBeanInfo info;
 
-    public MBeanWrapper(MBeanServerWrapper server, ObjectName objectName)
-            throws JMException {
+    public MBeanWrapper(MBeanServerWrapper server, ObjectName objectName) {
         this(server, objectName, objectName.getCanonicalName());
     }
 
     public MBeanWrapper(MBeanServerWrapper server, ObjectName objectName,
-            String name) throws JMException {
+            String name) {
         this.server = server;
         this.objectName = objectName;
         this.name = name;
-
-        MBeanInfo info = null;
-        try {
-            info = server.get().getMBeanInfo(objectName);
-        } catch (InstanceNotFoundException ignore) {
-        }
-        this.info = info;
     }
 
     public String getName() {
         return name;
     }
 
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * MBeanInfoは最初に必要になった時点で取得する。MBeanが存在しない場合はnullを返す
+     */
+    public MBeanInfo getInfo() throws JMException {
+        return server.getMBeanInfo(objectName);
+    }
+
+    private MBeanInfo getInfoQuietly() {
+        try {
+            return getInfo();
+        } catch (JMException e) {
+            logger.warn("Fail to get MBeanInfo of " + objectName, e);
+            return null;
+        }
+    }
+
     public MBeanAttributeInfo[] getAttributes() {
+        MBeanInfo info = getInfoQuietly();
         if (info != null) {
             return info.getAttributes();
         } else {
@@ -63,6 +77,7 @@ public class MBeanWrapper implements Serializable {
     }
 
     public MBeanOperationInfo[] getOperations() {
+        MBeanInfo info = getInfoQuietly();
         if (info != null) {
             return info.getOperations();
         } else {
@@ -70,23 +85,58 @@ public class MBeanWrapper implements Serializable {
         }
     }
 
+    public MBeanServerWrapper getServer() {
+        return server;
+    }
+
     public MBeanWrapper[] getChildren() {
         return children.values().toArray(new MBeanWrapper[0]);
     }
 
     public Object get(MBeanAttributeInfo attribute) throws JMException {
-        return server.get().getAttribute(objectName, attribute.getName());
+        MBeanServerConnection connection = null;
+        try {
+            connection = server.get();
+            return connection.getAttribute(objectName, attribute.getName());
+        } catch (IOException e) {
+            throw server.failed(connection, e);
+        }
+    }
+
+    /**
+     * 複数の属性を1回の呼び出しで取得する。取得できなかった属性は結果に含まれない
+     */
+    public AttributeList get(String[] attributes) throws JMException {
+        MBeanServerConnection connection = null;
+        try {
+            connection = server.get();
+            return connection.getAttributes(objectName, attributes);
+        } catch (IOException e) {
+            throw server.failed(connection, e);
+        }
     }
 
     public void set(MBeanAttributeInfo attribute, Object value)
             throws JMException {
-        server.get().setAttribute(objectName,
-                new Attribute(attribute.getName(), value));
+        MBeanServerConnection connection = null;
+        try {
+            connection = server.get();
+            connection.setAttribute(objectName,
+                    new Attribute(attribute.getName(), value));
+        } catch (IOException e) {
+            throw server.failed(connection, e);
+        }
     }
 
     public Object invoke(MBeanOperationInfo operation) throws JMException {
-        return server.get().invoke(objectName, operation.getName(),
-                new Object[0], new String[0]);
+        MBeanServerConnection connection = null;
+        try {
+            connection = server.get();
+            return connection.invoke(objectName, operation.getName(),
+                    new Object[0], new String[0]);
+        } catch (IOException e) {
+            throw server.failed(connection, e);
+        }
     }
 
     @Override
@@ -97,9 +147,11 @@ public class MBeanWrapper implements Serializable {
     public static Map<String, MBeanWrapper> createDomainTree(
             MBeanServerWrapper server, String domain) {
         TreeMap<String, MBeanWrapper> ret = new TreeMap<String, MBeanWrapper>();
+        MBeanServerConnection connection = null;
         try {
+            connection = server.get();
             Set<ObjectName> objectNames =
-                    server.get().queryNames(
+                    connection.queryNames(
                             new ObjectName(String.format("%s:*", domain)), null);
             for (ObjectName objectName : objectNames) {
                 try {
@@ -134,6 +186,9 @@ public class MBeanWrapper implements Serializable {
         } catch (MalformedObjectNameException e) {
             logger.error("Fail to create domain tree", e);
             throw new IncompatiblePlatformException(e);
+        } catch (IOException e) {
+            logger.warn("Fail to create domain tree",
+                    server.failed(connection, e));
         }
         return ret;
     }
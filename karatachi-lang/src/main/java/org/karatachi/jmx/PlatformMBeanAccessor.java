@@ -0,0 +1,275 @@
+package org.karatachi.jmx;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.PlatformManagedObject;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+
+/**
+ * 自JVMのプラットフォームMXBeanの値を、getAttribute()やCompositeDataを経由せずに直接取得する
+ */
+abstract class PlatformMBeanAccessor extends MBeanAccessor {
+    private static final int INIT = 0;
+    private static final int USED = 1;
+    private static final int COMMITTED = 2;
+    private static final int MAX = 3;
+
+    public PlatformMBeanAccessor(String title, MBeanWrapper bean,
+            MBeanAttributeInfo attribute, String key) {
+        super(title, bean, attribute, key);
+    }
+
+    @Override
+    public boolean isDirect() {
+        return true;
+    }
+
+    @Override
+    public double getValue() {
+        try {
+            return read();
+        } catch (RuntimeException e) {
+            return Double.NaN;
+        }
+    }
+
+    protected abstract double read();
+
+    /**
+     * 直接取得できる属性であればPlatformMBeanAccessorを返す。できなければnullを返す
+     */
+    public static MBeanAccessor create(String title, MBeanWrapper bean,
+            MBeanAttributeInfo attribute, String key) {
+        ObjectName name = bean.getObjectName();
+        if (!"java.lang".equals(name.getDomain())) {
+            return null;
+        }
+        String type = name.getKeyProperty("type");
+        String attr = attribute.getName();
+
+        if ("Memory".equals(type)) {
+            final MemoryMXBean mx = ManagementFactory.getMemoryMXBean();
+            if (!matches(mx, name)) {
+                return null;
+            }
+            final int field = getUsageField(key);
+            if ("HeapMemoryUsage".equals(attr) && field >= 0) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return getUsage(mx.getHeapMemoryUsage(), field);
+                    }
+                };
+            } else if ("NonHeapMemoryUsage".equals(attr) && field >= 0) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return getUsage(mx.getNonHeapMemoryUsage(), field);
+                    }
+                };
+            } else if ("ObjectPendingFinalizationCount".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getObjectPendingFinalizationCount();
+                    }
+                };
+            }
+        } else if ("Threading".equals(type)) {
+            final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            if (!matches(mx, name)) {
+                return null;
+            }
+            if ("ThreadCount".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getThreadCount();
+                    }
+                };
+            } else if ("DaemonThreadCount".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getDaemonThreadCount();
+                    }
+                };
+            } else if ("PeakThreadCount".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getPeakThreadCount();
+                    }
+                };
+            } else if ("TotalStartedThreadCount".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getTotalStartedThreadCount();
+                    }
+                };
+            }
+        } else if ("ClassLoading".equals(type)) {
+            final ClassLoadingMXBean mx =
+                    ManagementFactory.getClassLoadingMXBean();
+            if (!matches(mx, name)) {
+                return null;
+            }
+            if ("LoadedClassCount".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getLoadedClassCount();
+                    }
+                };
+            } else if ("TotalLoadedClassCount".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getTotalLoadedClassCount();
+                    }
+                };
+            } else if ("UnloadedClassCount".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getUnloadedClassCount();
+                    }
+                };
+            }
+        } else if ("OperatingSystem".equals(type)) {
+            final OperatingSystemMXBean mx =
+                    ManagementFactory.getOperatingSystemMXBean();
+            if (!matches(mx, name)) {
+                return null;
+            }
+            if ("SystemLoadAverage".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getSystemLoadAverage();
+                    }
+                };
+            } else if ("AvailableProcessors".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getAvailableProcessors();
+                    }
+                };
+            }
+        } else if ("Runtime".equals(type)) {
+            final RuntimeMXBean mx = ManagementFactory.getRuntimeMXBean();
+            if (!matches(mx, name)) {
+                return null;
+            }
+            if ("Uptime".equals(attr)) {
+                return new PlatformMBeanAccessor(title, bean, attribute, key) {
+                    @Override
+                    protected double read() {
+                        return mx.getUptime();
+                    }
+                };
+            }
+        } else if ("GarbageCollector".equals(type)) {
+            for (final GarbageCollectorMXBean mx : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (!matches(mx, name)) {
+                    continue;
+                }
+                if ("CollectionCount".equals(attr)) {
+                    return new PlatformMBeanAccessor(title, bean, attribute,
+                            key) {
+                        @Override
+                        protected double read() {
+                            return mx.getCollectionCount();
+                        }
+                    };
+                } else if ("CollectionTime".equals(attr)) {
+                    return new PlatformMBeanAccessor(title, bean, attribute,
+                            key) {
+                        @Override
+                        protected double read() {
+                            return mx.getCollectionTime();
+                        }
+                    };
+                }
+            }
+        } else if ("MemoryPool".equals(type)) {
+            final int field = getUsageField(key);
+            for (final MemoryPoolMXBean mx : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (!matches(mx, name) || field < 0) {
+                    continue;
+                }
+                if ("Usage".equals(attr)) {
+                    return new PlatformMBeanAccessor(title, bean, attribute,
+                            key) {
+                        @Override
+                        protected double read() {
+                            return getUsage(mx.getUsage(), field);
+                        }
+                    };
+                } else if ("PeakUsage".equals(attr)) {
+                    return new PlatformMBeanAccessor(title, bean, attribute,
+                            key) {
+                        @Override
+                        protected double read() {
+                            return getUsage(mx.getPeakUsage(), field);
+                        }
+                    };
+                } else if ("CollectionUsage".equals(attr)) {
+                    return new PlatformMBeanAccessor(title, bean, attribute,
+                            key) {
+                        @Override
+                        protected double read() {
+                            return getUsage(mx.getCollectionUsage(), field);
+                        }
+                    };
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(PlatformManagedObject mx, ObjectName name) {
+        return mx.getObjectName().equals(name);
+    }
+
+    private static int getUsageField(String key) {
+        if ("init".equals(key)) {
+            return INIT;
+        } else if ("used".equals(key)) {
+            return USED;
+        } else if ("committed".equals(key)) {
+            return COMMITTED;
+        } else if ("max".equals(key)) {
+            return MAX;
+        } else {
+            return -1;
+        }
+    }
+
+    private static double getUsage(MemoryUsage usage, int field) {
+        if (usage == null) {
+            return Double.NaN;
+        }
+        switch (field) {
+        case INIT:
+            return usage.getInit();
+        case USED:
+            return usage.getUsed();
+        case COMMITTED:
+            return usage.getCommitted();
+        default:
+            return usage.getMax();
+        }
+    }
+}
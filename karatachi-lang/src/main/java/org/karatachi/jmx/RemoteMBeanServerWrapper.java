@@ -0,0 +1,95 @@
+package org.karatachi.jmx;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXServiceURL;
+
+import org.karatachi.exception.IncompatibleConfigurationException;
+
+/**
+ * JMXConnectorで接続した他のJVMのMBeanServerを扱う。
+ *
+ * 接続はJMXConnectorPoolで同じURLのRemoteMBeanServerWrapperと共有し、通信に失敗した場合は再接続する。
+ */
+public class RemoteMBeanServerWrapper extends MBeanServerWrapper {
+    private static final long serialVersionUID = 1L;
+
+    private final JMXServiceURL url;
+    private final HashMap<String, Object> environment;
+    private transient JMXConnectorPool pool;
+
+    /**
+     * @param url
+     *            service:jmx:rmi:///jndi/rmi://host:port/jmxrmi の形式のURL
+     */
+    public RemoteMBeanServerWrapper(String url) {
+        this(toServiceURL(url), null);
+    }
+
+    public RemoteMBeanServerWrapper(JMXServiceURL url,
+            Map<String, ?> environment) {
+        this(url, environment, JMXConnectorPool.getInstance());
+    }
+
+    /**
+     * @param environment
+     *            JMXConnectorFactory.connect()に渡す値。認証情報など
+     */
+    public RemoteMBeanServerWrapper(JMXServiceURL url,
+            Map<String, ?> environment, JMXConnectorPool pool) {
+        this.url = url;
+        this.environment =
+                environment != null ? new HashMap<String, Object>(environment)
+                        : new HashMap<String, Object>();
+        this.pool = pool;
+    }
+
+    private static JMXServiceURL toServiceURL(String url) {
+        try {
+            return new JMXServiceURL(url);
+        } catch (MalformedURLException e) {
+            throw new IncompatibleConfigurationException(e);
+        }
+    }
+
+    public JMXServiceURL getURL() {
+        return url;
+    }
+
+    public boolean isConnected() {
+        return getPool().isConnected(url);
+    }
+
+    private JMXConnectorPool getPool() {
+        // デシリアライズ後は共有のプールを使う
+        if (pool == null) {
+            pool = JMXConnectorPool.getInstance();
+        }
+        return pool;
+    }
+
+    @Override
+    protected MBeanServerConnection get() throws IOException {
+        return getPool().getConnection(url, environment);
+    }
+
+    @Override
+    protected JMException failed(MBeanServerConnection connection,
+            IOException e) {
+        // 他のスレッドが再接続した接続は閉じない
+        if (connection != null) {
+            getPool().invalidate(url, connection);
+        }
+        return super.failed(connection, e);
+    }
+
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+}
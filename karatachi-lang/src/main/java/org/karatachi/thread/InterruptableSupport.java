@@ -0,0 +1,26 @@
+package org.karatachi.thread;
+
+/**
+ * 実行中の処理を中断可能にするAcceptInterruptableを現在のスレッドから取得する。
+ * Threadを継承できない仮想スレッドではbind()でスレッドローカルに登録する。
+ */
+public class InterruptableSupport {
+    private static final ThreadLocal<AcceptInterruptable> bound =
+            new ThreadLocal<AcceptInterruptable>();
+
+    public static void bind(AcceptInterruptable acceptor) {
+        bound.set(acceptor);
+    }
+
+    public static void unbind() {
+        bound.remove();
+    }
+
+    public static AcceptInterruptable current() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof AcceptInterruptable) {
+            return (AcceptInterruptable) thread;
+        }
+        return bound.get();
+    }
+}
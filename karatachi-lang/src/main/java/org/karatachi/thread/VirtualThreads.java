@@ -0,0 +1,121 @@
+package org.karatachi.thread;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.karatachi.exception.IncompatiblePlatformException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 実行時のJDKが仮想スレッドに対応している場合のみ仮想スレッドを生成する。
+ * 古いターゲットでもビルドできるようリフレクション経由で呼び出す。
+ */
+public class VirtualThreads {
+    private static final Logger logger =
+            LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method nameWithCounter;
+    private static final Method unstarted;
+    private static final Method factory;
+    private static final Method newThreadPerTaskExecutor;
+
+    static {
+        Method[] methods = new Method[6];
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            methods[0] = Thread.class.getMethod("ofVirtual");
+            methods[1] = builder.getMethod("name", String.class);
+            methods[2] = builder.getMethod("name", String.class, long.class);
+            methods[3] = builder.getMethod("unstarted", Runnable.class);
+            methods[4] = builder.getMethod("factory");
+            methods[5] =
+                    Executors.class.getMethod("newThreadPerTaskExecutor",
+                            ThreadFactory.class);
+            // JDK 19/20ではプレビュー機能のため有効化されていないと例外となる
+            methods[0].invoke(null);
+        } catch (Exception e) {
+            methods = new Method[6];
+        }
+        ofVirtual = methods[0];
+        name = methods[1];
+        nameWithCounter = methods[2];
+        unstarted = methods[3];
+        factory = methods[4];
+        newThreadPerTaskExecutor = methods[5];
+    }
+
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    public static Thread newThread(String threadName, Runnable task) {
+        checkSupported();
+        try {
+            Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+            return (Thread) unstarted.invoke(builder, task);
+        } catch (Exception e) {
+            throw launder(e);
+        }
+    }
+
+    public static ThreadFactory newThreadFactory(String prefix) {
+        checkSupported();
+        try {
+            Object builder =
+                    nameWithCounter.invoke(ofVirtual.invoke(null), prefix, 1L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            throw launder(e);
+        }
+    }
+
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        checkSupported();
+        try {
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null,
+                    newThreadFactory(prefix));
+        } catch (Exception e) {
+            throw launder(e);
+        }
+    }
+
+    /**
+     * 仮想スレッドが要求されかつ利用可能かを判定する。利用できない場合は警告を出力する
+     */
+    public static boolean isEnabled(boolean requested, Object owner) {
+        if (requested && !isSupported()) {
+            logger.warn(
+                    "Virtual threads are not available on this JVM. {} uses platform threads.",
+                    owner);
+            return false;
+        }
+        return requested;
+    }
+
+    private static void checkSupported() {
+        if (!isSupported()) {
+            throw new IncompatiblePlatformException(
+                    "Virtual threads are not supported.");
+        }
+    }
+
+    private static RuntimeException launder(Exception e) {
+        Throwable cause = e;
+        if (e instanceof InvocationTargetException) {
+            cause = e.getCause();
+        }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IncompatiblePlatformException(cause);
+    }
+}
@@ -0,0 +1,55 @@
+package org.karatachi.classloader;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ReflectionTest {
+    /**
+     * 同じ行で取得し、呼び出し元の行番号をそろえる
+     */
+    private static String[] ancestor(int index) {
+        return new String[] { Reflection.getAncestorMethodInfo(index + 1), new Throwable().getStackTrace()[index + 1].toString() };
+    }
+
+    private static String[] walk() {
+        return new String[] { Reflection.walkStack(2), new Throwable().getStackTrace()[1].toString() };
+    }
+
+    private static String[] parent() {
+        return new String[] { Reflection.getParentMethodInfo(), new Throwable().getStackTrace()[1].toString() };
+    }
+
+    private static String[] nested(int depth, int index) {
+        return depth > 0 ? nested(depth - 1, index) : ancestor(index);
+    }
+
+    @Test
+    public void StackWalkerの結果() {
+        assertEquals(hasStackWalker(), Reflection.isStackWalkerSupported());
+        if (Reflection.isStackWalkerSupported()) {
+            String[] frames = walk();
+            assertNotNull(frames[0]);
+            assertEquals(frames[1], frames[0]);
+        }
+    }
+
+    @Test
+    public void 呼び出し元() {
+        for (int index = 0; index < 20; ++index) {
+            String[] frames = nested(20, index);
+            assertEquals(frames[1], frames[0]);
+        }
+        String[] frames = parent();
+        assertEquals(frames[1], frames[0]);
+    }
+
+    private static boolean hasStackWalker() {
+        try {
+            Class.forName("java.lang.StackWalker");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
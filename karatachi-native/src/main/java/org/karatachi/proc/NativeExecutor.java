@@ -14,6 +14,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import org.karatachi.thread.VirtualThreads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,14 +24,21 @@ public class NativeExecutor {
 
     private final int maxLine;
     private final Charset cs;
+    private final boolean virtualThread;
 
     public NativeExecutor() {
         this(300, Charset.defaultCharset());
     }
 
     public NativeExecutor(int maxLine, Charset cs) {
+        this(maxLine, cs, false);
+    }
+
+    public NativeExecutor(int maxLine, Charset cs, boolean virtualThread) {
         this.maxLine = maxLine;
         this.cs = cs;
+        this.virtualThread =
+                VirtualThreads.isEnabled(virtualThread, "NativeExecutor");
     }
 
     public int exec(String format, Object... args) throws IOException,
@@ -57,7 +65,12 @@ public class NativeExecutor {
             StreamHandler error = new StreamHandler(process.getErrorStream(),
                     maxLine, cs);
 
-            executor = Executors.newFixedThreadPool(2);
+            if (virtualThread) {
+                executor =
+                        VirtualThreads.newThreadPerTaskExecutor("NativeExecutor-");
+            } else {
+                executor = Executors.newFixedThreadPool(2);
+            }
             List<Future<String>> result = executor.invokeAll(Arrays.asList(
                     output, error));
 
@@ -16,6 +16,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.karatachi.net.shell.Command;
 import org.karatachi.system.ClassPropertyLoader;
+import org.karatachi.thread.VirtualThreads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +28,7 @@ public class RshService implements Runnable, RejectedExecutionHandler {
     public static int maxThread;
     public static int threadKeepAliveTime;
     public static int waitForShutdown;
+    public static boolean virtualThread;
     static {
         ClassPropertyLoader loader = new ClassPropertyLoader();
         loader.loadIfNotContains(RshService.class.getResourceAsStream("/karatachi.properties"));
@@ -51,7 +53,8 @@ public class RshService implements Runnable, RejectedExecutionHandler {
         this.executor =
                 new ThreadPoolExecutor(minThread, maxThread,
                         threadKeepAliveTime, TimeUnit.MILLISECONDS, queue,
-                        new RshWorkerThreadFactory());
+                        new RshWorkerThreadFactory(
+                                VirtualThreads.isEnabled(virtualThread, this)));
         this.executor.prestartCoreThread();
         this.executor.setRejectedExecutionHandler(this);
 
@@ -126,10 +129,23 @@ public class RshService implements Runnable, RejectedExecutionHandler {
 }
 
 class RshWorkerThreadFactory implements ThreadFactory {
+    private final ThreadFactory virtualThreadFactory;
     private volatile int ThreadCounter = 1;
 
+    public RshWorkerThreadFactory(boolean virtualThread) {
+        if (virtualThread) {
+            this.virtualThreadFactory =
+                    VirtualThreads.newThreadFactory("RshWorker-");
+        } else {
+            this.virtualThreadFactory = null;
+        }
+    }
+
     @Override
     public Thread newThread(Runnable r) {
+        if (virtualThreadFactory != null) {
+            return virtualThreadFactory.newThread(r);
+        }
         return new Thread(r, "RshWorker-" + (ThreadCounter++));
     }
 }
@@ -0,0 +1,24 @@
+package org.karatachi.example.web;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.karatachi.daemon.monitor.JdbcMonitorStore;
+import org.karatachi.system.SystemInfo;
+import org.seasar.framework.container.SingletonS2Container;
+
+/**
+ * S2コンテナのDataSourceでmonitorテーブルに値を保存する。テーブルはinit.sqlを参照
+ */
+public class DatabaseMonitorStore extends JdbcMonitorStore {
+    public DatabaseMonitorStore() {
+        super("monitor", SystemInfo.HOST_NAME);
+    }
+
+    @Override
+    protected Connection getConnection() throws SQLException {
+        return SingletonS2Container.getComponent(DataSource.class).getConnection();
+    }
+}
@@ -2,7 +2,6 @@ package org.karatachi.example.web;
 
 import java.io.InputStreamReader;
 import java.sql.Connection;
-import java.sql.SQLException;
 import java.util.List;
 
 import javax.sql.DataSource;
@@ -66,17 +65,10 @@ public class ExampleApplication extends WebApplication {
     }
 
     private void setupMonitor() {
-        // MBeanDaemon(<デーモン名>, <DBテーブル名>)
+        // MBeanDaemon(<デーモン名>, <値の保存先>)
         // DBのテーブルはinit.sqlを参照
         MBeanMonitorDaemon monitor =
-                new MBeanMonitorDaemon("MBeanMonitor", "monitor") {
-                    @Override
-                    protected Connection getConnection() throws SQLException {
-                        // DBアクセスに使用するConnectionオブジェクトを
-                        DataSource dataSource =
-                                SingletonS2Container.getComponent(DataSource.class);
-                        return dataSource.getConnection();
-                    }
+                new MBeanMonitorDaemon("MBeanMonitor", new DatabaseMonitorStore()) {
                 };
 
         // monitor.mbeanファイルから監視を行うMBeanを設定する
@@ -10,7 +10,7 @@ import org.apache.wicket.protocol.http.RequestUtils;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
 import org.karatachi.example.web.WebBasePage;
 import org.karatachi.system.SystemInfo;
-import org.karatachi.wicket.chart.MonitorChartImage;
+import org.karatachi.wicket.chart.JdbcMonitorChartImage;
 import org.seasar.framework.container.SingletonS2Container;
 
 public class JVMMonitorPage extends WebBasePage {
@@ -76,7 +76,7 @@ public class JVMMonitorPage extends WebBasePage {
                 level));
     }
 
-    private class LocalMBeanChartImage extends MonitorChartImage {
+    private class LocalMBeanChartImage extends JdbcMonitorChartImage {
         private static final long serialVersionUID = 1L;
 
         public LocalMBeanChartImage(String id, String host, String[] titles,
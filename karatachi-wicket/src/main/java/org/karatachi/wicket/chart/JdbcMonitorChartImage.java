@@ -0,0 +1,37 @@
+package org.karatachi.wicket.chart;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.karatachi.daemon.monitor.JdbcMonitorStore;
+import org.karatachi.daemon.monitor.MonitorStore;
+
+/**
+ * getConnection()で取得したデータベースのtableから値を読み込む
+ */
+public abstract class JdbcMonitorChartImage extends MonitorChartImage {
+    private static final long serialVersionUID = 1L;
+
+    private final String table;
+    private final String host;
+
+    public JdbcMonitorChartImage(String id, int width, int height,
+            String table, String host, String[] titles, int level) {
+        super(id, width, height, titles, level);
+        this.table = table;
+        this.host = host;
+    }
+
+    @Override
+    protected abstract Connection getConnection() throws SQLException;
+
+    @Override
+    protected MonitorStore getStore() {
+        return new JdbcMonitorStore(table, host) {
+            @Override
+            protected Connection getConnection() throws SQLException {
+                return JdbcMonitorChartImage.this.getConnection();
+            }
+        };
+    }
+}
@@ -1,9 +1,8 @@
 package org.karatachi.wicket.chart;
 
 import java.awt.Font;
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
 
@@ -20,19 +19,35 @@ import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
 import org.jfree.data.time.Second;
 import org.jfree.data.time.TimeTableXYDataset;
+import org.karatachi.daemon.monitor.JdbcMonitorStore;
 import org.karatachi.daemon.monitor.MBeanMonitorDaemon;
+import org.karatachi.daemon.monitor.MonitorRecord;
+import org.karatachi.daemon.monitor.MonitorStore;
 
-public abstract class MonitorChartImage extends ChartImage {
+/**
+ * getStore()から値を読み込む。データベースから読み込む場合はJdbcMonitorChartImageを使う
+ */
+public class MonitorChartImage extends ChartImage {
     private static final long serialVersionUID = 1L;
 
+    private final String table;
+    private final String host;
     private final String[] titles;
     private final int level;
-    private final String sql;
 
     private DrawingSupplier drawingSupplier;
 
-    protected abstract Connection getConnection() throws SQLException;
+    public MonitorChartImage(String id, int width, int height,
+            String[] titles, int level) {
+        this(id, width, height, null, null, titles, level);
+    }
 
+    /**
+     * getConnection()で取得したデータベースのtableから値を読み込む
+     *
+     * @deprecated JdbcMonitorChartImageを使う
+     */
+    @Deprecated
     public MonitorChartImage(String id, int width, int height, String table,
             String host, String[] titles, int level) {
         super(id, width, height);
@@ -40,12 +55,30 @@ public abstract class MonitorChartImage extends ChartImage {
 
         add(new AjaxSelfUpdatingTimerBehavior(Duration.seconds(15)));
 
+        this.table = table;
+        this.host = host;
         this.titles = titles;
         this.level = level;
-        this.sql =
-                String.format(
-                        "SELECT time, value FROM %1$s WHERE host='%2$s' AND title=? AND level=%3$d",
-                        table, host, level);
+    }
+
+    /**
+     * MonitorChartImage(String, int, int, String, String, String[], int)で作成した場合に、
+     * 値を読み込むデータベースへの接続を返す
+     */
+    protected Connection getConnection() throws SQLException {
+        throw new SQLException("no JDBC store configured");
+    }
+
+    /**
+     * MonitorStoreはシリアライズしないため、描画のたびに呼び出される
+     */
+    protected MonitorStore getStore() {
+        return new JdbcMonitorStore(table, host) {
+            @Override
+            protected Connection getConnection() throws SQLException {
+                return MonitorChartImage.this.getConnection();
+            }
+        };
     }
 
     public void setDrawingSupplier(DrawingSupplier drawingSupplier) {
@@ -54,27 +87,21 @@ public abstract class MonitorChartImage extends ChartImage {
 
     public TimeTableXYDataset loadData() {
         TimeTableXYDataset ret = new TimeTableXYDataset();
+        long interval = MBeanMonitorDaemon.INTERVAL[level];
+        long from =
+                (System.currentTimeMillis() / interval - 1) * interval
+                        - MBeanMonitorDaemon.EXPIRE[level] / 3 - interval;
         try {
-            Connection conn = getConnection();
-            try {
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                for (String title : titles) {
-                    stmt.setString(1, title);
-
-                    ResultSet rs = stmt.executeQuery();
-                    while (rs.next()) {
-                        long rounded =
-                                rs.getLong("time")
-                                        / MBeanMonitorDaemon.INTERVAL[level]
-                                        * MBeanMonitorDaemon.INTERVAL[level];
-                        ret.add(new Second(new Date(rounded)),
-                                rs.getDouble("value"), title);
-                    }
+            MonitorStore store = getStore();
+            for (String title : titles) {
+                for (MonitorRecord record : store.read(title, level, from,
+                        Long.MAX_VALUE)) {
+                    long rounded = record.getTime() / interval * interval;
+                    ret.add(new Second(new Date(rounded)), record.getValue(),
+                            title);
                 }
-            } finally {
-                conn.close();
             }
-        } catch (SQLException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return ret;
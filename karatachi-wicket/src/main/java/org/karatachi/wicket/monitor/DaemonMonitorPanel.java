@@ -14,6 +14,7 @@ import org.apache.wicket.model.LoadableDetachableModel;
 import org.karatachi.daemon.Daemon;
 import org.karatachi.daemon.DaemonGroup;
 import org.karatachi.daemon.DaemonManager;
+import org.karatachi.daemon.producer.AutoScaler;
 import org.karatachi.daemon.producer.ProducerDaemon;
 import org.karatachi.wicket.auto.AutoResolveListView;
 import org.karatachi.wicket.label.DateLabel;
@@ -106,7 +107,8 @@ public class DaemonMonitorPanel extends Panel {
                     Daemon modelObject) {
                 if (modelObject.getStatus() == Thread.State.RUNNABLE) {
                     return "highlighted";
-                } else if (modelObject instanceof ProducerDaemon) {
+                } else if (modelObject instanceof ProducerDaemon
+                        || modelObject instanceof AutoScaler) {
                     return "emphatic";
                 } else {
                     return super.getClassAttribute(id, index, modelObject);
@@ -0,0 +1,71 @@
+package org.karatachi.wicket.monitor;
+
+import java.util.List;
+
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.panel.Panel;
+import org.apache.wicket.model.LoadableDetachableModel;
+import org.karatachi.db.SlowQuery;
+import org.karatachi.db.StatementMetrics;
+import org.karatachi.db.StatementStatistics;
+import org.karatachi.wicket.auto.AutoResolveListView;
+import org.karatachi.wicket.label.DateLabel;
+
+/**
+ * StatementStatisticsの合計時間の長いSQLと、最近の遅延したSQLを表示する
+ */
+public class StatementMonitorPanel extends Panel {
+    private static final long serialVersionUID = 1L;
+
+    public StatementMonitorPanel(String id) {
+        this(id, 20);
+    }
+
+    public StatementMonitorPanel(String id, final int count) {
+        super(id);
+        setRenderBodyOnly(true);
+
+        add(new AutoResolveListView<StatementMetrics>("statements",
+                new LoadableDetachableModel<List<StatementMetrics>>() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected List<StatementMetrics> load() {
+                        return StatementStatistics.getTopStatements(count);
+                    }
+                }) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected String getClassAttribute(String id, int index,
+                    StatementMetrics modelObject) {
+                if (modelObject.getSlowCount() > 0
+                        || modelObject.getErrorCount() > 0) {
+                    return "emphatic";
+                } else {
+                    return super.getClassAttribute(id, index, modelObject);
+                }
+            }
+        });
+
+        add(new AutoResolveListView<SlowQuery>("slowQueries",
+                new LoadableDetachableModel<List<SlowQuery>>() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected List<SlowQuery> load() {
+                        List<SlowQuery> ret =
+                                StatementStatistics.getSlowQueries();
+                        return ret.size() > count ? ret.subList(0, count)
+                                : ret;
+                    }
+                }) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void populateItem(ListItem<SlowQuery> item) {
+                item.add(new DateLabel("date"));
+            }
+        });
+    }
+}
@@ -11,6 +11,7 @@ import org.karatachi.jmx.MBeanTree.AttributeNode;
 import org.karatachi.jmx.MBeanTree.BeanNode;
 import org.karatachi.jmx.MBeanTree.DomainNode;
 import org.karatachi.jmx.MBeanTree.OperationNode;
+import org.karatachi.jmx.MBeanTree.PageNode;
 
 public class MBeanLabel extends Panel {
     private static final long serialVersionUID = 1L;
@@ -51,7 +52,7 @@ public class MBeanLabel extends Panel {
     }
 
     private ResourceReference getNodeIcon(MBeanNode node) {
-        if (node instanceof DomainNode) {
+        if (node instanceof DomainNode || node instanceof PageNode) {
             return ICON_DOMAIN;
         } else if (node instanceof BeanNode) {
             return ICON_BEAN;
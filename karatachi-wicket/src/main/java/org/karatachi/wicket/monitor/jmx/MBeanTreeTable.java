@@ -3,6 +3,7 @@ package org.karatachi.wicket.monitor.jmx;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.management.ObjectName;
 import javax.swing.tree.DefaultTreeModel;
 
 import org.apache.wicket.Component;
@@ -27,9 +28,21 @@ public class MBeanTreeTable extends TableTree<MBeanNode, Void> {
                     new ValueColumn());
 
     public MBeanTreeTable(String id) {
+        this(id, new MBeanServerWrapper());
+    }
+
+    public MBeanTreeTable(String id, MBeanServerWrapper server) {
+        this(id, server, null);
+    }
+
+    /**
+     * @param pattern
+     *            表示するMBeanのObjectNameのパターン
+     */
+    public MBeanTreeTable(String id, MBeanServerWrapper server,
+            ObjectName pattern) {
         super(id, COLUMNS, new TreeModelProvider<MBeanNode>(
-                new DefaultTreeModel(new MBeanTree(new MBeanServerWrapper())),
-                false) {
+                new DefaultTreeModel(new MBeanTree(server, pattern)), false) {
             private static final long serialVersionUID = 1L;
 
             @Override